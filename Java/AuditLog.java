@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An append-only audit log (SEC's suspicions.log) written from a background
+ * thread through one long-lived channel.
+ *
+ * Callers drop records into a bounded ring (the same layout PriceLogWriter
+ * uses) and return. If the ring is full they wait for the writer rather
+ * than drop anything. The writer encodes records into one buffer and
+ * group-commits it every flushRecords records or every flushMillis
+ * milliseconds, followed by an fsync unless that has been turned off, so
+ * a record is on disk at most one batch after it was appended.
+ *
+ * The live file is rotated once it passes rotateBytes or has been open for
+ * rotateMillis: it is renamed to "(name)-(yyyyMMdd-HHmmss).log" and a fresh
+ * file is started, and the rotated file is gzipped and removed on a
+ * separate thread. The fresh file is opened before the old channel is
+ * given up, so a failed rotation leaves the log writing where it was and
+ * is tried again later. Rotated files that were never compressed (the
+ * process died first) are picked up again at startup.
+ *
+ * No record is dropped on an I/O error: bytes stay in the buffer until a
+ * write of them succeeds, and while writes fail no more records are taken
+ * off the ring (so append() eventually waits) and the write is retried
+ * every RETRY_MILLIS. close() writes out everything queued and waits for
+ * pending compressions; if the file still can't be written
+ * -Daudit.closeRetryMillis (default 10s) after close(), what's left goes
+ * to System.err instead.
+ */
+public class AuditLog implements AutoCloseable {
+    private static final int CAPACITY = 1 << 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_MILLIS = 100;
+    private static final long ROTATE_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long CLOSE_RETRY_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("audit.closeRetryMillis", 10_000));
+
+    private final Path file;
+    private final String baseName;
+    private final int flushRecords;
+    private final long flushNanos;
+    private final boolean fsync;
+    private final long rotateBytes;
+    private final long rotateMillis;
+
+    private final int mask = CAPACITY - 1;
+    private final String[] records = new String[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+
+    // writer thread only
+    private FileChannel channel;
+    private long fileBytes;
+    private long openedMillis;
+    private long nextRotation; // not before, after a failed one
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // records not yet written to the channel
+
+    private volatile boolean running = true;
+    private final Thread writer;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "audit-compressor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Policy comes from -Daudit.flushRecords (default 100), -Daudit.flushMillis
+     * (default 200), -Daudit.fsync (default true), -Daudit.rotateBytes
+     * (default 64MB) and -Daudit.rotateMillis (default one day; 0 = never).
+     */
+    public static AuditLog fromSystemProperties(Path file) throws IOException {
+        return new AuditLog(file,
+            Integer.getInteger("audit.flushRecords", 100),
+            Long.getLong("audit.flushMillis", 200),
+            Boolean.parseBoolean(System.getProperty("audit.fsync", "true")),
+            Long.getLong("audit.rotateBytes", 64L << 20),
+            Long.getLong("audit.rotateMillis", TimeUnit.DAYS.toMillis(1)));
+    }
+
+    public AuditLog(Path file, int flushRecords, long flushMillis, boolean fsync,
+                    long rotateBytes, long rotateMillis) throws IOException {
+        this.file = file.toAbsolutePath();
+        String name = this.file.getFileName().toString();
+        this.baseName = name.endsWith(".log") ? name.substring(0, name.length() - 4) : name;
+        this.flushRecords = flushRecords;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.fsync = fsync;
+        this.rotateBytes = rotateBytes;
+        this.rotateMillis = rotateMillis;
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+
+        Files.createDirectories(this.file.getParent());
+        channel = open(this.file);
+        fileBytes = channel.size();
+        openedMillis = System.currentTimeMillis();
+        compressLeftovers();
+
+        writer = new Thread(this::drain, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue one record, which should end with its own newline. Safe to
+     * call from any thread; blocks only while the queue is full.
+     */
+    public void append(String record) {
+        long seq = claimed.getAndIncrement();
+        while (seq - consumed > mask) {
+            Thread.onSpinWait(); // queue is full; wait for the writer
+        }
+        int slot = (int) seq & mask;
+        records[slot] = record;
+        published.lazySet(slot, seq);
+    }
+
+    private void drain() {
+        long next = 0;
+        int unflushed = 0;
+        long lastFlush = System.nanoTime();
+        boolean failing = false;
+        long stopped = 0;
+
+        while (running || next < claimed.get() || unflushed > 0) {
+            boolean idle = true;
+            try {
+                while (published.get((int) next & mask) == next) {
+                    int slot = (int) next & mask;
+                    write(records[slot]); // if this throws, the record stays queued
+                    records[slot] = null;
+                    next++;
+                    consumed = next;
+                    unflushed++;
+                    idle = false;
+                    if (unflushed >= flushRecords) {
+                        break;
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (unflushed > 0 && (unflushed >= flushRecords || now - lastFlush >= flushNanos || !running)) {
+                    flush();
+                    unflushed = 0;
+                    lastFlush = now;
+                    long millis = System.currentTimeMillis();
+                    if ((fileBytes >= rotateBytes || (rotateMillis > 0 && millis - openedMillis >= rotateMillis))
+                            && millis >= nextRotation) {
+                        rotate();
+                    }
+                } else if (idle) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                failing = false;
+            } catch (IOException e) {
+                if (!failing) {
+                    e.printStackTrace(); // once per outage, not once per retry
+                    failing = true;
+                }
+                if (!running) {
+                    stopped = stopped == 0 ? System.nanoTime() : stopped;
+                    if (System.nanoTime() - stopped >= CLOSE_RETRY_NANOS) {
+                        abandon(next);
+                        break;
+                    }
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+            }
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Take the record off the ring only once it's in the buffer
+    private void write(String record) throws IOException {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > buffer.remaining()) {
+            writeOut();
+        }
+        if (bytes.length > buffer.remaining()) {
+            buffer = ByteBuffer.allocate(bytes.length); // empty after writeOut, so nothing to copy
+        }
+        buffer.put(bytes);
+        fileBytes += bytes.length;
+    }
+
+    private void flush() throws IOException {
+        writeOut();
+        if (fsync) {
+            channel.force(false);
+        }
+    }
+
+    // On failure the bytes not yet written are kept, at the start of the buffer
+    private void writeOut() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
+        if (buffer.capacity() > BUFFER_SIZE) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE); // done with a record too big for the usual one
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Called just after a flush, so the old channel has nothing left to write
+    private void rotate() {
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path rotated = file.resolveSibling(baseName + "-" + stamp + ".log");
+        for (int n = 1; Files.exists(rotated) || Files.exists(gzipped(rotated)); n++) {
+            rotated = file.resolveSibling(baseName + "-" + stamp + "-" + n + ".log");
+        }
+        try {
+            Files.move(file, rotated); // the old channel follows it
+        } catch (IOException e) {
+            e.printStackTrace();
+            nextRotation = System.currentTimeMillis() + ROTATE_RETRY_MILLIS;
+            return;
+        }
+        FileChannel fresh;
+        try {
+            fresh = open(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            nextRotation = System.currentTimeMillis() + ROTATE_RETRY_MILLIS;
+            try {
+                Files.move(rotated, file);
+            } catch (IOException back) {
+                // Still written through the old channel, under the rotated name; the
+                // next startup compresses it
+                back.printStackTrace();
+            }
+            return;
+        }
+
+        FileChannel old = channel;
+        channel = fresh;
+        fileBytes = 0;
+        openedMillis = System.currentTimeMillis();
+        try {
+            old.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        compress(rotated);
+    }
+
+    // The file still can't be written after close(): print what would have been
+    private void abandon(long next) {
+        System.err.println("audit log " + file + " can't be written; the records not yet in it follow");
+        buffer.flip();
+        System.err.print(StandardCharsets.UTF_8.decode(buffer));
+        buffer.clear();
+        for (long end = claimed.get(); next < end; next++) {
+            int slot = (int) next & mask;
+            while (published.get(slot) != next) {
+                Thread.onSpinWait();
+            }
+            System.err.print(records[slot]);
+            records[slot] = null;
+            consumed = next + 1;
+        }
+        System.err.flush();
+    }
+
+    private void compress(Path rotated) {
+        compressor.execute(() -> {
+            Path target = gzipped(rotated);
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (InputStream in = Files.newInputStream(rotated);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+                in.transferTo(out);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return; // leave the uncompressed file for the next startup
+            }
+            try {
+                Files.move(temp, target);
+                Files.delete(rotated);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // rotated files a previous run didn't get around to compressing
+    private void compressLeftovers() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(file.getParent(), baseName + "-*.log")) {
+            for (Path rotated : files) {
+                compress(rotated);
+            }
+        }
+    }
+
+    private static Path gzipped(Path rotated) {
+        return rotated.resolveSibling(rotated.getFileName() + ".gz");
+    }
+
+    /**
+     * Write out everything already queued, close the file, and wait for
+     * rotated files to finish compressing.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        writer.join();
+        compressor.shutdown();
+        compressor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
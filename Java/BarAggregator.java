@@ -0,0 +1,285 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolls StockMonitor's ticks up into time bars, once, so consumers that
+ * want bars or averages subscribe to them instead of re-reading tick logs.
+ *
+ * For every symbol and every window in -Dbars.windows (e.g. "1s,1m,5m";
+ * bars are off by default, since every monitor that has them on publishes
+ * its own copy of each bar, so turn them on in one monitor only) it keeps the open, high, low and close,
+ * the tick count, and the sum of prices of the bar in progress, plus a
+ * simple and an exponential moving average of the closes of the last
+ * -Dbars.period bars (default 20). All of it is primitive arrays indexed
+ * by a dense symbol id, so a tick costs a few array writes per window.
+ *
+ * Bars are aligned to the clock (a 1m bar covers a whole minute) and go
+ * by the time the monitor received the tick. A bar completes at the first
+ * tick after its window ends; once per shortest window every other symbol
+ * is checked too, so a quiet symbol's bar isn't held open. Each completed
+ * bar is published on "Bars.(window).(symbol)" as
+ *
+ *   <bar symbol="..." window="1m" start="(epoch millis)" open="..." high="..."
+ *        low="..." close="..." ticks="..." average="..." sma="..." ema="..." />
+ *
+ * with prices in cents (average is the mean tick price; the ticks carry
+ * no volume), and with -Dbars.persist=true also appended to
+ * "bars-(window).log" by a background thread.
+ *
+ * A tick whose symbol isn't a single subject token (see
+ * WireFormat.isSymbol) is ignored, since the symbol ends the bar's subject.
+ *
+ * onTick() must always be called from the same thread (the dispatcher).
+ */
+public class BarAggregator implements AutoCloseable {
+    public static final String SUBJECT_PREFIX = "Bars.";
+
+    private final Bus bus;
+    private final Window[] windows;
+    private final long sweepMillis; // the shortest window
+    private final int period;
+    private final double alpha;
+    private long nextSweep = 0;
+
+    private final SymbolIntMap ids = new SymbolIntMap();
+    private String[] symbols = new String[64];
+    private int capacity = 64;
+
+    // With -Dbars.persist=true
+    private final ExecutorService persister;
+    private final BufferedWriter[] persisted;
+
+    /**
+     * Windows, period and persistence come from -Dbars.windows,
+     * -Dbars.period and -Dbars.persist; null if bars are off, as they are
+     * unless -Dbars.windows is set.
+     */
+    public static BarAggregator fromSystemProperties(Bus bus, Path dir) throws IOException {
+        String windows = System.getProperty("bars.windows", "").trim();
+        if (windows.isEmpty()) {
+            return null;
+        }
+        return new BarAggregator(bus, windows.split("\\s*,\\s*"), Integer.getInteger("bars.period", 20),
+            Boolean.getBoolean("bars.persist") ? dir : null);
+    }
+
+    /**
+     * @param windows names like "1s", "1m" or "5m" (s, m and h are understood)
+     * @param persistDir where to append completed bars, or null not to
+     */
+    public BarAggregator(Bus bus, String[] windows, int period, Path persistDir) throws IOException {
+        this.bus = bus;
+        this.period = period;
+        alpha = 2.0 / (period + 1);
+        this.windows = new Window[windows.length];
+        long shortest = Long.MAX_VALUE;
+        for (int w = 0; w < windows.length; w++) {
+            this.windows[w] = new Window(w, windows[w], millis(windows[w]));
+            shortest = Math.min(shortest, this.windows[w].millis);
+        }
+        sweepMillis = shortest;
+
+        if (persistDir != null) {
+            persisted = new BufferedWriter[windows.length];
+            for (int w = 0; w < windows.length; w++) {
+                persisted[w] = Files.newBufferedWriter(persistDir.resolve("bars-" + windows[w] + ".log"),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            persister = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "bar-persister");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            persisted = null;
+            persister = null;
+        }
+    }
+
+    private static long millis(String window) {
+        long n = Long.parseLong(window.substring(0, window.length() - 1));
+        switch (window.charAt(window.length() - 1)) {
+            case 's': return TimeUnit.SECONDS.toMillis(n);
+            case 'm': return TimeUnit.MINUTES.toMillis(n);
+            case 'h': return TimeUnit.HOURS.toMillis(n);
+            default: throw new IllegalArgumentException("bar window must end in s, m or h: " + window);
+        }
+    }
+
+    /**
+     * Add a tick received at nowMillis to every window's bar for the symbol.
+     */
+    public void onTick(String symbol, int price, long nowMillis) {
+        if (!WireFormat.isSymbol(symbol)) {
+            return;
+        }
+        int id = ids.get(symbol, -1);
+        if (id < 0) {
+            id = register(symbol);
+        }
+        for (Window window : windows) {
+            long start = nowMillis - nowMillis % window.millis;
+            if (window.ticks[id] > 0 && window.start[id] != start) {
+                complete(window, id);
+            }
+            if (window.ticks[id] == 0) {
+                window.start[id] = start;
+                window.open[id] = price;
+                window.high[id] = price;
+                window.low[id] = price;
+            } else {
+                window.high[id] = Math.max(window.high[id], price);
+                window.low[id] = Math.min(window.low[id], price);
+            }
+            window.close[id] = price;
+            window.ticks[id]++;
+            window.sum[id] += price;
+        }
+        if (nowMillis >= nextSweep) {
+            sweep(nowMillis);
+            nextSweep = nowMillis - nowMillis % sweepMillis + sweepMillis;
+        }
+    }
+
+    // Complete every bar whose window has ended
+    private void sweep(long nowMillis) {
+        int count = ids.size();
+        for (Window window : windows) {
+            for (int id = 0; id < count; id++) {
+                if (window.ticks[id] > 0 && window.start[id] + window.millis <= nowMillis) {
+                    complete(window, id);
+                }
+            }
+        }
+    }
+
+    private void complete(Window window, int id) {
+        int close = window.close[id];
+        int slot = id * period + (int) (window.bars[id] % period);
+        if (window.bars[id] >= period) {
+            window.smaSum[id] -= window.closes[slot];
+        }
+        window.closes[slot] = close;
+        window.smaSum[id] += close;
+        window.bars[id]++;
+        double sma = (double) window.smaSum[id] / Math.min(window.bars[id], period);
+        window.ema[id] = window.bars[id] == 1 ? close : window.ema[id] + alpha * (close - window.ema[id]);
+
+        String bar = "<bar symbol=\"" + symbols[id] + "\" window=\"" + window.name
+            + "\" start=\"" + window.start[id]
+            + "\" open=\"" + window.open[id] + "\" high=\"" + window.high[id]
+            + "\" low=\"" + window.low[id] + "\" close=\"" + close
+            + "\" ticks=\"" + window.ticks[id]
+            + "\" average=\"" + Math.round((double) window.sum[id] / window.ticks[id])
+            + "\" sma=\"" + Math.round(sma) + "\" ema=\"" + Math.round(window.ema[id]) + "\" />";
+        window.ticks[id] = 0;
+        window.sum[id] = 0;
+
+        try {
+            bus.publish(window.subjectPrefix + symbols[id], bar.getBytes(StandardCharsets.UTF_8));
+        } catch (IllegalStateException e) {
+            // the bus closed while the monitor was draining its last ticks
+        }
+        if (persister != null) {
+            BufferedWriter out = persisted[window.index];
+            persister.execute(() -> {
+                try {
+                    out.write(bar);
+                    out.newLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    private int register(String symbol) {
+        int id = ids.size();
+        if (id == capacity) {
+            capacity *= 2;
+            symbols = Arrays.copyOf(symbols, capacity);
+            for (Window window : windows) {
+                window.grow(capacity);
+            }
+        }
+        symbols[id] = symbol;
+        ids.put(symbol, id);
+        return id;
+    }
+
+    /**
+     * Write out any persisted bars still queued. Bars in progress are
+     * dropped, since their windows haven't ended.
+     */
+    public void close() throws InterruptedException, IOException {
+        if (persister == null) {
+            return;
+        }
+        persister.shutdown();
+        persister.awaitTermination(10, TimeUnit.SECONDS);
+        for (BufferedWriter out : persisted) {
+            out.close();
+        }
+    }
+
+    /**
+     * One window's state for every symbol, indexed by id.
+     */
+    private class Window {
+        final int index;
+        final String name;
+        final long millis;
+        final String subjectPrefix;
+
+        // the bar in progress
+        long[] start;
+        int[] open, high, low, close, ticks;
+        long[] sum;
+
+        // the last period closes (id * period + n % period) and their averages
+        int[] closes;
+        long[] smaSum;
+        double[] ema;
+        long[] bars; // completed so far
+
+        Window(int index, String name, long millis) {
+            this.index = index;
+            this.name = name;
+            this.millis = millis;
+            subjectPrefix = SUBJECT_PREFIX + name + ".";
+            start = new long[capacity];
+            open = new int[capacity];
+            high = new int[capacity];
+            low = new int[capacity];
+            close = new int[capacity];
+            ticks = new int[capacity];
+            sum = new long[capacity];
+            closes = new int[capacity * period];
+            smaSum = new long[capacity];
+            ema = new double[capacity];
+            bars = new long[capacity];
+        }
+
+        void grow(int size) {
+            start = Arrays.copyOf(start, size);
+            open = Arrays.copyOf(open, size);
+            high = Arrays.copyOf(high, size);
+            low = Arrays.copyOf(low, size);
+            close = Arrays.copyOf(close, size);
+            ticks = Arrays.copyOf(ticks, size);
+            sum = Arrays.copyOf(sum, size);
+            closes = Arrays.copyOf(closes, size * period);
+            smaSum = Arrays.copyOf(smaSum, size);
+            ema = Arrays.copyOf(ema, size);
+            bars = Arrays.copyOf(bars, size);
+        }
+    }
+}
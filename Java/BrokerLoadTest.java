@@ -0,0 +1,142 @@
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Usage: java BrokerLoadTest [nats_url]
+ *
+ * Measures how order throughput scales with the number of StockBroker
+ * instances sharing one broker name. For 1 to -Dload.instances instances
+ * (default 4) it starts that many StockBrokers named "loadtest", each
+ * owning its share of the symbols, primes them with one
+ * sequence-numbered price for each of -Dload.symbols symbols
+ * (default 100), and for -Dload.seconds (default 5) has -Dload.clients
+ * clients (default 16) each keep -Dload.window orders outstanding
+ * (default 8). It prints orders per second, how they were spread over the
+ * instances, and the speedup over one instance.
+ *
+ * Each instance gets -Dbroker.workers=1 unless set otherwise, so it stands
+ * in for one single-core broker process and N instances need N cores to
+ * scale. Without a URL everything runs over an InProcessBus; with one,
+ * every instance and the load get their own NATS connection.
+ */
+public class BrokerLoadTest {
+    private static final String BROKER = "loadtest";
+
+    // Where the clients send their next orders from, off the bus's threads
+    private static final ExecutorService clientThreads =
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "load-client");
+            t.setDaemon(true);
+            return t;
+        });
+
+    public static void main(String... args) throws Exception {
+        if (System.getProperty("broker.workers") == null) {
+            System.setProperty("broker.workers", "1"); // before StockBroker is loaded
+        }
+        String natsURL = args.length > 0 ? args[0] : null;
+        int maxInstances = Integer.getInteger("load.instances", 4);
+        int symbols = Integer.getInteger("load.symbols", 100);
+        int clients = Integer.getInteger("load.clients", 16);
+        int window = Integer.getInteger("load.window", 8);
+        long seconds = Long.getLong("load.seconds", 5);
+
+        double single = 0;
+        for (int n = 1; n <= maxInstances; n++) {
+            Bus load = natsURL != null ? Bus.connect(natsURL) : new InProcessBus();
+            Bus[] buses = new Bus[n];
+            StockBroker[] brokers = new StockBroker[n];
+            for (int i = 0; i < n; i++) {
+                buses[i] = natsURL != null ? Bus.connect(natsURL) : load;
+                brokers[i] = new StockBroker(BROKER, i, n);
+                brokers[i].start(buses[i]);
+            }
+
+            PriceMessageEncoder encoder = new PriceMessageEncoder();
+            for (int s = 0; s < symbols; s++) {
+                int length = encoder.encode(System.currentTimeMillis(), "S" + s, 0, 1000 + s, 1);
+                load.publish(WireFormat.subject("PriceAdjustment.S" + s), Arrays.copyOf(encoder.buffer(), length));
+            }
+            load.flushBuffer();
+            TimeUnit.MILLISECONDS.sleep(500); // let every instance take the prices in
+
+            double rate = run(load, orders(symbols), clients, window, TimeUnit.SECONDS.toNanos(seconds));
+            if (n == 1) {
+                single = rate;
+            }
+            long[] handled = new long[n];
+            for (int i = 0; i < n; i++) {
+                handled[i] = brokers[i].orders();
+                brokers[i].close();
+            }
+            System.out.printf("%d instance%s: %,.0f orders/s, %.2fx one instance; per instance %s%n",
+                n, n == 1 ? "" : "s", rate, rate / single, Arrays.toString(handled));
+
+            for (int i = 0; i < n; i++) {
+                if (buses[i] != load) {
+                    buses[i].close();
+                }
+            }
+            load.close();
+        }
+        System.exit(0);
+    }
+
+    // One single-leg market order per symbol, priced at the tick the brokers were primed with
+    private static byte[][] orders(int symbols) {
+        MessageCodec codec = new MessageCodec();
+        byte[][] orders = new byte[symbols][];
+        for (int s = 0; s < symbols; s++) {
+            MessageCodec.Order order = codec.order;
+            order.clear();
+            int leg = order.add();
+            order.buy[leg] = s % 2 == 0;
+            order.symbol[leg] = "S" + s;
+            order.amount[leg] = 10;
+            order.sequence[leg] = 1;
+            orders[s] = WireFormat.MODE.equals("binary") ? codec.binary.encode(order) : codec.encode(order);
+        }
+        return orders;
+    }
+
+    // Each client keeps window orders in flight, sending the next as each
+    // one completes, until the time is up; returns completed orders per second
+    private static double run(Bus bus, byte[][] orders, int clients, int window, long nanos) throws Exception {
+        LongAdder completed = new LongAdder();
+        long started = System.nanoTime();
+        long deadline = started + nanos;
+        CompletableFuture<?>[] done = new CompletableFuture<?>[clients * window];
+        for (int c = 0; c < clients; c++) {
+            String subject = WireFormat.subject("Order." + BROKER + ".client" + c);
+            for (int w = 0; w < window; w++) {
+                CompletableFuture<Void> finished = new CompletableFuture<>();
+                done[c * window + w] = finished;
+                send(bus, subject, orders, c * window + w, deadline, completed, finished);
+            }
+        }
+        CompletableFuture.allOf(done).get();
+        return completed.sum() / ((System.nanoTime() - started) / 1e9);
+    }
+
+    private static void send(Bus bus, String subject, byte[][] orders, int next, long deadline,
+                             LongAdder completed, CompletableFuture<Void> finished) {
+        if (System.nanoTime() >= deadline) {
+            finished.complete(null);
+            return;
+        }
+        bus.requestWithTimeout(subject, null, orders[next % orders.length], Duration.ofSeconds(5))
+            .whenCompleteAsync((reply, error) -> {
+                if (error == null) {
+                    completed.increment();
+                } else {
+                    error.printStackTrace();
+                }
+                send(bus, subject, orders, next + 1, deadline, completed, finished);
+            }, clientThreads);
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.nats.client.Nats;
+import io.nats.client.impl.Headers;
+
+/**
+ * The messaging the components need: publish, subscribe through a
+ * dispatcher, and request-reply. It mirrors the parts of the NATS client
+ * they used (and keeps its Message, MessageHandler and Headers types), so
+ * a component is written once and runs over either backend:
+ *
+ * - NatsBus, a NATS connection (Bus.connect(url));
+ * - InProcessBus, which delivers messages between components in the same
+ *   JVM without a server or sockets (see InProcessRun).
+ *
+ * Subjects follow NATS rules on both, including "*" and ">" wildcards in
+ * subscriptions, and queue groups.
+ */
+public interface Bus extends AutoCloseable {
+    /**
+     * Publish a message. The bus may hand the same array to every
+     * subscriber, so the caller must not change it afterwards, and
+     * subscribers must treat it as read-only. headers may be null.
+     */
+    void publish(String subject, Headers headers, byte[] data);
+
+    default void publish(String subject, byte[] data) {
+        publish(subject, null, data);
+    }
+
+    /**
+     * Publish length bytes of data from offset, for senders that encode
+     * into a reusable buffer. Both backends keep the array they are given
+     * after publish returns (NATS until its writer thread has sent it, an
+     * InProcessBus for its subscribers), so this is the one place the bytes
+     * are copied; the caller may overwrite its buffer straight away.
+     */
+    default void publish(String subject, Headers headers, byte[] data, int offset, int length) {
+        publish(subject, headers, Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    /**
+     * Publish a request whose reply should go to replyTo, for replies that
+     * are to arrive through a dispatcher rather than a future (see
+     * createInbox).
+     */
+    void publish(String subject, String replyTo, Headers headers, byte[] data);
+
+    /**
+     * A fresh subject that nothing else will publish to, for a dispatcher
+     * to receive a reply on.
+     */
+    String createInbox();
+
+    /**
+     * Send a request on a fresh reply inbox. The future fails with a
+     * TimeoutException if no reply arrives in time, or is cancelled if
+     * nobody is subscribed to the subject.
+     */
+    CompletableFuture<Message> requestWithTimeout(String subject, Headers headers, byte[] data, Duration timeout);
+
+    /**
+     * A dispatcher delivers the messages for all of its subscriptions, in
+     * order, on one thread of its own.
+     */
+    Dispatcher createDispatcher(MessageHandler handler);
+
+    /**
+     * Push out anything buffered for sending.
+     */
+    default void flushBuffer() throws IOException {}
+
+    void close() throws InterruptedException;
+
+    interface Dispatcher {
+        Dispatcher subscribe(String subject);
+
+        /**
+         * Join a queue group: each message on the subject goes to just one
+         * of the subscriptions (across all connections) that share the
+         * queue name, so they split the load. Unsubscribe by subject.
+         */
+        Dispatcher subscribe(String subject, String queue);
+
+        Dispatcher unsubscribe(String subject);
+    }
+
+    /**
+     * A bus over a new connection to the NATS server at url.
+     */
+    static Bus connect(String url) throws IOException, InterruptedException {
+        return new NatsBus(Nats.connect(url));
+    }
+}
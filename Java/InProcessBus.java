@@ -0,0 +1,334 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.nats.client.impl.Headers;
+import io.nats.client.impl.NatsMessage;
+
+/**
+ * A Bus that delivers messages between components in the same JVM, with no
+ * server and no sockets, for single-process runs and benchmarks.
+ *
+ * It behaves like a NATS server as far as the components can tell:
+ *
+ * - Subscriptions live in a SubjectTrie, so "*" and ">" match as in NATS.
+ *   The subscriptions a subject resolves to are cached until the next
+ *   subscribe or unsubscribe, so publishing to a known subject is one map
+ *   lookup.
+ * - A queue group is one entry in the trie that hands each message to its
+ *   members in turn (NATS picks one at random).
+ * - Each dispatcher has its own thread and queue, and delivers in publish
+ *   order. A dispatcher that falls -Dbus.pendingLimit messages behind
+ *   (default 65536) is a slow consumer: further messages for it are
+ *   dropped and counted, rather than piling up without bound.
+ * - Payloads are not copied: every subscriber gets the publisher's array
+ *   (see Bus.publish).
+ * - Requests reply on "_INBOX.(bus).(n)" subjects, published like any
+ *   other message, so subscribers to "_INBOX.>" (SEC) see the replies. A
+ *   request that nobody is subscribed to is cancelled straight away, like
+ *   NATS's no-responders status.
+ */
+public class InProcessBus implements Bus {
+    private static final AtomicInteger buses = new AtomicInteger();
+
+    private final String inboxPrefix = "_INBOX.local" + buses.getAndIncrement() + ".";
+    private final int pendingLimit;
+
+    private final Object lock = new Object();
+    private final SubjectTrie<Subscription> subscriptions = new SubjectTrie<>(); // guarded by lock
+    private volatile Map<String, Subscription[]> routes = new ConcurrentHashMap<>();
+    private final List<LocalDispatcher> dispatchers = new CopyOnWriteArrayList<>();
+    private final Map<String, QueueGroup> groups = new HashMap<>(); // "(subject) (queue)"; guarded by lock
+
+    private final Map<String, CompletableFuture<Message>> requests = new ConcurrentHashMap<>();
+    private final AtomicLong nextInbox = new AtomicLong();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder requested = new LongAdder();
+    private volatile boolean closed = false;
+
+    public InProcessBus() {
+        this(Integer.getInteger("bus.pendingLimit", 1 << 16));
+    }
+
+    public InProcessBus(int pendingLimit) {
+        this.pendingLimit = pendingLimit;
+        subscribe(inboxPrefix + "*", new Subscription() {
+            void deliver(Message msg) {
+                CompletableFuture<Message> request = requests.remove(msg.getSubject());
+                if (request != null) {
+                    request.complete(msg);
+                }
+            }
+        });
+    }
+
+    public void publish(String subject, Headers headers, byte[] data) {
+        route(new LocalMessage(subject, null, headers, data));
+    }
+
+    public void publish(String subject, String replyTo, Headers headers, byte[] data) {
+        if (replyTo != null) {
+            requested.increment();
+        }
+        route(new LocalMessage(subject, replyTo, headers, data));
+    }
+
+    // Shares the request inboxes' numbering; a reply on one finds no
+    // pending request and is only delivered to the dispatcher
+    public String createInbox() {
+        return inboxPrefix + nextInbox.getAndIncrement();
+    }
+
+    public CompletableFuture<Message> requestWithTimeout(String subject, Headers headers, byte[] data, Duration timeout) {
+        String inbox = inboxPrefix + nextInbox.getAndIncrement();
+        requested.increment();
+        CompletableFuture<Message> request = new CompletableFuture<>();
+        requests.put(inbox, request);
+        if (route(new LocalMessage(subject, inbox, headers, data)) == 0) {
+            requests.remove(inbox);
+            request.cancel(false); // no responders
+            return request;
+        }
+        request.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS)
+            .whenComplete((reply, error) -> requests.remove(inbox));
+        return request;
+    }
+
+    public Dispatcher createDispatcher(MessageHandler handler) {
+        LocalDispatcher dispatcher = new LocalDispatcher(handler, dispatchers.size());
+        dispatchers.add(dispatcher);
+        return dispatcher;
+    }
+
+    // returns the number of subscriptions the message went to
+    private int route(Message msg) {
+        if (closed) {
+            throw new IllegalStateException("Bus is closed");
+        }
+        published.increment();
+        Map<String, Subscription[]> cache = routes; // read before matching; see subscribe()
+        Subscription[] targets = cache.get(msg.getSubject());
+        if (targets == null) {
+            synchronized (lock) {
+                targets = subscriptions.match(msg.getSubject()).toArray(new Subscription[0]);
+            }
+            cache.put(msg.getSubject(), targets);
+        }
+        for (Subscription target : targets) {
+            target.deliver(msg);
+        }
+        return targets.length;
+    }
+
+    // A change starts a new cache; a publisher still holding the old one
+    // may fill it with stale routes, but nobody reads that one again
+    private void subscribe(String subject, Subscription subscription) {
+        synchronized (lock) {
+            subscriptions.add(subject, subscription);
+            routes = new ConcurrentHashMap<>();
+        }
+    }
+
+    private boolean unsubscribe(String subject, Subscription subscription) {
+        synchronized (lock) {
+            boolean removed = subscription.group != null
+                ? subscription.group.remove(subscription)
+                : subscriptions.remove(subject, subscription);
+            routes = new ConcurrentHashMap<>();
+            return removed;
+        }
+    }
+
+    // The group is in the trie only while it has members
+    private void subscribe(String subject, String queue, Subscription member) {
+        synchronized (lock) {
+            QueueGroup group = groups.get(subject + " " + queue);
+            if (group == null) {
+                group = new QueueGroup(subject, queue);
+                groups.put(subject + " " + queue, group);
+                subscriptions.add(subject, group);
+                routes = new ConcurrentHashMap<>();
+            }
+            member.group = group;
+            group.add(member);
+        }
+    }
+
+    /**
+     * Messages published, deliveries made, deliveries dropped and requests
+     * (messages with a reply subject) sent so far.
+     */
+    public long published() { return published.sum(); }
+
+    public long delivered() { return delivered.sum(); }
+
+    public long dropped() { return dropped.sum(); }
+
+    public long requests() { return requested.sum(); }
+
+    /**
+     * Deliver everything already queued, then stop the dispatchers.
+     */
+    public void close() throws InterruptedException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (LocalDispatcher dispatcher : dispatchers) {
+            dispatcher.running = false;
+        }
+        for (LocalDispatcher dispatcher : dispatchers) {
+            dispatcher.thread.join();
+        }
+    }
+
+    private abstract static class Subscription {
+        QueueGroup group; // if this is a member of one
+
+        abstract void deliver(Message msg);
+    }
+
+    private class QueueGroup extends Subscription {
+        final String subject;
+        final String queue;
+        volatile Subscription[] members = new Subscription[0]; // replaced under lock
+        final AtomicInteger next = new AtomicInteger();
+
+        QueueGroup(String subject, String queue) {
+            this.subject = subject;
+            this.queue = queue;
+        }
+
+        void deliver(Message msg) {
+            Subscription[] to = members;
+            if (to.length > 0) {
+                to[Math.floorMod(next.getAndIncrement(), to.length)].deliver(msg);
+            }
+        }
+
+        void add(Subscription member) {
+            Subscription[] grown = Arrays.copyOf(members, members.length + 1);
+            grown[members.length] = member;
+            members = grown;
+        }
+
+        boolean remove(Subscription member) {
+            List<Subscription> left = new ArrayList<>(Arrays.asList(members));
+            boolean removed = left.remove(member);
+            members = left.toArray(new Subscription[0]);
+            if (members.length == 0) {
+                groups.remove(subject + " " + queue);
+                subscriptions.remove(subject, this);
+            }
+            return removed;
+        }
+    }
+
+    private class LocalDispatcher implements Dispatcher, Runnable {
+        final MessageHandler handler;
+        final BlockingQueue<Message> queue = new LinkedBlockingQueue<>(pendingLimit);
+        final Map<String, Subscription> subscribed = new HashMap<>(); // guarded by lock
+        final Thread thread;
+        volatile boolean running = true;
+        boolean slow = false;
+
+        LocalDispatcher(MessageHandler handler, int n) {
+            this.handler = handler;
+            thread = new Thread(this, "bus-dispatcher-" + n);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public Dispatcher subscribe(String subject) {
+            Subscription subscription = subscription();
+            synchronized (lock) {
+                subscribed.put(subject, subscription);
+            }
+            InProcessBus.this.subscribe(subject, subscription);
+            return this;
+        }
+
+        public Dispatcher subscribe(String subject, String queueName) {
+            Subscription subscription = subscription();
+            synchronized (lock) {
+                subscribed.put(subject, subscription);
+            }
+            InProcessBus.this.subscribe(subject, queueName, subscription);
+            return this;
+        }
+
+        private Subscription subscription() {
+            return new Subscription() {
+                void deliver(Message msg) {
+                    if (queue.offer(msg)) {
+                        delivered.increment();
+                    } else {
+                        dropped.increment();
+                        if (!slow) {
+                            slow = true; // a benign race; it only gates the warning
+                            System.err.println("Slow consumer on " + thread.getName() + ", dropping messages");
+                        }
+                    }
+                }
+            };
+        }
+
+        public Dispatcher unsubscribe(String subject) {
+            Subscription subscription;
+            synchronized (lock) {
+                subscription = subscribed.remove(subject);
+            }
+            if (subscription != null) {
+                InProcessBus.this.unsubscribe(subject, subscription);
+            }
+            return this;
+        }
+
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Message msg = queue.poll(10, TimeUnit.MILLISECONDS);
+                    if (msg != null) {
+                        handler.onMessage(msg);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A message as delivered in-process: just the fields, without the
+     * subject validation and wire encoding a NatsMessage does on
+     * construction.
+     */
+    private static class LocalMessage extends NatsMessage {
+        LocalMessage(String subject, String replyTo, Headers headers, byte[] data) {
+            this.subject = subject;
+            this.replyTo = replyTo;
+            this.headers = headers;
+            this.data = data;
+            this.dataLen = data.length;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole system in one JVM over an InProcessBus: StockPublisher,
+ * -Dlocal.brokers StockBrokers (default 2), -Dlocal.clients
+ * StockBrokerClients (default 8, spread round-robin over the brokers),
+ * StockMonitor logging every stock, and SEC. No NATS server is needed, so
+ * it makes a hermetic end-to-end throughput test.
+ *
+ * Everything is written under -Dlocal.dir (default a new temp directory):
+ * the clients trade on copies of strategy-N.xml and portfolio-N.xml from
+ * the working directory, so the originals are left alone.
+ *
+ * It runs for -Dlocal.seconds (default 10), printing throughput each
+ * second, then shuts everything down in order and prints totals. Markets
+ * tick at -Dmarket.tps (default 10000 here); the other -Dmarket.*,
+ * -Dorders.*, -Dbars.*, -Dprices.conflate and -Dbus.pendingLimit knobs apply as
+ * usual, and -Dtrace records latencies as over NATS.
+ */
+public class InProcessRun {
+    public static void main(String... args) throws Exception {
+        int brokerCount = Integer.getInteger("local.brokers", 2);
+        int clientCount = Integer.getInteger("local.clients", 8);
+        long seconds = Long.getLong("local.seconds", 10);
+        Path dir = System.getProperty("local.dir") != null
+            ? Files.createDirectories(Paths.get(System.getProperty("local.dir")))
+            : Files.createTempDirectory("in-process-run");
+        if (System.getProperty("market.tps") == null) {
+            System.setProperty("market.tps", "10000"); // quiet, load-generating markets
+        }
+        System.out.println("Running " + brokerCount + " brokers and " + clientCount + " clients in " + dir);
+
+        InProcessBus bus = new InProcessBus();
+        Latency.start("InProcessRun");
+
+        SEC.start(bus, dir);
+        Path logDir = Files.createDirectories(dir.resolve("logs"));
+        StockMonitor.start(bus, new String[] { "*" }, logDir);
+
+        StockBroker[] brokers = new StockBroker[brokerCount];
+        for (int i = 0; i < brokerCount; i++) {
+            brokers[i] = new StockBroker("broker" + i);
+            brokers[i].start(bus);
+        }
+
+        StockBrokerClient[] clients = new StockBrokerClient[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            String name = "client" + i;
+            int n = i % 4 + 1;
+            Path strategy = Files.copy(Paths.get("strategy-" + n + ".xml"), dir.resolve("strategy-" + name + ".xml"),
+                StandardCopyOption.REPLACE_EXISTING);
+            Path portfolio = Files.copy(Paths.get("portfolio-" + n + ".xml"), dir.resolve("portfolio-" + name + ".xml"),
+                StandardCopyOption.REPLACE_EXISTING);
+            clients[i] = new StockBrokerClient(name, "broker" + i % brokerCount, strategy.toString(), portfolio.toString());
+            clients[i].verbose = false;
+            clients[i].start(bus);
+        }
+
+        MarketSimulator simulator = StockPublisher.start(bus);
+        long started = System.nanoTime();
+        long lastTicks = 0, lastPublished = 0, lastDelivered = 0, lastRequests = 0;
+        for (long s = 1; s <= seconds; s++) {
+            TimeUnit.NANOSECONDS.sleep(started + TimeUnit.SECONDS.toNanos(s) - System.nanoTime());
+            long ticks = simulator.ticks(), published = bus.published(), delivered = bus.delivered(), requests = bus.requests();
+            System.out.println(s + "s: ticks/s=" + (ticks - lastTicks) + " orders/s=" + (requests - lastRequests)
+                + " messages/s=" + (published - lastPublished) + " deliveries/s=" + (delivered - lastDelivered)
+                + " dropped=" + bus.dropped());
+            lastTicks = ticks;
+            lastPublished = published;
+            lastDelivered = delivered;
+            lastRequests = requests;
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+
+        // Stop the source first, let the orders already out come back, then
+        // drain the bus before the logs it feeds are closed
+        simulator.close();
+        long sent = 0, filled = 0;
+        for (StockBrokerClient client : clients) {
+            client.close();
+            sent += client.orders().sent();
+            filled += client.orders().filled();
+        }
+        StockPublisher.stop(); // closes the bus once the publisher has drained
+        for (StockBroker broker : brokers) {
+            broker.close();
+        }
+        StockMonitor.stop();
+        SEC.stop();
+
+        System.out.printf("%d ticks, %d orders sent, %d legs filled in %.1fs (%.0f ticks/s, %.0f orders/s)%n",
+            simulator.ticks(), sent, filled, elapsed, simulator.ticks() / elapsed, sent / elapsed);
+        System.out.println("bus: published=" + bus.published() + " delivered=" + bus.delivered()
+            + " dropped=" + bus.dropped());
+        Latency.stop();
+    }
+}
@@ -0,0 +1,241 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.nats.client.Message;
+import io.nats.client.impl.Headers;
+
+/**
+ * Tick-to-trade latency tracing, switched on with -Dtrace (or -Dtrace=true).
+ *
+ * Each hop stamps the time it handled a message into a NATS header (the
+ * XML and binary bodies are untouched), and carries the earlier stamps
+ * along, so the last hop sees the whole trip:
+ *
+ *   Trace-Published        StockMarket ticked (StockPublisher)
+ *   Trace-Client-Received  the price reached StockBrokerClient
+ *   Trace-Ordered          the client sent an order on it
+ *   Trace-Broker-Received  StockBroker received the order
+ *   Trace-Broker-Replied   StockBroker sent the receipt
+ *
+ * and the client records the time it finished applying the fill. Each
+ * process records the differences it can see into histograms, and prints
+ * their percentiles for the last interval every -Dtrace.dumpMillis
+ * (default 10000) and in total on shutdown (stop()).
+ *
+ * Stamps are wall-clock nanoseconds, taken from the monotonic clock offset
+ * by the wall clock at startup, so hops between processes on different
+ * machines are only as accurate as their clocks are in sync; a difference
+ * that comes out negative is counted as zero.
+ *
+ * With -Dtrace unset, ENABLED is a constant false, every traced branch is
+ * compiled away, and messages carry no headers.
+ */
+public class Latency {
+    public static final boolean ENABLED = !System.getProperty("trace", "false").equals("false");
+
+    public static final String PUBLISHED = "Trace-Published";
+    public static final String CLIENT_RECEIVED = "Trace-Client-Received";
+    public static final String ORDERED = "Trace-Ordered";
+    public static final String BROKER_RECEIVED = "Trace-Broker-Received";
+    public static final String BROKER_REPLIED = "Trace-Broker-Replied";
+
+    private static final long EPOCH_OFFSET;
+    static {
+        Instant wall = Instant.now();
+        EPOCH_OFFSET = wall.getEpochSecond() * 1_000_000_000L + wall.getNano() - System.nanoTime();
+    }
+
+    private static final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private static String component = "";
+
+    /**
+     * @return the current time in nanoseconds since the epoch
+     */
+    public static long now() {
+        return System.nanoTime() + EPOCH_OFFSET;
+    }
+
+    /**
+     * @return the stamp in this message's header, or -1 if it has none
+     */
+    public static long stamp(Message msg, String header) {
+        if (!msg.hasHeaders()) {
+            return -1;
+        }
+        String value = msg.getHeaders().getFirst(header);
+        return value == null ? -1 : Long.parseLong(value);
+    }
+
+    public static Headers stamp(Headers headers, String header, long nanos) {
+        if (nanos >= 0) {
+            headers.put(header, Long.toString(nanos));
+        }
+        return headers;
+    }
+
+    /**
+     * The histogram for one stage, created (and included in the dumps) on
+     * first use.
+     */
+    public static synchronized Histogram histogram(String stage) {
+        return histograms.computeIfAbsent(stage, Histogram::new);
+    }
+
+    /**
+     * Start dumping this process's histograms periodically, if tracing is on.
+     */
+    public static void start(String name) {
+        if (!ENABLED) {
+            return;
+        }
+        component = name;
+        long interval = Long.getLong("trace.dumpMillis", 10_000);
+        Thread dumper = new Thread(() -> {
+            Map<Histogram, long[]> last = new LinkedHashMap<>();
+            while (true) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                dump(component + ", last " + interval + " ms", last);
+            }
+        }, "latency-dumper");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    /**
+     * Print the totals; called last on shutdown, once everything in flight
+     * has been recorded.
+     */
+    public static void stop() {
+        if (ENABLED) {
+            dump(component + ", total", null);
+        }
+    }
+
+    // Percentiles since the previous snapshot in last, or in total if last is null
+    private static void dump(String title, Map<Histogram, long[]> last) {
+        List<Histogram> stages;
+        synchronized (Latency.class) {
+            stages = new ArrayList<>(histograms.values());
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("Latency (").append(title).append("):\n");
+        out.append(String.format("  %-22s %9s %9s %9s %9s %9s %9s %9s%n",
+            "stage", "count", "p50", "p90", "p99", "p99.9", "p99.99", "max"));
+        for (Histogram stage : stages) {
+            long[] counts = stage.snapshot();
+            if (last != null) {
+                long[] previous = last.put(stage, counts.clone());
+                if (previous != null) {
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] -= previous[i];
+                    }
+                }
+            }
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                continue;
+            }
+            out.append(String.format("  %-22s %9d %9s %9s %9s %9s %9s %9s%n", stage.name, total,
+                format(Histogram.percentile(counts, total, 0.50)),
+                format(Histogram.percentile(counts, total, 0.90)),
+                format(Histogram.percentile(counts, total, 0.99)),
+                format(Histogram.percentile(counts, total, 0.999)),
+                format(Histogram.percentile(counts, total, 0.9999)),
+                format(Histogram.percentile(counts, total, 1.0))));
+        }
+        System.out.print(out);
+    }
+
+    private static String format(long nanos) {
+        if (nanos < 10_000) {
+            return nanos + "ns";
+        } else if (nanos < 10_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 10_000_000_000L) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.1fs", nanos / 1e9);
+    }
+
+    /**
+     * A log-linear histogram of nanosecond latencies, safe to record into
+     * from any number of threads: one atomic increment per value, no locks
+     * and no allocation. Each power of two is split into 128 buckets, so a
+     * percentile is reported within 1% (always rounded up), from 1ns up to
+     * about 18 minutes; anything longer lands in the top bucket.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 8;
+        private static final int HALF = 1 << (SUB_BITS - 1);
+        private static final int MAX_BITS = 40;
+        private static final long MAX = (1L << MAX_BITS) - 1;
+        private static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * HALF;
+
+        final String name;
+        // empty when tracing is off, since nothing will ever be recorded
+        private final AtomicLongArray counts = new AtomicLongArray(ENABLED ? BUCKETS : 0);
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            counts.incrementAndGet(index(Math.min(Math.max(nanos, 0), MAX)));
+        }
+
+        /**
+         * Record the time between two stamps, if both were taken.
+         */
+        public void record(long from, long to) {
+            if (from >= 0 && to >= 0) {
+                record(to - from);
+            }
+        }
+
+        long[] snapshot() {
+            long[] copy = new long[counts.length()];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        // values below 2*HALF get a bucket each; above that, the top
+        // SUB_BITS bits pick one of HALF buckets per power of two
+        static int index(long value) {
+            int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        // the largest value that lands in this bucket
+        static long highest(int index) {
+            int shift = index < 2 * HALF ? 0 : index / HALF - 1;
+            long sub = index - (long) shift * HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        static long percentile(long[] counts, long total, double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highest(i);
+                }
+            }
+            return highest(counts.length - 1);
+        }
+    }
+}
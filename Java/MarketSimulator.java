@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Drives any number of StockMarkets from a small, fixed set of threads
+ * instead of one sleeping thread per market.
+ *
+ * Markets are dealt out round-robin to -Dmarket.threads driver threads
+ * (default 1). Each driver keeps its markets in a binary min-heap ordered
+ * by when each is next due (primitive arrays, no per-tick objects), ticks
+ * every market that is due, and parks until the next one is. A driver that
+ * falls behind ticks back-to-back without parking until it has caught up,
+ * so the long-run rate is what the markets' pacing asks for.
+ *
+ * As a load generator, loadTest(tps) re-paces every market at a fixed
+ * interval so that together they produce tps ticks per second, staggered
+ * so the ticks are spread evenly, and reports the achieved rate each
+ * second.
+ */
+public class MarketSimulator implements AutoCloseable {
+    private final List<StockMarket> markets = new ArrayList<>();
+    private final int threads;
+    private final List<Driver> drivers = new ArrayList<>();
+    private volatile boolean running = false;
+    private Thread reporter;
+
+    public MarketSimulator(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void add(StockMarket market) {
+        markets.add(market);
+    }
+
+    public int size() {
+        return markets.size();
+    }
+
+    /**
+     * Pace every market at a fixed interval adding up to tps ticks a
+     * second in total, and print the achieved rate once a second.
+     */
+    public void loadTest(long tps) {
+        long interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) * markets.size() / Math.max(1, tps));
+        for (StockMarket market : markets) {
+            market.pace(StockMarket.Pacing.FIXED, interval);
+        }
+        reporter = new Thread(() -> {
+            long last = 0;
+            while (running) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = ticks();
+                System.out.printf("%,d ticks/s (target %,d)%n", now - last, tps);
+                last = now;
+            }
+        }, "market-reporter");
+        reporter.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        List<List<StockMarket>> shards = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            shards.add(new ArrayList<>());
+        }
+        for (int i = 0; i < markets.size(); i++) {
+            shards.get(i % threads).add(markets.get(i));
+        }
+        long now = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            if (shards.get(t).isEmpty()) {
+                continue;
+            }
+            Driver driver = new Driver(shards.get(t), now, t, threads);
+            drivers.add(driver);
+            Thread thread = new Thread(driver, "market-driver-" + t);
+            thread.setDaemon(true);
+            driver.thread = thread;
+            thread.start();
+        }
+        if (reporter != null) {
+            reporter.start();
+        }
+    }
+
+    /**
+     * @return the total number of ticks published so far
+     */
+    public long ticks() {
+        long total = 0;
+        for (Driver driver : drivers) {
+            total += driver.ticks.get();
+        }
+        return total;
+    }
+
+    public void close() throws InterruptedException {
+        running = false;
+        for (Driver driver : drivers) {
+            LockSupport.unpark(driver.thread);
+            driver.thread.join();
+        }
+        if (reporter != null) {
+            reporter.interrupt();
+        }
+    }
+
+    /**
+     * One thread's markets, in a heap keyed by next due time.
+     */
+    private class Driver implements Runnable {
+        final StockMarket[] markets;
+        final long[] due;
+        final int[] heap; // market indices; heap[0] is due soonest
+        final AtomicLong ticks = new AtomicLong();
+        Thread thread;
+
+        Driver(List<StockMarket> shard, long start, int offset, int stride) {
+            markets = shard.toArray(new StockMarket[0]);
+            due = new long[markets.length];
+            heap = new int[markets.length];
+            for (int i = 0; i < markets.length; i++) {
+                // spread first ticks over the first interval, interleaved with the other drivers
+                long first = markets[i].nextDelayNanos();
+                long stagger = first * ((long) i * stride + offset) / ((long) markets.length * stride);
+                due[i] = start + stagger;
+                heap[i] = i;
+            }
+            for (int i = markets.length / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        public void run() {
+            long count = 0;
+            while (running) {
+                long now = System.nanoTime();
+                int market = heap[0];
+                long wait = due[market] - now;
+                if (wait > 0) {
+                    ticks.lazySet(count);
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                markets[market].tick();
+                if ((++count & 1023) == 0) {
+                    ticks.lazySet(count);
+                }
+                due[market] += markets[market].nextDelayNanos();
+                siftDown(0);
+            }
+            ticks.set(count);
+        }
+
+        private void siftDown(int at) {
+            int market = heap[at];
+            int n = heap.length;
+            while (true) {
+                int child = 2 * at + 1;
+                if (child >= n) {
+                    break;
+                }
+                if (child + 1 < n && due[heap[child + 1]] < due[heap[child]]) {
+                    child++;
+                }
+                if (due[heap[child]] >= due[market]) {
+                    break;
+                }
+                heap[at] = heap[child];
+                at = child;
+            }
+            heap[at] = market;
+        }
+    }
+
+    /**
+     * Build count markets of symbolsEach generated symbols ("X" + a base-36
+     * number, so they fit BinaryCodec's 8 bytes), market i seeded from
+     * seed + i so a run can be repeated exactly, each publishing through
+     * a sink of its own from sinks.
+     */
+    public static List<StockMarket> generate(Supplier<PriceSink> sinks, int count, int symbolsEach, long seed) {
+        List<StockMarket> generated = new ArrayList<>();
+        int symbol = 0;
+        for (int m = 0; m < count; m++) {
+            String[] symbols = new String[symbolsEach];
+            for (int s = 0; s < symbolsEach; s++) {
+                symbols[s] = "X" + Integer.toString(symbol++, 36).toUpperCase();
+            }
+            StockMarket market = new StockMarket(sinks.get(), new SplittableRandom(seed + m), symbols);
+            market.verbose = false;
+            generated.add(market);
+        }
+        return generated;
+    }
+}
@@ -0,0 +1,787 @@
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Decodes the messages that travel over NATS in one forward pass over the
+ * raw msg.getData() bytes, straight into mutable records that are reused
+ * from message to message. There is no DOM, no XPath, and no String copy
+ * of the payload: numbers are parsed in place, symbols come out of a
+ * SymbolTable (so the same String instance is handed back every time), and
+ * the sent timestamp is left as a range of the original bytes.
+ *
+ * The messages are price adjustments, orders, and order receipts, which
+ * either complete or are rejected:
+ *
+ *   <message sent="..."><stock><name/><adjustment/><adjustedPrice/>[<sequence/>]</stock>...</message>
+ *   <order [id="..."]><buy symbol="..." amount="..." [limit="..."] [sequence="..."] /></order>
+ *   <orderReceipt><buy symbol="..." amount="..." /><complete amount="..." /></orderReceipt>
+ *   <orderReceipt><buy symbol="..." amount="..." /><rejected reason="..." /></orderReceipt>
+ *
+ * An order may carry any number of buy/sell legs. The receipt for a
+ * multi-leg order reports each leg's own result on the leg itself
+ * ({@code complete="..."} or {@code rejected="..."}), followed by the total
+ * of the filled legs in {@code <complete>}, or {@code <rejected>} if none
+ * were filled; single-leg receipts keep the layout above. A leg with a
+ * limit price (in cents) is a limit order, and whatever the broker left
+ * resting on its book comes back as {@code resting="..."} on the receipt's
+ * leg. An order leg's sequence is that of the price it was decided on; a
+ * receipt leg's is that of the price it was filled at. An order's id is
+ * the client's number for it, kept when the order is resent, so a broker
+ * can recognise a retry.
+ *
+ * This is not a general XML parser. It understands elements, attributes,
+ * text, comments and the XML declaration, which is all these messages
+ * use. Symbols and reasons are written with &amp;, &lt;, &gt;, &quot; and
+ * &apos; escaped and anything outside ASCII as a character reference, and
+ * read back with those undone. A number that doesn't fit its field is a
+ * NumberFormatException, like any other malformed number. Payloads in the BinaryCodec format are recognized by their magic
+ * byte and decoded into the same records. A codec is not thread-safe;
+ * give each dispatcher its own.
+ */
+public class MessageCodec {
+    public static final int UNKNOWN = 0;
+    public static final int PRICE_MESSAGE = 1;
+    public static final int ORDER = 2;
+    public static final int ORDER_RECEIPT = 3;
+
+    private static final byte[] MESSAGE = ascii("message");
+    private static final byte[] STOCK = ascii("stock");
+    private static final byte[] NAME = ascii("name");
+    private static final byte[] ADJUSTMENT = ascii("adjustment");
+    private static final byte[] ADJUSTED_PRICE = ascii("adjustedPrice");
+    private static final byte[] SEQUENCE = ascii("sequence");
+    private static final byte[] SENT = ascii("sent");
+    private static final byte[] ORDER_TAG = ascii("order");
+    private static final byte[] ORDER_RECEIPT_TAG = ascii("orderReceipt");
+    private static final byte[] BUY = ascii("buy");
+    private static final byte[] SELL = ascii("sell");
+    private static final byte[] COMPLETE = ascii("complete");
+    private static final byte[] REJECTED = ascii("rejected");
+    private static final byte[] SYMBOL = ascii("symbol");
+    private static final byte[] AMOUNT = ascii("amount");
+    private static final byte[] REASON = ascii("reason");
+    private static final byte[] LIMIT = ascii("limit");
+    private static final byte[] RESTING = ascii("resting");
+    private static final byte[] ID = ascii("id");
+
+    // tokenizer events
+    private static final int EOF = 0;
+    private static final int START = 1;
+    private static final int END = 2;
+    private static final int TEXT = 3;
+
+    public final PriceMessage priceMessage = new PriceMessage();
+    public final Order order = new Order();
+    public final OrderReceipt receipt = new OrderReceipt();
+
+    public final BinaryCodec binary;
+
+    private final SymbolTable symbols;
+
+    // tokenizer state
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private int nameStart;
+    private int nameEnd;
+    private int attrsStart;
+    private int attrsEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    // encoder scratch space
+    private byte[] out = new byte[128];
+    private int outLength;
+
+    public MessageCodec() {
+        this(new SymbolTable());
+    }
+
+    public MessageCodec(SymbolTable symbols) {
+        this.symbols = symbols;
+        this.binary = new BinaryCodec(symbols);
+    }
+
+    /**
+     * Decode whichever shape the bytes hold into the matching record.
+     * @return PRICE_MESSAGE, ORDER, ORDER_RECEIPT, or UNKNOWN
+     */
+    public int decode(byte[] data) {
+        if (BinaryCodec.isBinary(data)) {
+            return binary.decode(data, priceMessage, order, receipt);
+        }
+        return decode(data, 0, data.length);
+    }
+
+    public int decode(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+        if (!nextStart()) {
+            return UNKNOWN;
+        }
+        if (nameIs(MESSAGE)) {
+            readPriceMessage();
+            return PRICE_MESSAGE;
+        }
+        if (nameIs(ORDER_TAG)) {
+            readLegs(order, ORDER_TAG);
+            return ORDER;
+        }
+        if (nameIs(ORDER_RECEIPT_TAG)) {
+            readLegs(receipt, ORDER_RECEIPT_TAG);
+            return ORDER_RECEIPT;
+        }
+        return UNKNOWN;
+    }
+
+    public PriceMessage decodePriceMessage(byte[] data) {
+        if (decode(data) != PRICE_MESSAGE) {
+            throw new IllegalArgumentException("not a <message>");
+        }
+        return priceMessage;
+    }
+
+    public Order decodeOrder(byte[] data) {
+        if (decode(data) != ORDER) {
+            throw new IllegalArgumentException("not an <order>");
+        }
+        return order;
+    }
+
+    public OrderReceipt decodeReceipt(byte[] data) {
+        if (decode(data) != ORDER_RECEIPT) {
+            throw new IllegalArgumentException("not an <orderReceipt>");
+        }
+        return receipt;
+    }
+
+    /**
+     * Quick check of the root element, without decoding anything else.
+     */
+    public int peek(byte[] data) {
+        if (BinaryCodec.isBinary(data)) {
+            switch (data[1]) {
+                case BinaryCodec.PRICE_MESSAGE: return PRICE_MESSAGE;
+                case BinaryCodec.SEQUENCED_PRICE_MESSAGE: return PRICE_MESSAGE;
+                case BinaryCodec.ORDER: return ORDER;
+                case BinaryCodec.EXTENDED_ORDER: return ORDER;
+                case BinaryCodec.ORDER_RECEIPT: return ORDER_RECEIPT;
+                case BinaryCodec.EXTENDED_RECEIPT: return ORDER_RECEIPT;
+                case BinaryCodec.REJECTED_RECEIPT: return ORDER_RECEIPT;
+                default: return UNKNOWN;
+            }
+        }
+        reset(data, 0, data.length);
+        if (!nextStart()) {
+            return UNKNOWN;
+        }
+        if (nameIs(MESSAGE)) return PRICE_MESSAGE;
+        if (nameIs(ORDER_TAG)) return ORDER;
+        if (nameIs(ORDER_RECEIPT_TAG)) return ORDER_RECEIPT;
+        return UNKNOWN;
+    }
+
+    // ---- encoding -------------------------------------------------------
+
+    /**
+     * @return {@code <order id="..."><buy symbol="..." amount="..." />...</order>}, without
+     * the id if it is 0
+     */
+    public byte[] encode(Order order) {
+        outLength = 0;
+        if (order.id != 0) {
+            write("<order id=\"");
+            writeLong(order.id);
+            write("\">");
+        } else {
+            write("<order>");
+        }
+        writeLegs(order);
+        write("</order>");
+        return Arrays.copyOf(out, outLength);
+    }
+
+    /**
+     * @return {@code <orderReceipt><buy symbol="..." amount="..." /><complete amount="..." /></orderReceipt>},
+     * with {@code <rejected reason="..." />} in place of complete if the order was rejected
+     */
+    public byte[] encode(OrderReceipt receipt) {
+        outLength = 0;
+        write("<orderReceipt>");
+        if (receipt.legs == 1) {
+            writeLegs(receipt);
+        } else {
+            writeLegResults(receipt);
+        }
+        if (receipt.rejected != null) {
+            write("<rejected reason=\"");
+            writeEscaped(receipt.rejected);
+            write("\" /></orderReceipt>");
+        } else {
+            write("<complete amount=\"");
+            writeInt(receipt.complete);
+            write("\" /></orderReceipt>");
+        }
+        return Arrays.copyOf(out, outLength);
+    }
+
+    private void writeLegs(Order order) {
+        for (int i = 0; i < order.legs; i++) {
+            write(order.buy[i] ? "<buy symbol=\"" : "<sell symbol=\"");
+            writeEscaped(order.symbol[i]);
+            write("\" amount=\"");
+            writeInt(order.amount[i]);
+            writeLegOptions(order, i);
+            write("\" />");
+        }
+    }
+
+    private void writeLegOptions(Order order, int leg) {
+        if (order.limit[leg] != Order.MARKET) {
+            write("\" limit=\"");
+            writeInt(order.limit[leg]);
+        }
+        if (order.sequence[leg] != 0) {
+            write("\" sequence=\"");
+            writeLong(order.sequence[leg]);
+        }
+        if (order instanceof OrderReceipt && ((OrderReceipt) order).legResting[leg] > 0) {
+            write("\" resting=\"");
+            writeInt(((OrderReceipt) order).legResting[leg]);
+        }
+    }
+
+    private void writeLegResults(OrderReceipt receipt) {
+        for (int i = 0; i < receipt.legs; i++) {
+            write(receipt.buy[i] ? "<buy symbol=\"" : "<sell symbol=\"");
+            writeEscaped(receipt.symbol[i]);
+            write("\" amount=\"");
+            writeInt(receipt.amount[i]);
+            writeLegOptions(receipt, i);
+            if (receipt.legRejected[i] != null) {
+                write("\" rejected=\"");
+                writeEscaped(receipt.legRejected[i]);
+            } else {
+                write("\" complete=\"");
+                writeInt(receipt.legComplete[i]);
+            }
+            write("\" />");
+        }
+    }
+
+    private void write(String s) {
+        int n = s.length();
+        ensureOut(n);
+        for (int i = 0; i < n; i++) {
+            out[outLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    // An attribute value: markup characters as entities, anything outside
+    // ASCII as a character reference, so the payload stays one byte per char
+    private void writeEscaped(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < ' ' || c > '~' || c == '&' || c == '<' || c == '>' || c == '"' || c == '\'') {
+                writeEscaped(s, i);
+                return;
+            }
+        }
+        write(s);
+    }
+
+    private void writeEscaped(String s, int from) {
+        write(s.substring(0, from));
+        for (int i = from; i < s.length(); i = s.offsetByCodePoints(i, 1)) {
+            int c = s.codePointAt(i);
+            switch (c) {
+                case '&': write("&amp;"); break;
+                case '<': write("&lt;"); break;
+                case '>': write("&gt;"); break;
+                case '"': write("&quot;"); break;
+                case '\'': write("&apos;"); break;
+                default:
+                    if (c < ' ' || c > '~') {
+                        write("&#");
+                        writeInt(c);
+                        write(";");
+                    } else {
+                        ensureOut(1);
+                        out[outLength++] = (byte) c;
+                    }
+            }
+        }
+    }
+
+    private void writeInt(int value) {
+        write(Integer.toString(value));
+    }
+
+    private void writeLong(long value) {
+        write(Long.toString(value));
+    }
+
+    private void ensureOut(int extra) {
+        if (outLength + extra > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, outLength + extra));
+        }
+    }
+
+    // ---- decoding -------------------------------------------------------
+
+    private void readPriceMessage() {
+        PriceMessage m = priceMessage;
+        m.source = buf;
+        m.sentMillis = -1;
+        m.sentStart = 0;
+        m.sentLength = 0;
+        m.count = 0;
+        if (attribute(SENT)) {
+            m.sentStart = valueStart;
+            m.sentLength = valueEnd - valueStart;
+        }
+
+        int stock = -1;
+        byte[] field = null;
+        for (int event = next(); event != EOF; event = next()) {
+            if (event == START) {
+                if (nameIs(STOCK)) {
+                    stock = m.add();
+                } else if (stock >= 0 && (nameIs(NAME) || nameIs(ADJUSTMENT) || nameIs(ADJUSTED_PRICE) || nameIs(SEQUENCE))) {
+                    field = nameIs(NAME) ? NAME : nameIs(ADJUSTMENT) ? ADJUSTMENT : nameIs(ADJUSTED_PRICE) ? ADJUSTED_PRICE : SEQUENCE;
+                }
+            } else if (event == TEXT && field != null) {
+                trim(valueStart, valueEnd);
+                if (field == NAME) {
+                    m.symbol[stock] = symbol(valueStart, valueEnd);
+                } else if (field == ADJUSTMENT) {
+                    m.adjustment[stock] = parseInt(valueStart, valueEnd);
+                } else if (field == SEQUENCE) {
+                    m.sequence[stock] = parseLong(valueStart, valueEnd);
+                } else {
+                    m.adjustedPrice[stock] = parseInt(valueStart, valueEnd);
+                }
+            } else if (event == END) {
+                if (nameIs(MESSAGE)) {
+                    break;
+                }
+                field = null;
+            }
+        }
+    }
+
+    private void readLegs(Order order, byte[] root) {
+        order.legs = 0;
+        order.id = attribute(ID) ? parseLong(valueStart, valueEnd) : 0;
+        if (order instanceof OrderReceipt) {
+            ((OrderReceipt) order).complete = 0;
+            ((OrderReceipt) order).rejected = null;
+        }
+        for (int event = next(); event != EOF; event = next()) {
+            if (event == START) {
+                boolean buy = nameIs(BUY);
+                if (buy || nameIs(SELL)) {
+                    int leg = order.add();
+                    order.buy[leg] = buy;
+                    order.symbol[leg] = attribute(SYMBOL) ? symbol(valueStart, valueEnd) : null;
+                    order.amount[leg] = attribute(AMOUNT) ? parseInt(valueStart, valueEnd) : 0;
+                    if (attribute(LIMIT)) {
+                        order.limit[leg] = parseInt(valueStart, valueEnd);
+                    }
+                    if (attribute(SEQUENCE)) {
+                        order.sequence[leg] = parseLong(valueStart, valueEnd);
+                    }
+                    if (order instanceof OrderReceipt) {
+                        OrderReceipt receipt = (OrderReceipt) order;
+                        if (attribute(RESTING)) {
+                            receipt.legResting[leg] = parseInt(valueStart, valueEnd);
+                        }
+                        if (attribute(COMPLETE)) {
+                            receipt.legComplete[leg] = parseInt(valueStart, valueEnd);
+                        } else if (attribute(REJECTED)) {
+                            receipt.legRejected[leg] = text(valueStart, valueEnd);
+                        }
+                    }
+                } else if (nameIs(COMPLETE) && order instanceof OrderReceipt && attribute(AMOUNT)) {
+                    ((OrderReceipt) order).complete = parseInt(valueStart, valueEnd);
+                } else if (nameIs(REJECTED) && order instanceof OrderReceipt) {
+                    ((OrderReceipt) order).rejected = attribute(REASON) ? text(valueStart, valueEnd) : "rejected";
+                }
+            } else if (event == END && nameIs(root)) {
+                break;
+            }
+        }
+
+        // a single-leg receipt carries its leg's result in <complete>/<rejected>
+        if (order instanceof OrderReceipt && order.legs == 1) {
+            OrderReceipt receipt = (OrderReceipt) order;
+            receipt.legComplete[0] = receipt.complete;
+            receipt.legRejected[0] = receipt.rejected;
+        }
+    }
+
+    private void reset(byte[] data, int offset, int length) {
+        buf = data;
+        pos = offset;
+        end = offset + length;
+    }
+
+    private boolean nextStart() {
+        for (int event = next(); event != EOF; event = next()) {
+            if (event == START) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advance to the next tag or run of text. For tags, the name is left in
+     * [nameStart, nameEnd) and the attributes in [attrsStart, attrsEnd);
+     * for text, the text is left in [valueStart, valueEnd).
+     */
+    private int next() {
+        while (pos < end) {
+            if (buf[pos] != '<') {
+                valueStart = pos;
+                while (pos < end && buf[pos] != '<') {
+                    pos++;
+                }
+                valueEnd = pos;
+                return TEXT;
+            }
+
+            if (startsWith("<?")) {
+                skipPast('?', '>');
+                continue;
+            }
+            if (startsWith("<!--")) {
+                skipPast('-', '>');
+                continue;
+            }
+            if (startsWith("<!")) {
+                while (pos < end && buf[pos++] != '>') { }
+                continue;
+            }
+
+            pos++;
+            boolean closing = pos < end && buf[pos] == '/';
+            if (closing) {
+                pos++;
+            }
+            nameStart = pos;
+            while (pos < end && !isSpace(buf[pos]) && buf[pos] != '/' && buf[pos] != '>') {
+                pos++;
+            }
+            nameEnd = pos;
+
+            attrsStart = pos;
+            byte quote = 0;
+            while (pos < end && (quote != 0 || buf[pos] != '>')) {
+                byte b = buf[pos];
+                if (quote != 0) {
+                    if (b == quote) quote = 0;
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                }
+                pos++;
+            }
+            attrsEnd = pos;
+            if (attrsEnd > attrsStart && buf[attrsEnd - 1] == '/') {
+                attrsEnd--; // self-closing
+            }
+            pos++; // past '>'
+            return closing ? END : START;
+        }
+        return EOF;
+    }
+
+    /**
+     * Find an attribute of the current start tag; its value is left in
+     * [valueStart, valueEnd).
+     */
+    private boolean attribute(byte[] name) {
+        int i = attrsStart;
+        while (i < attrsEnd) {
+            while (i < attrsEnd && isSpace(buf[i])) i++;
+            int keyStart = i;
+            while (i < attrsEnd && buf[i] != '=' && !isSpace(buf[i])) i++;
+            int keyEnd = i;
+            while (i < attrsEnd && buf[i] != '"' && buf[i] != '\'') i++;
+            if (i >= attrsEnd) {
+                return false;
+            }
+            byte quote = buf[i++];
+            int start = i;
+            while (i < attrsEnd && buf[i] != quote) i++;
+            if (rangeIs(keyStart, keyEnd, name)) {
+                valueStart = start;
+                valueEnd = i;
+                return true;
+            }
+            i++;
+        }
+        return false;
+    }
+
+    private void skipPast(char last, char close) {
+        while (pos + 1 < end && !(buf[pos] == last && buf[pos + 1] == close)) {
+            pos++;
+        }
+        pos = Math.min(end, pos + 2);
+    }
+
+    private boolean startsWith(String s) {
+        if (pos + s.length() > end) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[pos + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean nameIs(byte[] name) {
+        return rangeIs(nameStart, nameEnd, name);
+    }
+
+    private boolean rangeIs(int from, int to, byte[] expected) {
+        return Arrays.equals(buf, from, to, expected, 0, expected.length);
+    }
+
+    private void trim(int from, int to) {
+        while (from < to && isSpace(buf[from])) from++;
+        while (to > from && isSpace(buf[to - 1])) to--;
+        valueStart = from;
+        valueEnd = to;
+    }
+
+    private int parseInt(int from, int to) {
+        return (int) parseNumber(from, to, Integer.MAX_VALUE);
+    }
+
+    private long parseLong(int from, int to) {
+        return parseNumber(from, to, Long.MAX_VALUE);
+    }
+
+    // An optionally signed decimal between -max - 1 and max
+    private long parseNumber(int from, int to, long max) {
+        int start = from;
+        while (from < to && isSpace(buf[from])) from++;
+        boolean negative = from < to && buf[from] == '-';
+        if (negative || (from < to && buf[from] == '+')) from++;
+        if (from >= to || isSpace(buf[from])) {
+            throw new NumberFormatException("empty number");
+        }
+        long limit = negative ? -max - 1 : -max;
+        long value = 0;
+        for (; from < to && !isSpace(buf[from]); from++) {
+            int digit = buf[from] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("bad digit '" + (char) buf[from] + "'");
+            }
+            // accumulate negatively so -max - 1 fits
+            if (value < limit / 10 || value * 10 < limit + digit) {
+                throw new NumberFormatException("out of range: " + new String(buf, start, to - start, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    // A symbol without escapes comes straight out of the table
+    private String symbol(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '&') {
+                return symbols.intern(text(from, to));
+            }
+        }
+        return symbols.intern(buf, from, to - from);
+    }
+
+    private String text(int from, int to) {
+        String raw = new String(buf, from, to - from, StandardCharsets.UTF_8);
+        int amp = raw.indexOf('&');
+        if (amp < 0) {
+            return raw;
+        }
+        StringBuilder text = new StringBuilder(raw.length()).append(raw, 0, amp);
+        for (int i = amp; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            int semi = c == '&' ? raw.indexOf(';', i) : -1;
+            if (semi < 0) {
+                text.append(c);
+                continue;
+            }
+            String entity = raw.substring(i + 1, semi);
+            switch (entity) {
+                case "amp": text.append('&'); break;
+                case "lt": text.append('<'); break;
+                case "gt": text.append('>'); break;
+                case "quot": text.append('"'); break;
+                case "apos": text.append('\''); break;
+                default:
+                    if (!entity.startsWith("#")) {
+                        throw new IllegalArgumentException("unknown entity &" + entity + ";");
+                    }
+                    boolean hex = entity.startsWith("#x");
+                    text.appendCodePoint(Integer.parseInt(entity.substring(hex ? 2 : 1), hex ? 16 : 10));
+            }
+            i = semi;
+        }
+        return text.toString();
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * One decoded {@code <message>}: any number of stocks, plus the sent
+     * attribute as a range of the original bytes (or, for a binary message,
+     * as epoch millis).
+     */
+    public static class PriceMessage {
+        public int count;
+        public String[] symbol = new String[4];
+        public int[] adjustment = new int[4];
+        public int[] adjustedPrice = new int[4];
+        public long[] sequence = new long[4]; // the publisher's per-symbol count, or 0 if unstamped
+
+        byte[] source;
+        int sentStart;
+        int sentLength;
+        long sentMillis = -1;
+        private SimpleDateFormat sentFormat;
+
+        int add() {
+            if (count == symbol.length) {
+                symbol = Arrays.copyOf(symbol, count * 2);
+                adjustment = Arrays.copyOf(adjustment, count * 2);
+                adjustedPrice = Arrays.copyOf(adjustedPrice, count * 2);
+                sequence = Arrays.copyOf(sequence, count * 2);
+            }
+            symbol[count] = null;
+            adjustment[count] = 0;
+            adjustedPrice[count] = 0;
+            sequence[count] = 0;
+            return count++;
+        }
+
+        /**
+         * Append the sent timestamp without making a String of it.
+         */
+        public StringBuilder appendSent(StringBuilder sb) {
+            if (source == null) {
+                return sb.append(sent());
+            }
+            for (int i = sentStart; i < sentStart + sentLength; i++) {
+                sb.append((char) source[i]);
+            }
+            return sb;
+        }
+
+        /**
+         * Copy the sent timestamp's bytes into dst (truncating if it doesn't fit).
+         * @return the number of bytes copied
+         */
+        public int copySent(byte[] dst) {
+            if (source == null) {
+                byte[] formatted = sent().getBytes(StandardCharsets.US_ASCII);
+                int n = Math.min(formatted.length, dst.length);
+                System.arraycopy(formatted, 0, dst, 0, n);
+                return n;
+            }
+            int n = Math.min(sentLength, dst.length);
+            System.arraycopy(source, sentStart, dst, 0, n);
+            return n;
+        }
+
+        public String sent() {
+            if (source == null) {
+                if (sentFormat == null) {
+                    sentFormat = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+                }
+                return sentFormat.format(new Date(sentMillis));
+            }
+            return new String(source, sentStart, sentLength, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * One decoded {@code <order>}: one or more buy/sell legs.
+     */
+    public static class Order {
+        public static final int MARKET = 0; // the limit of a leg with none
+
+        public int legs;
+        public boolean[] buy = new boolean[1];
+        public String[] symbol = new String[1];
+        public int[] amount = new int[1];
+        public int[] limit = new int[1]; // cents
+        public long[] sequence = new long[1]; // of the price behind the leg, or 0
+        public long id; // the client's number for the order, the same on every retry, or 0
+
+        public int add() {
+            if (legs == symbol.length) {
+                buy = Arrays.copyOf(buy, legs * 2);
+                symbol = Arrays.copyOf(symbol, legs * 2);
+                amount = Arrays.copyOf(amount, legs * 2);
+                limit = Arrays.copyOf(limit, legs * 2);
+                sequence = Arrays.copyOf(sequence, legs * 2);
+            }
+            limit[legs] = MARKET;
+            sequence[legs] = 0;
+            return legs++;
+        }
+
+        public void clear() {
+            legs = 0;
+            id = 0;
+        }
+
+        public String type(int leg) {
+            return buy[leg] ? "buy" : "sell";
+        }
+    }
+
+    /**
+     * One decoded {@code <orderReceipt>}: the original legs plus the
+     * completed amount after the broker's fee--or, if the broker could not
+     * fill the order, the reason it was rejected.
+     */
+    public static class OrderReceipt extends Order {
+        public int complete;
+        public String rejected; // null when the order completed
+
+        // each leg's own result
+        public int[] legComplete = new int[1];
+        public String[] legRejected = new String[1];
+        public int[] legResting = new int[1]; // shares left on the broker's book; amount less these were filled
+
+        @Override
+        public int add() {
+            int leg = super.add();
+            if (leg >= legComplete.length) {
+                legComplete = Arrays.copyOf(legComplete, buy.length);
+                legRejected = Arrays.copyOf(legRejected, buy.length);
+                legResting = Arrays.copyOf(legResting, buy.length);
+            }
+            legComplete[leg] = 0;
+            legRejected[leg] = null;
+            legResting[leg] = 0;
+            return leg;
+        }
+
+        /**
+         * Shares of the leg that were filled (bought or sold) by this receipt.
+         */
+        public int filled(int leg) {
+            return legRejected[leg] != null ? 0 : amount[leg] - legResting[leg];
+        }
+    }
+}
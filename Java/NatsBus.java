@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import io.nats.client.impl.Headers;
+
+/**
+ * A Bus over one NATS connection; every call goes straight to the client.
+ */
+public class NatsBus implements Bus {
+    private final Connection nc;
+
+    public NatsBus(Connection nc) {
+        this.nc = nc;
+    }
+
+    public void publish(String subject, Headers headers, byte[] data) {
+        nc.publish(subject, headers, data);
+    }
+
+    public void publish(String subject, byte[] data) {
+        nc.publish(subject, data);
+    }
+
+    public void publish(String subject, String replyTo, Headers headers, byte[] data) {
+        nc.publish(subject, replyTo, headers, data);
+    }
+
+    public String createInbox() {
+        return nc.createInbox();
+    }
+
+    public CompletableFuture<Message> requestWithTimeout(String subject, Headers headers, byte[] data, Duration timeout) {
+        return nc.requestWithTimeout(subject, headers, data, timeout);
+    }
+
+    public Dispatcher createDispatcher(MessageHandler handler) {
+        io.nats.client.Dispatcher dispatcher = nc.createDispatcher(handler);
+        return new Dispatcher() {
+            public Dispatcher subscribe(String subject) {
+                dispatcher.subscribe(subject);
+                return this;
+            }
+
+            public Dispatcher subscribe(String subject, String queue) {
+                dispatcher.subscribe(subject, queue);
+                return this;
+            }
+
+            public Dispatcher unsubscribe(String subject) {
+                dispatcher.unsubscribe(subject);
+                return this;
+            }
+        };
+    }
+
+    public void flushBuffer() throws IOException {
+        nc.flushBuffer();
+    }
+
+    public void close() throws InterruptedException {
+        nc.close();
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.Arrays;
+
+/**
+ * One symbol's resting limit orders, matched with price-time priority.
+ *
+ * Each side keeps its price levels in a primitive array sorted so the best
+ * level is last (bids ascending, asks descending; asks are stored negated
+ * so both sides share one ascending search), with a FIFO list of resting
+ * orders per level. Matching takes from the end of the array, so filling
+ * or adding at the best level never shifts anything. Resting orders are
+ * pooled nodes, so once the book has grown to its working size submitting,
+ * matching and filling allocate nothing.
+ *
+ * An incoming order first trades with the resting orders on the other
+ * side, best price first and oldest first within a price, at the resting
+ * order's price, for as long as its limit allows (a market order takes
+ * any). The market price (the last PriceAdjustment) is the other source
+ * of liquidity: what is left then fills there if the limit allows, and a
+ * limit order rests whatever remains after that. A tick that crosses
+ * resting orders fills them at the tick's price (see onPrice).
+ *
+ * A resting order is given an expiry time when it rests, and expire()
+ * takes out the ones whose time has come; the book remembers the earliest,
+ * so calling it when nothing is due costs one comparison.
+ *
+ * Fills and expiries are reported into a caller-supplied Fills record.
+ * Not thread-safe; StockBroker locks each book while it uses it.
+ */
+public class OrderBook {
+    public static final int MARKET = MessageCodec.Order.MARKET;
+
+    public final String symbol;
+    private final Side bids = new Side(true);
+    private final Side asks = new Side(false);
+    private Resting free; // pooled nodes
+    private long nextExpiry = Long.MAX_VALUE; // no resting order expires before this
+
+    public OrderBook(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * Match an order against the book and then the market.
+     *
+     * @param limit the worst price the order will take, or MARKET
+     * @param market the current market price, or PriceBook.NO_PRICE
+     * @param owner who to report fills of the rested remainder to
+     * @param expires when the rested remainder expires (Long.MAX_VALUE for never)
+     * @return the shares left resting on the book
+     */
+    public int submit(boolean buy, int limit, int shares, int market, Object owner, long expires, Fills fills) {
+        Side opposite = buy ? asks : bids;
+        int remaining = shares;
+        while (remaining > 0 && opposite.levels > 0 && acceptable(buy, limit, opposite.bestPrice())) {
+            remaining = take(opposite, remaining, opposite.bestPrice(), true, fills);
+        }
+        if (remaining > 0 && market != PriceBook.NO_PRICE && acceptable(buy, limit, market)) {
+            fills.taker(remaining, market);
+            remaining = 0;
+        }
+        if (remaining > 0 && limit != MARKET) {
+            rest(buy ? bids : asks, limit, remaining, owner, expires);
+            return remaining;
+        }
+        return 0;
+    }
+
+    /**
+     * Take every resting order that expires at or before now off the book,
+     * reporting each as expired with the shares it had left.
+     */
+    public void expire(long now, Fills fills) {
+        if (now < nextExpiry) {
+            return;
+        }
+        nextExpiry = Long.MAX_VALUE;
+        expire(bids, now, fills);
+        expire(asks, now, fills);
+    }
+
+    // Keep each level's unexpired orders in their order, and drop the levels left empty
+    private void expire(Side side, long now, Fills fills) {
+        int kept = 0;
+        for (int level = 0; level < side.levels; level++) {
+            Resting head = null, tail = null, next;
+            for (Resting r = side.heads[level]; r != null; r = next) {
+                next = r.next;
+                if (r.expires <= now) {
+                    fills.expired(symbol, r.owner, side.buy, r.shares, side.price(level));
+                    release(r);
+                    continue;
+                }
+                r.next = null;
+                if (tail == null) {
+                    head = r;
+                } else {
+                    tail.next = r;
+                }
+                tail = r;
+                nextExpiry = Math.min(nextExpiry, r.expires);
+            }
+            if (head != null) {
+                side.keys[kept] = side.keys[level];
+                side.heads[kept] = head;
+                side.tails[kept] = tail;
+                kept++;
+            }
+        }
+        Arrays.fill(side.heads, kept, side.levels, null);
+        Arrays.fill(side.tails, kept, side.levels, null);
+        side.levels = kept;
+    }
+
+    /**
+     * Fill every resting order the market has just crossed, at price: bids
+     * at or above it and asks at or below it.
+     */
+    public void onPrice(int price, Fills fills) {
+        while (bids.levels > 0 && bids.bestPrice() >= price) {
+            take(bids, Integer.MAX_VALUE, price, false, fills);
+        }
+        while (asks.levels > 0 && asks.bestPrice() <= price) {
+            take(asks, Integer.MAX_VALUE, price, false, fills);
+        }
+    }
+
+    /**
+     * Shares resting on one side.
+     */
+    public long resting(boolean buy) {
+        Side side = buy ? bids : asks;
+        long shares = 0;
+        for (int level = 0; level < side.levels; level++) {
+            for (Resting r = side.heads[level]; r != null; r = r.next) {
+                shares += r.shares;
+            }
+        }
+        return shares;
+    }
+
+    // Would a buyer (or seller) with this limit take this price?
+    private static boolean acceptable(boolean buy, int limit, int price) {
+        return limit == MARKET || (buy ? price <= limit : price >= limit);
+    }
+
+    // Take up to shares from the best level of side, oldest order first,
+    // dropping the level once it is empty; returns the shares still wanted
+    private int take(Side side, int shares, int price, boolean taker, Fills fills) {
+        int level = side.levels - 1;
+        Resting r = side.heads[level];
+        while (r != null && shares > 0) {
+            int n = Math.min(r.shares, shares);
+            fills.maker(symbol, r.owner, side.buy, n, price);
+            if (taker) {
+                fills.taker(n, price);
+            }
+            shares -= n;
+            r.shares -= n;
+            if (r.shares > 0) {
+                break;
+            }
+            Resting next = r.next;
+            release(r);
+            r = next;
+        }
+        side.heads[level] = r;
+        if (r == null) {
+            side.tails[level] = null;
+            side.levels--;
+        }
+        return shares;
+    }
+
+    private void rest(Side side, int price, int shares, Object owner, long expires) {
+        Resting r = free;
+        if (r != null) {
+            free = r.next;
+            r.next = null;
+        } else {
+            r = new Resting();
+        }
+        r.owner = owner;
+        r.shares = shares;
+        r.expires = expires;
+        nextExpiry = Math.min(nextExpiry, expires);
+
+        int level = side.level(price);
+        if (side.tails[level] == null) {
+            side.heads[level] = r;
+        } else {
+            side.tails[level].next = r;
+        }
+        side.tails[level] = r;
+    }
+
+    private void release(Resting r) {
+        r.owner = null;
+        r.next = free;
+        free = r;
+    }
+
+    private static final class Resting {
+        Object owner;
+        int shares;
+        long expires;
+        Resting next;
+    }
+
+    private static final class Side {
+        final boolean buy;
+        int[] keys = new int[16]; // price for bids, -price for asks; ascending, best last
+        Resting[] heads = new Resting[16];
+        Resting[] tails = new Resting[16];
+        int levels = 0;
+
+        Side(boolean buy) {
+            this.buy = buy;
+        }
+
+        int bestPrice() {
+            return price(levels - 1);
+        }
+
+        int price(int level) {
+            return buy ? keys[level] : -keys[level];
+        }
+
+        // The index of price's level, inserting an empty one if there is none
+        int level(int price) {
+            int key = buy ? price : -price;
+            int i = Arrays.binarySearch(keys, 0, levels, key);
+            if (i >= 0) {
+                return i;
+            }
+            i = -i - 1;
+            if (levels == keys.length) {
+                keys = Arrays.copyOf(keys, levels * 2);
+                heads = Arrays.copyOf(heads, levels * 2);
+                tails = Arrays.copyOf(tails, levels * 2);
+            }
+            System.arraycopy(keys, i, keys, i + 1, levels - i);
+            System.arraycopy(heads, i, heads, i + 1, levels - i);
+            System.arraycopy(tails, i, tails, i + 1, levels - i);
+            keys[i] = key;
+            heads[i] = null;
+            tails[i] = null;
+            levels++;
+            return i;
+        }
+    }
+
+    /**
+     * What a match produced: the incoming order's fills summed up (taker),
+     * and one entry per resting order filled (maker) or expired, to be
+     * reported to its owner; an expired entry has the shares it had left,
+     * at its limit. Reused; clear() before each use.
+     */
+    public static class Fills {
+        public int takerShares;
+        public long takerCost;
+
+        public int count;
+        public String[] symbol = new String[16];
+        public Object[] owner = new Object[16];
+        public boolean[] buy = new boolean[16];
+        public int[] shares = new int[16];
+        public int[] price = new int[16];
+        public boolean[] expired = new boolean[16];
+
+        public void clear() {
+            takerShares = 0;
+            takerCost = 0;
+            Arrays.fill(owner, 0, count, null);
+            count = 0;
+        }
+
+        void taker(int shares, int price) {
+            takerShares += shares;
+            takerCost += (long) shares * price;
+        }
+
+        void maker(String symbol, Object owner, boolean buy, int shares, int price) {
+            add(symbol, owner, buy, shares, price, false);
+        }
+
+        void expired(String symbol, Object owner, boolean buy, int shares, int price) {
+            add(symbol, owner, buy, shares, price, true);
+        }
+
+        private void add(String symbol, Object owner, boolean buy, int shares, int price, boolean expired) {
+            if (count == this.owner.length) {
+                this.symbol = Arrays.copyOf(this.symbol, count * 2);
+                this.owner = Arrays.copyOf(this.owner, count * 2);
+                this.buy = Arrays.copyOf(this.buy, count * 2);
+                this.shares = Arrays.copyOf(this.shares, count * 2);
+                this.price = Arrays.copyOf(this.price, count * 2);
+                this.expired = Arrays.copyOf(this.expired, count * 2);
+            }
+            this.symbol[count] = symbol;
+            this.owner[count] = owner;
+            this.buy[count] = buy;
+            this.shares[count] = shares;
+            this.price[count] = price;
+            this.expired[count] = expired;
+            count++;
+        }
+    }
+}
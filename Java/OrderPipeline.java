@@ -0,0 +1,412 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import io.nats.client.Message;
+import io.nats.client.impl.Headers;
+
+/**
+ * Sends a client's orders to its broker without ever blocking the thread
+ * that raised them.
+ *
+ * submit() only hands the signal to the pipeline's own thread, which owns
+ * all of the bookkeeping below, so none of it needs a lock:
+ *
+ * - Pending signals are coalesced per symbol: a newer signal for a symbol
+ *   replaces one that hasn't been sent yet, so a burst of ticks turns into
+ *   one order reflecting the latest decision.
+ * - At most -Dorders.window requests (default 4) are outstanding at once.
+ *   Whenever one completes, everything pending is sent as a single
+ *   multi-leg order (up to -Dorders.maxLegs legs, default 64). A symbol
+ *   that is already part of an outstanding order waits until that order
+ *   completes, so two orders never race on the same holding.
+ * - Every order gets an id of its own and keeps it when it is resent, so
+ *   the broker recognises a retry and answers it with the receipt it
+ *   already sent rather than trading again (see StockBroker).
+ * - Receipts arrive on this pipeline's inbox, on a subject per order
+ *   ("(inbox).(id)"), not through a request that is thrown away when it
+ *   times out. An order with no receipt after -Dorders.timeoutMillis
+ *   (default 500) is resent unchanged, up to -Dorders.retries times
+ *   (default 2). After that the pipeline stops waiting on it, freeing its
+ *   symbols for newer signals, but a receipt that still turns up is
+ *   applied; the last -Dorders.lateReceipts such orders (default 1024) are
+ *   remembered. Whichever receipt for an order arrives first is the one
+ *   applied, so a late original and the answer to a retry never both are.
+ * - A sell of every share (-1) is sized only as it is sent: the holding,
+ *   less whatever is being sold by orders still unanswered (including ones
+ *   given up on, whose receipts may yet arrive). If that leaves nothing to
+ *   sell, the leg is dropped.
+ *
+ * Receipts are handed to the ReceiptHandler on the pipeline thread.
+ *
+ * With -Dtrace, an order carries the Latency stamps of the oldest tick
+ * behind any of its legs, and once its receipt has been handled the
+ * pipeline records every hop of that tick's trip (see Latency).
+ */
+public class OrderPipeline implements AutoCloseable {
+    @FunctionalInterface
+    public interface ReceiptHandler {
+        void received(MessageCodec.OrderReceipt receipt) throws Exception;
+    }
+
+    private final Bus bus;
+    private final String subject;
+    private final ReceiptHandler handler;
+    private final ToIntFunction<String> holdings;
+    private final int window;
+    private final int maxLegs;
+    private final Duration timeout;
+    private final int retries;
+    private final String inbox;
+    private final Bus.Dispatcher receipts;
+    public boolean verbose = true; // print each leg as it is sent
+
+    // everything below is touched only on the pipeline thread
+    private final ScheduledExecutorService thread = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-pipeline");
+        t.setDaemon(true);
+        return t;
+    });
+    private final MessageCodec codec = new MessageCodec();
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final Map<String, Integer> inFlightSymbols = new HashMap<>();
+    private final Map<String, Integer> selling = new HashMap<>(); // shares in sells not yet answered
+    private final Map<Long, Outstanding> outstanding = new HashMap<>();
+    private final Map<Long, Outstanding> abandoned;
+    private int inFlight = 0;
+    // Ids only need to be unique per client, including across restarts, so start from the clock
+    private long nextId = System.currentTimeMillis() << 20;
+
+    private long sent, coalesced, filled, rejected, timedOut, retried, dropped, late, duplicates, nothingToSell;
+
+    private final Latency.Histogram ordering = Latency.histogram("client.ordering");
+    private final Latency.Histogram orderTransit = Latency.histogram("order.transit");
+    private final Latency.Histogram brokerTurnaround = Latency.histogram("broker.turnaround");
+    private final Latency.Histogram receiptTransit = Latency.histogram("receipt.transit");
+    private final Latency.Histogram applying = Latency.histogram("client.apply");
+    private final Latency.Histogram tickToTrade = Latency.histogram("tick-to-trade");
+
+    /**
+     * Window, leg limit, timeout, retries and late receipts come from
+     * -Dorders.window, -Dorders.maxLegs, -Dorders.timeoutMillis,
+     * -Dorders.retries and -Dorders.lateReceipts.
+     */
+    public static OrderPipeline fromSystemProperties(Bus bus, String subject, ReceiptHandler handler,
+                                                     ToIntFunction<String> holdings) {
+        return new OrderPipeline(bus, subject, handler, holdings,
+            Integer.getInteger("orders.window", 4),
+            Integer.getInteger("orders.maxLegs", 64),
+            Duration.ofMillis(Long.getLong("orders.timeoutMillis", 500)),
+            Integer.getInteger("orders.retries", 2),
+            Integer.getInteger("orders.lateReceipts", 1024));
+    }
+
+    /**
+     * @param holdings the shares of a symbol the client holds; called on the pipeline thread
+     */
+    public OrderPipeline(Bus bus, String subject, ReceiptHandler handler, ToIntFunction<String> holdings,
+                         int window, int maxLegs, Duration timeout, int retries, int lateReceipts) {
+        this.bus = bus;
+        this.subject = subject;
+        this.handler = handler;
+        this.holdings = holdings;
+        this.window = window;
+        this.maxLegs = maxLegs;
+        this.timeout = timeout;
+        this.retries = retries;
+        abandoned = new LinkedHashMap<Long, Outstanding>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Outstanding> eldest) {
+                if (size() <= lateReceipts) {
+                    return false;
+                }
+                sold(eldest.getValue()); // its receipt is no longer expected
+                return true;
+            }
+        };
+
+        inbox = bus.createInbox();
+        receipts = bus.createDispatcher((msg) -> {
+            try {
+                thread.execute(() -> received(msg));
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        });
+        receipts.subscribe(inbox + ".*");
+    }
+
+    /**
+     * Queue a signal for the broker. Safe to call from any thread; never blocks.
+     */
+    public void submit(StockBrokerClient.StockTransaction transaction) {
+        submit(transaction, -1, -1);
+    }
+
+    /**
+     * Queue a signal raised by a traced tick, published and received at
+     * the given Latency stamps.
+     */
+    public void submit(StockBrokerClient.StockTransaction transaction, long published, long received) {
+        try {
+            thread.execute(() -> {
+                Pending previous = pending.remove(transaction.symbol); // re-insert at the back
+                if (previous != null) {
+                    coalesced++;
+                }
+                pending.put(transaction.symbol, new Pending(transaction, published, received));
+                sendReady();
+            });
+        } catch (RejectedExecutionException e) {
+            // closed; a tick that was already on its way raised it
+        }
+    }
+
+    private void sendReady() {
+        while (inFlight < window && !pending.isEmpty()) {
+            MessageCodec.Order order = codec.order;
+            order.clear();
+            List<Pending> legs = new ArrayList<>();
+            Iterator<Pending> it = pending.values().iterator();
+            while (it.hasNext() && order.legs < maxLegs) {
+                Pending p = it.next();
+                if (inFlightSymbols.containsKey(p.transaction.symbol)) {
+                    continue; // wait for the outstanding order on this symbol
+                }
+                it.remove();
+                boolean buy = p.transaction.type.equals("buy");
+                p.shares = p.transaction.shares;
+                if (p.shares == -1) {
+                    p.shares = holdings.applyAsInt(p.transaction.symbol) - selling.getOrDefault(p.transaction.symbol, 0);
+                    if (p.shares <= 0) {
+                        nothingToSell++;
+                        continue;
+                    }
+                }
+                if (verbose) {
+                    System.out.println(p.transaction.toString() + (p.transaction.shares == -1 ? " (" + p.shares + ")" : ""));
+                }
+                int leg = order.add();
+                order.buy[leg] = buy;
+                order.symbol[leg] = p.transaction.symbol;
+                order.amount[leg] = p.shares;
+                order.limit[leg] = p.transaction.limit;
+                order.sequence[leg] = p.transaction.sequence;
+                legs.add(p);
+            }
+            if (legs.isEmpty()) {
+                return; // everything pending is waiting on an outstanding order
+            }
+
+            order.id = nextId++;
+            byte[] body = WireFormat.MODE.equals("binary") ? codec.binary.encode(order) : codec.encode(order);
+            for (Pending p : legs) {
+                inFlightSymbols.merge(p.transaction.symbol, 1, Integer::sum);
+                if (!p.transaction.type.equals("buy")) {
+                    selling.merge(p.transaction.symbol, p.shares, Integer::sum);
+                }
+            }
+            inFlight++;
+            sent++;
+            Outstanding o = new Outstanding(order.id, legs, body, Latency.ENABLED ? trace(legs) : null);
+            outstanding.put(o.id, o);
+            send(o);
+        }
+    }
+
+    // (Re)send an order as it was first sent, and wait a timeout for its receipt
+    private void send(Outstanding o) {
+        o.attempts++;
+        o.timer = thread.schedule(() -> timedOut(o), timeout.toNanos(), TimeUnit.NANOSECONDS);
+        try {
+            bus.publish(WireFormat.subject(subject), inbox + "." + o.id, o.headers, o.body);
+        } catch (IllegalStateException e) {
+            e.printStackTrace(); // the bus is closed; the timer gives up on it in due course
+        }
+    }
+
+    private void timedOut(Outstanding o) {
+        if (outstanding.get(o.id) != o) {
+            return; // answered just in time
+        }
+        timedOut++;
+        if (o.attempts <= retries) {
+            retried++;
+            send(o);
+            return;
+        }
+        System.out.println("Order gave up waiting: " + o);
+        dropped++;
+        outstanding.remove(o.id);
+        release(o);
+        abandoned.put(o.id, o);
+        sendReady();
+    }
+
+    // The order no longer holds its place in the window or its symbols
+    private void release(Outstanding o) {
+        inFlight--;
+        for (Pending p : o.legs) {
+            inFlightSymbols.computeIfPresent(p.transaction.symbol, (s, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    // The order's sells have been applied to the holdings, or never will be
+    private void sold(Outstanding o) {
+        for (Pending p : o.legs) {
+            if (!p.transaction.type.equals("buy")) {
+                selling.computeIfPresent(p.transaction.symbol, (s, n) -> n == p.shares ? null : n - p.shares);
+            }
+        }
+    }
+
+    // The stamps of the oldest traced tick among the legs, or null if none was traced
+    private Headers trace(List<Pending> legs) {
+        Pending oldest = null;
+        for (Pending p : legs) {
+            if (p.published >= 0 && (oldest == null || p.published < oldest.published)) {
+                oldest = p;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        long ordered = Latency.now();
+        ordering.record(oldest.received, ordered);
+        Headers headers = new Headers();
+        Latency.stamp(headers, Latency.PUBLISHED, oldest.published);
+        Latency.stamp(headers, Latency.CLIENT_RECEIVED, oldest.received);
+        return Latency.stamp(headers, Latency.ORDERED, ordered);
+    }
+
+    private void received(Message reply) {
+        long receiptReceived = Latency.ENABLED ? Latency.now() : -1;
+        long id;
+        try {
+            id = Long.parseLong(reply.getSubject().substring(inbox.length() + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        Outstanding o = outstanding.remove(id);
+        if (o != null) {
+            o.timer.cancel(false);
+            release(o);
+        } else if ((o = abandoned.remove(id)) != null) {
+            System.out.println("Late receipt for: " + o);
+            late++;
+        } else {
+            duplicates++; // another copy of a receipt already applied
+            return;
+        }
+        sold(o);
+
+        try {
+            MessageCodec.OrderReceipt receipt = codec.decodeReceipt(reply.getData());
+            for (int i = 0; i < receipt.legs; i++) {
+                if (receipt.legRejected[i] != null) rejected++; else filled++;
+            }
+            handler.received(receipt);
+            if (Latency.ENABLED) {
+                traced(reply, receiptReceived, Latency.now());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        sendReady();
+    }
+
+    private void traced(Message reply, long receiptReceived, long applied) {
+        long published = Latency.stamp(reply, Latency.PUBLISHED);
+        if (published < 0) {
+            return;
+        }
+        long ordered = Latency.stamp(reply, Latency.ORDERED);
+        long brokerReceived = Latency.stamp(reply, Latency.BROKER_RECEIVED);
+        long brokerReplied = Latency.stamp(reply, Latency.BROKER_REPLIED);
+        orderTransit.record(ordered, brokerReceived);
+        brokerTurnaround.record(brokerReceived, brokerReplied);
+        receiptTransit.record(brokerReplied, receiptReceived);
+        applying.record(receiptReceived, applied);
+        tickToTrade.record(published, applied);
+    }
+
+    /**
+     * Orders sent and legs filled so far; read them from another thread
+     * only once the pipeline is closed.
+     */
+    public long sent() { return sent; }
+
+    public long filled() { return filled; }
+
+    public String stats() {
+        return "orders sent=" + sent + " signals coalesced=" + coalesced + " legs filled=" + filled + " rejected=" + rejected
+            + " timeouts=" + timedOut + " retried=" + retried + " dropped=" + dropped + " late=" + late
+            + " duplicates=" + duplicates + " nothing to sell=" + nothingToSell;
+    }
+
+    /**
+     * Wait (up to one timeout per retry) for outstanding orders, then stop.
+     */
+    public void close() throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos() * (retries + 1);
+        try {
+            while (thread.submit(() -> inFlight + pending.size()).get() > 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            System.out.println(thread.submit(this::stats).get());
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        receipts.unsubscribe(inbox + ".*");
+        thread.shutdownNow(); // drops the timers of anything still unanswered
+    }
+
+    // An order sent and not yet answered
+    private static class Outstanding {
+        final long id;
+        final List<Pending> legs;
+        final byte[] body;
+        final Headers headers;
+        int attempts = 0;
+        ScheduledFuture<?> timer;
+
+        Outstanding(long id, List<Pending> legs, byte[] body, Headers headers) {
+            this.id = id;
+            this.legs = legs;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("order ").append(id).append(':');
+            for (Pending p : legs) {
+                sb.append(' ').append(p.transaction);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Pending {
+        final StockBrokerClient.StockTransaction transaction;
+        final long published, received; // Latency stamps of the tick behind it, or -1
+        int shares; // as sent, once a sell of every share has been sized
+
+        Pending(StockBrokerClient.StockTransaction transaction, long published, long received) {
+            this.transaction = transaction;
+            this.published = published;
+            this.received = received;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latest price of every symbol, shared between the thread that
+ * applies PriceAdjustments and any number of threads that quote from it.
+ *
+ * Symbols are interned to dense int ids through an open-addressed table,
+ * and prices live in primitive arrays indexed by id, so an update or a
+ * quote never boxes or allocates. Each symbol is guarded by a seqlock:
+ * the writer bumps the symbol's version to odd, writes the price and its
+ * sequence number, and bumps it back to even; a reader retries until it
+ * sees the same even version before and after its reads. Readers never
+ * block the writer and never see a price paired with the wrong sequence.
+ *
+ * Updates to any one symbol must come from a single thread at a time
+ * (StockBroker applies them all on its market dispatcher); registering
+ * new symbols is safe from any thread.
+ */
+public class PriceBook {
+    public static final int NO_PRICE = Integer.MIN_VALUE;
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final int capacity;
+
+    // symbol -> id; a key is published only after its id is written
+    private final AtomicReferenceArray<String> keys;
+    private final int[] ids;
+    private final String[] symbols; // by id
+    private final int mask;
+    private volatile int size = 0; // written under this, once the id is filled in
+
+    // per id
+    private final AtomicLongArray versions;
+    private final int[] prices;
+    private final long[] sequences;
+
+    public PriceBook() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PriceBook(int capacity) {
+        this.capacity = capacity;
+        int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        keys = new AtomicReferenceArray<>(slots);
+        ids = new int[slots];
+        symbols = new String[capacity];
+        mask = slots - 1;
+        versions = new AtomicLongArray(capacity);
+        prices = new int[capacity];
+        sequences = new long[capacity];
+    }
+
+    /**
+     * @return the symbol's id, or -1 if it has never been seen
+     */
+    public int id(String symbol) {
+        int slot = slot(symbol);
+        String key;
+        while ((key = keys.get(slot)) != null) {
+            if (key.equals(symbol)) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the symbol's id, assigning the next free one if it is new
+     */
+    public int intern(String symbol) {
+        int id = id(symbol);
+        return id >= 0 ? id : register(symbol);
+    }
+
+    private synchronized int register(String symbol) {
+        int slot = slot(symbol);
+        String key;
+        while ((key = keys.get(slot)) != null) {
+            if (key.equals(symbol)) {
+                return ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == capacity) {
+            throw new IllegalStateException("price book is full (" + capacity + " symbols)");
+        }
+        int id = size;
+        sequences[id] = 0;
+        prices[id] = NO_PRICE;
+        symbols[id] = symbol;
+        ids[slot] = id;
+        keys.set(slot, symbol); // publishes the id and the empty price
+        size = id + 1;
+        return id;
+    }
+
+    private int slot(String symbol) {
+        int h = symbol.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Ids run from 0 to size() - 1, so a reader can walk every symbol.
+     */
+    public int size() {
+        return size;
+    }
+
+    public String symbol(int id) {
+        return symbols[id];
+    }
+
+    /**
+     * Record a new price.
+     * @return the symbol's new sequence number (1 for its first price)
+     */
+    public long update(String symbol, int price) {
+        return update(intern(symbol), price);
+    }
+
+    public long update(int id, int price) {
+        return set(id, price, sequences[id] + 1);
+    }
+
+    /**
+     * Record a price with a caller-supplied sequence number.
+     */
+    public long set(int id, int price, long sequence) {
+        long version = versions.get(id);
+        versions.set(id, version + 1);
+        VarHandle.storeStoreFence();
+        prices[id] = price;
+        sequences[id] = sequence;
+        versions.set(id, version + 2);
+        return sequence;
+    }
+
+    /**
+     * Record a price stamped with its publisher's sequence number, unless
+     * the book already holds the same or a later one for the symbol--so a
+     * snapshot and the live ticks can be merged in whatever order they
+     * arrive. A sequence of 0 means the publisher didn't stamp it, and is
+     * always taken as the newest.
+     * @return false if the price was stale and ignored
+     */
+    public boolean merge(String symbol, int price, long sequence) {
+        int id = intern(symbol);
+        long current = sequences[id];
+        if (sequence <= 0) {
+            sequence = current + 1;
+        } else if (sequence <= current) {
+            return false;
+        }
+        set(id, price, sequence);
+        return true;
+    }
+
+    /**
+     * @return the latest price, or NO_PRICE if there hasn't been one yet
+     */
+    public int price(String symbol) {
+        int id = id(symbol);
+        return id < 0 ? NO_PRICE : price(id);
+    }
+
+    public int price(int id) {
+        while (true) {
+            long before = versions.get(id);
+            int price = prices[id];
+            VarHandle.loadLoadFence();
+            if ((before & 1) == 0 && versions.get(id) == before) {
+                return price;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Read a symbol's price and sequence number as one consistent pair.
+     * @return false (leaving quote untouched) if there is no price yet
+     */
+    public boolean quote(String symbol, Quote quote) {
+        int id = id(symbol);
+        return id >= 0 && quote(id, quote);
+    }
+
+    public boolean quote(int id, Quote quote) {
+        while (true) {
+            long before = versions.get(id);
+            int price = prices[id];
+            long sequence = sequences[id];
+            VarHandle.loadLoadFence();
+            if ((before & 1) == 0 && versions.get(id) == before) {
+                if (sequence == 0) {
+                    return false;
+                }
+                quote.price = price;
+                quote.sequence = sequence;
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * A reusable holder for one consistent read.
+     */
+    public static class Quote {
+        public int price;
+        public long sequence;
+    }
+}
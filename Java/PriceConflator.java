@@ -0,0 +1,158 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Last-value conflation between the thread that receives prices and the
+ * thread that acts on them, so a consumer that falls behind skips straight
+ * to the current price of each symbol instead of working through every
+ * stale tick in between.
+ *
+ * offer() writes the price and its sequence number together into the
+ * symbol's slot in a PriceBook (a seqlock per symbol, so it never blocks
+ * or allocates), and the Listener is handed the two from one consistent
+ * read, so a price never goes out with another tick's sequence. Unless
+ * the symbol is already waiting, offer() then queues its id on a ring.
+ * The conflator's own thread takes ids off the ring and hands each
+ * symbol's latest price to the Listener; a symbol that ticked several
+ * times while it waited is handed over once. Each symbol is queued at
+ * most once, so the ring never holds more than the book's capacity.
+ *
+ * offer() must always be called from the same thread (a dispatcher).
+ */
+public class PriceConflator implements AutoCloseable {
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * sequence is the publisher's sequence number of the price (0 if it
+         * wasn't stamped); published and received are the Latency stamps
+         * of the tick, or -1 when it isn't traced.
+         */
+        void price(String symbol, int price, long sequence, long published, long received);
+    }
+
+    private final Listener listener;
+    private final PriceBook book;
+    private final String[] symbols;           // by id; written before the id is first queued
+    private final long[] unstamped;           // by id, prices offered without a sequence; offering thread only
+    private final long[] published, received; // by id, only with -Dtrace; may belong to a newer tick than the price
+    private final AtomicIntegerArray queued;  // 1 while the id is on the ring
+    private final long[] delivered;           // by id, the sequence last handed over; consumer thread only
+
+    private final int[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // written by the offering thread
+    private volatile long head = 0;                   // written by the conflator thread
+
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    public PriceConflator(Listener listener) {
+        this(listener, Integer.getInteger("prices.symbols", 1 << 12));
+    }
+
+    /**
+     * @param capacity the most distinct symbols it will see
+     */
+    public PriceConflator(Listener listener, int capacity) {
+        this.listener = listener;
+        book = new PriceBook(capacity);
+        symbols = new String[capacity];
+        unstamped = new long[capacity];
+        published = Latency.ENABLED ? new long[capacity] : null;
+        received = Latency.ENABLED ? new long[capacity] : null;
+        queued = new AtomicIntegerArray(capacity);
+        delivered = new long[capacity];
+        ring = new int[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1)];
+        mask = ring.length - 1;
+
+        thread = new Thread(this::drain, "price-conflator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replace the symbol's pending price, if any, with this one.
+     */
+    public void offer(String symbol, int price, long sequence, long tickPublished, long tickReceived) {
+        int id = book.intern(symbol);
+        if (symbols[id] == null) {
+            symbols[id] = symbol;
+        }
+        if (Latency.ENABLED) {
+            published[id] = tickPublished;
+            received[id] = tickReceived;
+        }
+        // An unstamped price is kept under a negative count of its own, so it
+        // still differs from the one before it, and is handed over as 0
+        book.set(id, price, sequence > 0 ? sequence : -++unstamped[id]);
+        offered.increment();
+
+        if (queued.getAndSet(id, 1) == 1) {
+            conflated.increment(); // still waiting; the thread will pick up this price instead
+            return;
+        }
+        long t = tail.get();
+        ring[(int) t & mask] = id;
+        tail.lazySet(t + 1);
+    }
+
+    private void drain() {
+        PriceBook.Quote quote = new PriceBook.Quote();
+        while (running || head < tail.get()) {
+            long h = head;
+            if (h == tail.get()) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                continue;
+            }
+            int id = ring[(int) h & mask];
+            head = h + 1;
+            queued.set(id, 0); // before reading, so a newer price queues the symbol again
+
+            // A price that lands between the two lines above is read now and
+            // queued again; the sequence check stops it being handed over twice
+            if (!book.quote(id, quote) || quote.sequence == delivered[id]) {
+                continue;
+            }
+            delivered[id] = quote.sequence;
+            handled.increment();
+            long sequence = Math.max(0, quote.sequence);
+            try {
+                if (Latency.ENABLED) {
+                    listener.price(symbols[id], quote.price, sequence, published[id], received[id]);
+                } else {
+                    listener.price(symbols[id], quote.price, sequence, -1, -1);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Prices offered, replaced while still waiting, and handed to the listener.
+     */
+    public long offered() { return offered.sum(); }
+
+    public long conflated() { return conflated.sum(); }
+
+    public long handled() { return handled.sum(); }
+
+    public String stats() {
+        return "prices offered=" + offered() + " conflated=" + conflated() + " handled=" + handled();
+    }
+
+    /**
+     * Hand over whatever is still waiting, then stop.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+}
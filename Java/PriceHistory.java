@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last few sequence-numbered prices of every symbol, so an order can
+ * be priced at exactly the tick it was decided on rather than at whatever
+ * this process happens to have seen last.
+ *
+ * Symbols are the dense ids of a PriceBook. Each one has a ring of
+ * -Dprices.history slots (default 16, a power of two) indexed by sequence
+ * number, and each slot packs the sequence's low 32 bits and the price
+ * into one long, so a single atomic write publishes both and readers need
+ * no lock. A slot is overwritten once the symbol has moved that many ticks
+ * on, after which the sequence is no longer known here.
+ *
+ * record() must be called from one thread at a time per symbol (the
+ * thread that updates the PriceBook); price() is safe from any thread.
+ */
+public class PriceHistory {
+    private final int capacity;
+    private final int depth;
+    private final AtomicLongArray slots;
+
+    public PriceHistory(int capacity) {
+        this(capacity, Integer.getInteger("prices.history", 16));
+    }
+
+    public PriceHistory(int capacity, int depth) {
+        if (Integer.bitCount(depth) != 1) {
+            throw new IllegalArgumentException("history depth must be a power of two: " + depth);
+        }
+        this.capacity = capacity;
+        this.depth = depth;
+        slots = new AtomicLongArray(capacity * depth);
+    }
+
+    /**
+     * Remember that the symbol was at price as of sequence (which must be
+     * positive). Ids beyond the capacity are not kept.
+     */
+    public void record(int id, long sequence, int price) {
+        if (id < capacity) {
+            slots.set(slot(id, sequence), sequence << 32 | (price & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * @return the symbol's price as of sequence, or PriceBook.NO_PRICE if
+     * it hasn't arrived yet or has already been overwritten
+     */
+    public int price(int id, long sequence) {
+        if (id < 0 || id >= capacity) {
+            return PriceBook.NO_PRICE;
+        }
+        long slot = slots.get(slot(id, sequence));
+        return slot != 0 && (int) (slot >>> 32) == (int) sequence ? (int) slot : PriceBook.NO_PRICE;
+    }
+
+    private int slot(int id, long sequence) {
+        return id * depth + ((int) sequence & (depth - 1));
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes StockMonitor's price logs ("(symbol)-log.log", one line per tick)
+ * from a background thread, so a slow disk never stalls the NATS dispatcher.
+ *
+ * The dispatcher copies each tick into a fixed-size ring (the same layout
+ * PublishPipeline uses) and returns. The writer thread keeps one open
+ * channel and one buffer per symbol, and group-commits: buffers are written
+ * out every flushRecords records or every flushMillis milliseconds,
+ * whichever comes first, optionally followed by an fsync. Everything still
+ * queued is written when the writer is closed.
+ *
+ * With a PriceStore attached, every tick is also appended to the store's
+ * indexed segments (stamped with the time it was received), under the same
+ * flush policy; the text logs can then be switched off entirely.
+ *
+ * A tick whose symbol isn't a single subject token (see
+ * WireFormat.isSymbol) is dropped, since the symbol names its files.
+ */
+public class PriceLogWriter implements AutoCloseable {
+    private static final int CAPACITY = 1 << 14;
+    private static final int SENT_WIDTH = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final int flushRecords;
+    private final long flushNanos;
+    private final boolean fsync;
+    private final boolean textLogs;
+    private final PriceStore store; // null when not storing segments
+
+    private final int mask = CAPACITY - 1;
+    private final String[] symbols = new String[CAPACITY];
+    private final byte[][] sent = new byte[CAPACITY][SENT_WIDTH];
+    private final int[] sentLengths = new int[CAPACITY];
+    private final int[] adjustments = new int[CAPACITY];
+    private final int[] prices = new int[CAPACITY];
+    private final long[] received = new long[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong badSymbols = new AtomicLong();
+    private volatile long consumed = 0;
+
+    private final Map<String, SymbolLog> logs = new HashMap<>(); // writer thread only
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    /**
+     * Flush policy comes from -Dlog.flushRecords (default 1000),
+     * -Dlog.flushMillis (default 1000) and -Dlog.fsync (default false).
+     * -Dlog.store=text|segments|both (default text) picks text logs, a
+     * PriceStore under -Dlog.storeDir (default ./store), or both.
+     */
+    public static PriceLogWriter fromSystemProperties(Path directory) throws IOException {
+        String mode = System.getProperty("log.store", "text");
+        PriceStore store = mode.equals("text")
+            ? null
+            : new PriceStore(Paths.get(System.getProperty("log.storeDir", "./store")));
+        return new PriceLogWriter(directory,
+            Integer.getInteger("log.flushRecords", 1000),
+            Long.getLong("log.flushMillis", 1000),
+            Boolean.getBoolean("log.fsync"),
+            !mode.equals("segments"),
+            store);
+    }
+
+    public PriceLogWriter(Path directory, int flushRecords, long flushMillis, boolean fsync) throws IOException {
+        this(directory, flushRecords, flushMillis, fsync, true, null);
+    }
+
+    public PriceLogWriter(Path directory, int flushRecords, long flushMillis, boolean fsync,
+                          boolean textLogs, PriceStore store) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.flushRecords = flushRecords;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.fsync = fsync;
+        this.textLogs = textLogs;
+        this.store = store;
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+
+        writer = new Thread(this::drain, "price-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue stock i of a decoded message for its symbol's log.
+     */
+    public void append(MessageCodec.PriceMessage message, int i) {
+        if (!WireFormat.isSymbol(message.symbol[i])) {
+            badSymbols.incrementAndGet();
+            return;
+        }
+        long seq = claimed.getAndIncrement();
+        while (seq - consumed > mask) {
+            Thread.onSpinWait(); // ring is full; wait for the writer
+        }
+        int slot = (int) seq & mask;
+        symbols[slot] = message.symbol[i];
+        sentLengths[slot] = message.copySent(sent[slot]);
+        adjustments[slot] = message.adjustment[i];
+        prices[slot] = message.adjustedPrice[i];
+        received[slot] = System.currentTimeMillis();
+        published.lazySet(slot, seq);
+    }
+
+    private void drain() {
+        long next = 0;
+        int unflushed = 0;
+        long lastFlush = System.nanoTime();
+
+        while (running || next < claimed.get()) {
+            boolean idle = true;
+            while (published.get((int) next & mask) == next) {
+                int slot = (int) next & mask;
+                try {
+                    if (textLogs) {
+                        logFor(symbols[slot]).append(symbols[slot], sent[slot], sentLengths[slot], adjustments[slot], prices[slot]);
+                    }
+                    if (store != null) {
+                        store.append(symbols[slot], received[slot], adjustments[slot], prices[slot]);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                next++;
+                consumed = next;
+                unflushed++;
+                idle = false;
+                if (unflushed >= flushRecords) {
+                    break;
+                }
+            }
+
+            long now = System.nanoTime();
+            if (unflushed > 0 && (unflushed >= flushRecords || now - lastFlush >= flushNanos)) {
+                flushAll();
+                unflushed = 0;
+                lastFlush = now;
+            } else if (idle) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        flushAll();
+        for (SymbolLog log : logs.values()) {
+            try {
+                log.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private SymbolLog logFor(String symbol) throws IOException {
+        SymbolLog log = logs.get(symbol);
+        if (log == null) {
+            log = new SymbolLog(FileChannel.open(directory.resolve(symbol + "-log.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+            logs.put(symbol, log);
+        }
+        return log;
+    }
+
+    private void flushAll() {
+        for (SymbolLog log : logs.values()) {
+            try {
+                log.flush(fsync);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (store != null) {
+            try {
+                store.flush(fsync);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write out everything already queued and close every log.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        writer.join();
+    }
+
+    /**
+     * Ticks dropped so far because their symbol couldn't name a file.
+     */
+    public long badSymbols() {
+        return badSymbols.get();
+    }
+
+    /**
+     * One symbol's open log file and its write buffer.
+     */
+    private static class SymbolLog {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] symbolBytes;
+        boolean dirty;
+
+        SymbolLog(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // "(symbol) (timestamp) (adjustment) (price)\n"
+        void append(String symbol, byte[] sent, int sentLength, int adjustment, int price) throws IOException {
+            if (symbolBytes == null) {
+                symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+            }
+            if (buffer.remaining() < symbolBytes.length + sentLength + 26) {
+                writeOut();
+            }
+            buffer.put(symbolBytes).put((byte) ' ');
+            buffer.put(sent, 0, sentLength).put((byte) ' ');
+            putInt(adjustment);
+            buffer.put((byte) ' ');
+            putInt(price);
+            buffer.put((byte) '\n');
+            dirty = true;
+        }
+
+        void flush(boolean fsync) throws IOException {
+            if (!dirty) {
+                return;
+            }
+            writeOut();
+            if (fsync) {
+                channel.force(false);
+            }
+            dirty = false;
+        }
+
+        private void writeOut() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putInt(int value) {
+            if (value < 0) {
+                buffer.put((byte) '-');
+            }
+            long v = Math.abs((long) value);
+            long divisor = 1;
+            while (divisor * 10 <= v) {
+                divisor *= 10;
+            }
+            for (; divisor > 0; divisor /= 10) {
+                buffer.put((byte) ('0' + (v / divisor) % 10));
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the PriceAdjustment XML document straight into a reusable byte
+ * buffer. The output is byte-for-byte what StockPublisher used to build
+ * with a StringBuilder:
+ *
+ * <message sent="(timestamp)">
+ *   <stock>
+ *     <name>(symbol)</name>
+ *     <adjustment>(amount)</adjustment>
+ *     <adjustedPrice>(price after adjustment)</adjustedPrice>
+ *   </stock>
+ * </message>
+ *
+ * A tick stamped with its symbol's sequence number also gets a
+ * <sequence> element after <adjustedPrice>; decoders that don't know it
+ * skip it. begin/add/end build one message holding several stocks.
+ *
+ * Symbols and subjects are encoded once and cached, integers are written
+ * digit by digit, and the timestamp is only re-formatted when the second
+ * changes--so once every symbol has been seen, encoding a tick allocates
+ * nothing. An encoder is not thread-safe; give each sender thread its own.
+ */
+public class PriceMessageEncoder {
+    private static final byte[] OPEN_MESSAGE = ascii("<message sent=\"");
+    private static final byte[] OPEN_STOCK = ascii("\">\n  <stock>\n    <name>");
+    private static final byte[] OPEN_ADJUSTMENT = ascii("</name>\n    <adjustment>");
+    private static final byte[] OPEN_PRICE = ascii("</adjustment>\n    <adjustedPrice>");
+    private static final byte[] CLOSE_MESSAGE = ascii("</adjustedPrice>\n  </stock>\n</message>");
+    private static final byte[] OPEN_SEQUENCE = ascii("</adjustedPrice>\n    <sequence>");
+    private static final byte[] CLOSE_SEQUENCED_MESSAGE = ascii("</sequence>\n  </stock>\n</message>");
+    private static final byte[] OPEN_BATCH = ascii("\">");
+    private static final byte[] OPEN_BATCH_STOCK = ascii("\n  <stock>\n    <name>");
+    private static final byte[] CLOSE_BATCH_STOCK = ascii("</sequence>\n  </stock>");
+    private static final byte[] CLOSE_BATCH = ascii("\n</message>");
+
+    private final Map<String, byte[]> symbolBytes = new HashMap<>();
+    private final Map<String, String> subjects = new HashMap<>();
+
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedTimestamp;
+
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    /**
+     * Encode one tick. The result is the first length() bytes of buffer(),
+     * and stays valid until the next call.
+     */
+    public int encode(long sentMillis, String symbol, int adjustment, int price) {
+        start(sentMillis, symbol, adjustment, price);
+        append(CLOSE_MESSAGE);
+        return length;
+    }
+
+    /**
+     * Encode one tick stamped with its symbol's sequence number.
+     */
+    public int encode(long sentMillis, String symbol, int adjustment, int price, long sequence) {
+        start(sentMillis, symbol, adjustment, price);
+        append(OPEN_SEQUENCE);
+        appendLong(sequence);
+        append(CLOSE_SEQUENCED_MESSAGE);
+        return length;
+    }
+
+    private void start(long sentMillis, String symbol, int adjustment, int price) {
+        length = 0;
+        append(OPEN_MESSAGE);
+        append(timestamp(sentMillis));
+        append(OPEN_STOCK);
+        append(symbolBytes(symbol));
+        append(OPEN_ADJUSTMENT);
+        appendInt(adjustment);
+        append(OPEN_PRICE);
+        appendInt(price);
+    }
+
+    /**
+     * Start a message of several stocks; follow with add for each, then end.
+     */
+    public void begin(long sentMillis) {
+        length = 0;
+        append(OPEN_MESSAGE);
+        append(timestamp(sentMillis));
+        append(OPEN_BATCH);
+    }
+
+    public void add(String symbol, int adjustment, int price, long sequence) {
+        append(OPEN_BATCH_STOCK);
+        append(symbolBytes(symbol));
+        append(OPEN_ADJUSTMENT);
+        appendInt(adjustment);
+        append(OPEN_PRICE);
+        appendInt(price);
+        append(OPEN_SEQUENCE);
+        appendLong(sequence);
+        append(CLOSE_BATCH_STOCK);
+    }
+
+    /**
+     * @return the number of bytes in buffer()
+     */
+    public int end() {
+        append(CLOSE_BATCH);
+        return length;
+    }
+
+    public byte[] buffer() { return buffer; }
+
+    public int length() { return length; }
+
+    /**
+     * The subject a tick for this symbol is published on.
+     */
+    public String subject(String symbol) {
+        String subject = subjects.get(symbol);
+        if (subject == null) {
+            subject = "PriceAdjustment." + symbol;
+            subjects.put(symbol, subject);
+        }
+        return subject;
+    }
+
+    private byte[] timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = ascii(timestampFormat.format(new Date(millis)));
+        }
+        return cachedTimestamp;
+    }
+
+    private byte[] symbolBytes(String symbol) {
+        byte[] bytes = symbolBytes.get(symbol);
+        if (bytes == null) {
+            bytes = symbol.getBytes(StandardCharsets.UTF_8);
+            symbolBytes.put(symbol, bytes);
+        }
+        return bytes;
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendInt(int value) {
+        ensureCapacity(11); // "-2147483648"
+        if (value == Integer.MIN_VALUE) {
+            append(ascii(Integer.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void appendLong(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            appendInt((int) value);
+        } else {
+            append(ascii(Long.toString(value)));
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
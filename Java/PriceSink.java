@@ -0,0 +1,17 @@
+/**
+ * This is a new feature of Java, called a "functional interface";
+ * it defines a lambda type that means we can pass in a three-argument
+ * method (instance or static) as a parameter to the StockMarket
+ * constructor. See the StockPublisher code for an example.
+ *
+ * In general, "function parameters" like this are a powerful way
+ * to combine functionality without using traditional inheritance--in
+ * essence, you are "customizing" the behavior of the recipient
+ * by passing that functionality in as a parameter.
+ *
+ * The arguments are primitive ints, so a tick never boxes.
+ */
+@FunctionalInterface
+interface PriceSink {
+    public void apply(String symbol, int adjustment, int price);
+}
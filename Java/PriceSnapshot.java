@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+import io.nats.client.Message;
+import io.nats.client.impl.Headers;
+
+/**
+ * The latest price of every symbol as the publisher sent it, served to
+ * brokers and clients that join mid-session so they don't have to wait for
+ * each symbol to happen to tick again.
+ *
+ * StockPublisher records every tick here as it sends it, which is also
+ * what gives the tick its symbol's sequence number (1, 2, 3, ...). A
+ * request on "PriceSnapshot" is answered with every symbol's latest price
+ * and sequence number in sequenced BinaryCodec price messages (36 bytes a
+ * symbol, adjustments left 0), whatever -Dwire says. Each holds up to
+ * -Dsnapshot.partSymbols symbols (default 16384, well inside NATS's
+ * default 1MB payload), and every one but the last says so (see more()).
+ *
+ * StockPublisher makes the book big enough for every symbol of its
+ * markets. If it fills up anyway (say, replaying a tape with more symbols),
+ * a new symbol is left out of the snapshot and its ticks go out
+ * unsequenced (sequence 0, which subscribers take as the newest price);
+ * no tick is held back.
+ *
+ * A subscriber subscribes to the live ticks first, then calls request()
+ * so the reply arrives on the same dispatcher as the ticks. Merging both
+ * into a PriceBook (see PriceBook.merge) keeps whichever is newer for each
+ * symbol, however the two interleave.
+ */
+public class PriceSnapshot {
+    public static final String SUBJECT = "PriceSnapshot";
+    public static final int DEFAULT_SYMBOLS = Integer.getInteger("snapshot.symbols", 1 << 14);
+    static final String MORE_HEADER = "Snapshot-More";
+    private static final int PART_SYMBOLS = Math.min(BinaryCodec.MAX_PRICES, Integer.getInteger("snapshot.partSymbols", 1 << 14));
+
+    private final PriceBook book;
+    private final int capacity;
+    private boolean full = false; // recording thread only
+
+    // responder thread only
+    private final BinaryCodec codec = new BinaryCodec();
+    private final PriceBook.Quote quote = new PriceBook.Quote();
+
+    /**
+     * Room for -Dsnapshot.symbols symbols (default 16384).
+     */
+    public PriceSnapshot() {
+        this(DEFAULT_SYMBOLS);
+    }
+
+    public PriceSnapshot(int capacity) {
+        this.capacity = capacity;
+        book = new PriceBook(capacity);
+    }
+
+    /**
+     * Record a tick that is about to be sent. Call from one thread only.
+     * @return the tick's sequence number, or 0 if the symbol is new and
+     * the snapshot has no room left for it
+     */
+    public long record(String symbol, int price) {
+        int id = book.id(symbol);
+        if (id < 0) {
+            if (book.size() == capacity) {
+                if (!full) {
+                    full = true;
+                    System.err.println("Price snapshot is full (" + capacity + " symbols, see -Dsnapshot.symbols); "
+                        + "new symbols tick unsequenced and are left out of it");
+                }
+                return 0;
+            }
+            id = book.intern(symbol);
+        }
+        return book.update(id, price);
+    }
+
+    /**
+     * Answer snapshot requests on the bus.
+     */
+    public void start(Bus bus) {
+        Bus.Dispatcher responder = bus.createDispatcher((msg) -> {
+            if (msg.getReplyTo() == null) {
+                return;
+            }
+            try {
+                int size = book.size();
+                int from = 0;
+                do {
+                    int to = Math.min(size, from + PART_SYMBOLS);
+                    Headers headers = null;
+                    if (to < size) {
+                        headers = new Headers();
+                        headers.put(MORE_HEADER, "true");
+                    }
+                    bus.publish(msg.getReplyTo(), headers, encode(from, to));
+                    from = to;
+                } while (from < size);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        responder.subscribe(SUBJECT);
+    }
+
+    // Ids from up to to. Each symbol is read consistently; a symbol that
+    // ticks mid-snapshot shows up at whichever price it had when it was read
+    byte[] encode(int from, int to) {
+        codec.beginSequencedPrices(System.currentTimeMillis());
+        for (int id = from; id < to; id++) {
+            if (book.quote(id, quote)) {
+                codec.addPrice(book.symbol(id), 0, quote.price, quote.sequence);
+            }
+        }
+        int length = codec.endPrices();
+        return Arrays.copyOf(codec.buffer(), length);
+    }
+
+    /**
+     * Ask for a snapshot, to be delivered through dispatcher like a tick.
+     * @return the inbox the reply will arrive on, to unsubscribe once a
+     * part arrives that has no more() after it
+     */
+    public static String request(Bus bus, Bus.Dispatcher dispatcher) {
+        String inbox = bus.createInbox();
+        dispatcher.subscribe(inbox);
+        bus.publish(SUBJECT, inbox, null, new byte[0]);
+        return inbox;
+    }
+
+    /**
+     * Whether more parts of the snapshot follow this one.
+     */
+    public static boolean more(Message msg) {
+        return msg.hasHeaders() && msg.getHeaders().containsKey(MORE_HEADER);
+    }
+}
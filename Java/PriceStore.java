@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only, per-symbol tick store that can answer "prices for SYMBOL
+ * between T1 and T2" and "last N ticks for SYMBOL" without scanning.
+ *
+ * Each symbol gets its own directory of segments. A segment is a pair of
+ * files named after the timestamp of its first record:
+ *
+ *   (first millis).seg   fixed-width 16-byte records
+ *                        { received millis (i64) | adjustment (i32) | price (i32) }
+ *   (first millis).idx   one { millis (i64) | record number (i64) } entry
+ *                        for every INDEX_INTERVAL records
+ *
+ * Timestamps within a symbol never go backwards (a clock that steps back
+ * is clamped), so queries binary-search the sparse index of a memory-mapped
+ * segment and then scan at most one index interval. Segments roll over
+ * every SEGMENT_RECORDS records.
+ *
+ * Writing is single-threaded (StockMonitor's PriceLogWriter thread);
+ * queries may run at the same time, from any thread or process, and see
+ * every record that has been flushed.
+ *
+ * A symbol names a directory, so every method rejects a symbol that isn't
+ * a single subject token (see WireFormat.isSymbol) with an
+ * IllegalArgumentException before touching the filesystem.
+ *
+ * Usage: java PriceStore [store_dir] range SYMBOL T1 T2
+ *        java PriceStore [store_dir] last SYMBOL N
+ * where times are epoch millis or yyyy.MM.dd.HH.mm.ss
+ */
+public class PriceStore implements AutoCloseable {
+    static final int RECORD = 16;
+    static final int INDEX_ENTRY = 16;
+    static final int INDEX_INTERVAL = 256;
+    static final long SEGMENT_RECORDS = 1 << 20;
+
+    @FunctionalInterface
+    public interface TickVisitor {
+        void visit(long millis, int adjustment, int price);
+    }
+
+    private final Path directory;
+    private final Map<String, SegmentWriter> writers = new HashMap<>();
+
+    public PriceStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    // ---- writing --------------------------------------------------------
+
+    public void append(String symbol, long millis, int adjustment, int price) throws IOException {
+        SegmentWriter writer = writers.get(symbol);
+        if (writer == null) {
+            writer = new SegmentWriter(Files.createDirectories(symbolDirectory(symbol)));
+            writers.put(symbol, writer);
+        }
+        writer.append(millis, adjustment, price);
+    }
+
+    public void flush(boolean fsync) throws IOException {
+        for (SegmentWriter writer : writers.values()) {
+            writer.flush(fsync);
+        }
+    }
+
+    public void close() throws IOException {
+        for (SegmentWriter writer : writers.values()) {
+            writer.flush(false);
+            writer.close();
+        }
+        writers.clear();
+    }
+
+    // ---- queries --------------------------------------------------------
+
+    /**
+     * Visit every tick for symbol with from <= millis <= to, oldest first.
+     * @return the number of ticks visited
+     */
+    public int range(String symbol, long from, long to, TickVisitor visitor) throws IOException {
+        List<Long> starts = segments(symbol);
+        int visited = 0;
+        for (int s = 0; s < starts.size(); s++) {
+            if (starts.get(s) > to) {
+                break;
+            }
+            if (s + 1 < starts.size() && starts.get(s + 1) < from) {
+                continue; // this segment ends before the range starts
+            }
+            try (Segment segment = new Segment(symbolDirectory(symbol), starts.get(s))) {
+                for (long r = segment.firstAtOrAfter(from); r < segment.records; r++) {
+                    long millis = segment.millis(r);
+                    if (millis > to) {
+                        return visited;
+                    }
+                    visitor.visit(millis, segment.adjustment(r), segment.price(r));
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Visit the most recent n ticks for symbol, oldest first.
+     * @return the number of ticks visited
+     */
+    public int last(String symbol, int n, TickVisitor visitor) throws IOException {
+        List<Long> starts = segments(symbol);
+        // walk back until we have n records, then replay forwards
+        long needed = n;
+        int first = starts.size();
+        long skip = 0;
+        while (first > 0 && needed > 0) {
+            first--;
+            long records = Segment.records(symbolDirectory(symbol), starts.get(first));
+            skip = Math.max(0, records - needed);
+            needed -= records - skip;
+        }
+
+        int visited = 0;
+        for (int s = first; s < starts.size(); s++) {
+            try (Segment segment = new Segment(symbolDirectory(symbol), starts.get(s))) {
+                for (long r = (s == first ? skip : 0); r < segment.records && visited < n; r++) {
+                    visitor.visit(segment.millis(r), segment.adjustment(r), segment.price(r));
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    private List<Long> segments(String symbol) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        Path dir = symbolDirectory(symbol);
+        if (!Files.isDirectory(dir)) {
+            return starts;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                starts.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    private Path symbolDirectory(String symbol) {
+        if (!WireFormat.isSymbol(symbol)) {
+            throw new IllegalArgumentException("not a symbol: " + symbol);
+        }
+        return directory.resolve(symbol);
+    }
+
+    private static Path segmentFile(Path dir, long start) {
+        return dir.resolve(start + ".seg");
+    }
+
+    private static Path indexFile(Path dir, long start) {
+        return dir.resolve(start + ".idx");
+    }
+
+    /**
+     * The open segment of one symbol, with write-behind buffers for both files.
+     */
+    private static class SegmentWriter {
+        final Path dir;
+        FileChannel data;
+        FileChannel index;
+        final ByteBuffer dataBuffer = ByteBuffer.allocate(RECORD * 1024);
+        final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_ENTRY * 64);
+        long records;
+        long lastMillis = Long.MIN_VALUE;
+
+        SegmentWriter(Path dir) throws IOException {
+            this.dir = dir;
+            // pick up where the newest segment left off, if there is one
+            List<Long> starts = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    starts.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                }
+            }
+            if (!starts.isEmpty()) {
+                long start = Collections.max(starts);
+                open(start);
+                records = data.size() / RECORD;
+                data.truncate(records * RECORD); // drop any torn record
+                index.truncate(((records + INDEX_INTERVAL - 1) / INDEX_INTERVAL) * INDEX_ENTRY);
+                if (records > 0) {
+                    ByteBuffer last = ByteBuffer.allocate(8);
+                    data.read(last, (records - 1) * RECORD);
+                    lastMillis = last.getLong(0);
+                }
+            }
+        }
+
+        void append(long millis, int adjustment, int price) throws IOException {
+            millis = Math.max(millis, lastMillis);
+            if (data == null || records >= SEGMENT_RECORDS) {
+                roll(millis);
+            }
+            if (records % INDEX_INTERVAL == 0) {
+                if (!indexBuffer.hasRemaining()) {
+                    writeOut(indexBuffer, index);
+                }
+                indexBuffer.putLong(millis).putLong(records);
+            }
+            if (!dataBuffer.hasRemaining()) {
+                writeOut(dataBuffer, data);
+            }
+            dataBuffer.putLong(millis).putInt(adjustment).putInt(price);
+            records++;
+            lastMillis = millis;
+        }
+
+        void flush(boolean fsync) throws IOException {
+            if (data == null) {
+                return;
+            }
+            writeOut(dataBuffer, data);
+            writeOut(indexBuffer, index);
+            if (fsync) {
+                data.force(false);
+                index.force(false);
+            }
+        }
+
+        private void roll(long start) throws IOException {
+            if (data != null) {
+                flush(false);
+                close();
+            }
+            open(start);
+            records = 0;
+        }
+
+        private void open(long start) throws IOException {
+            data = FileChannel.open(segmentFile(dir, start),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            data.position(data.size());
+            index = FileChannel.open(indexFile(dir, start),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            index.position(index.size());
+        }
+
+        void close() throws IOException {
+            data.close();
+            index.close();
+        }
+
+        private static void writeOut(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * A read-only, memory-mapped view of one segment and its index.
+     */
+    private static class Segment implements AutoCloseable {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final long records;
+        final long[] index; // alternating millis, record number
+
+        static long records(Path dir, long start) throws IOException {
+            return Files.size(segmentFile(dir, start)) / RECORD;
+        }
+
+        Segment(Path dir, long start) throws IOException {
+            channel = FileChannel.open(segmentFile(dir, start), StandardOpenOption.READ);
+            records = channel.size() / RECORD;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, records * RECORD);
+
+            Path indexPath = indexFile(dir, start);
+            long[] entries = new long[0];
+            if (Files.exists(indexPath)) {
+                try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                    int n = (int) (indexChannel.size() / INDEX_ENTRY);
+                    LongBuffer longs = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) n * INDEX_ENTRY).asLongBuffer();
+                    entries = new long[n * 2];
+                    longs.get(entries);
+                }
+            }
+            index = entries;
+        }
+
+        long millis(long record) { return map.getLong((int) (record * RECORD)); }
+
+        int adjustment(long record) { return map.getInt((int) (record * RECORD) + 8); }
+
+        int price(long record) { return map.getInt((int) (record * RECORD) + 12); }
+
+        /**
+         * The first record with millis >= from: binary search the sparse
+         * index for the last block starting before from, then scan it.
+         */
+        long firstAtOrAfter(long from) {
+            int lo = 0;
+            int hi = index.length / 2 - 1;
+            long record = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index[mid * 2] < from) {
+                    record = index[mid * 2 + 1];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            while (record < records && millis(record) < from) {
+                record++;
+            }
+            return record;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // ---- command line ---------------------------------------------------
+
+    public static void main(String... args) throws Exception {
+        int a = 0;
+        Path dir = Paths.get("./store");
+        if (args.length == 5 || (args.length == 4 && args[1].equals("last"))) {
+            dir = Paths.get(args[a++]);
+        }
+        if (args.length - a < 3) {
+            System.err.println("Usage: java PriceStore [store_dir] range SYMBOL T1 T2");
+            System.err.println("       java PriceStore [store_dir] last SYMBOL N");
+            System.exit(1);
+        }
+
+        String command = args[a++];
+        String symbol = args[a++];
+        SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+        StringBuilder out = new StringBuilder();
+        TickVisitor print = (millis, adjustment, price) ->
+            out.append(symbol).append(' ')
+               .append(format.format(new Date(millis))).append(' ')
+               .append(adjustment).append(' ')
+               .append(price).append('\n');
+
+        long start = System.nanoTime();
+        int found;
+        try (PriceStore store = new PriceStore(dir)) {
+            if (command.equals("range")) {
+                found = store.range(symbol, parseTime(args[a], format), parseTime(args[a + 1], format), print);
+            } else {
+                found = store.last(symbol, Integer.parseInt(args[a]), print);
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        System.out.print(out);
+        System.err.println(found + " ticks in " + micros + " us");
+    }
+
+    private static long parseTime(String time, SimpleDateFormat format) throws java.text.ParseException {
+        return time.matches("\\d+") ? Long.parseLong(time) : format.parse(time).getTime();
+    }
+}
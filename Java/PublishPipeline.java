@@ -0,0 +1,269 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import io.nats.client.impl.Headers;
+
+/**
+ * Hands price ticks from any number of StockMarket threads to a single
+ * sender thread that owns the (long-lived) bus connection.
+ *
+ * Producers claim a slot in a fixed-size ring with one atomic increment,
+ * fill it in, and mark it published; nobody ever takes a lock. The sender
+ * drains whatever is ready in order, publishes it, and flushes the
+ * connection's write buffer once per batch instead of once per tick.
+ * If the ring fills up, producers spin until the sender catches up.
+ *
+ * With -Dpublish.batch=N (N > 1) the sender packs up to N ticks of the
+ * same market into one multi-stock message on the market's batch subject
+ * (see StockPublisher.batchSubject) instead of sending each on its
+ * symbol's subject, so a subscriber can take the batches of just the
+ * markets it wants. Each market's batch goes out as soon as it is full, or
+ * once its first tick has waited -Dpublish.batchMicros (default 1000),
+ * which bounds the latency batching adds. Producers never wait for a batch:
+ * ticks are copied out of the ring as soon as the sender sees them.
+ *
+ * With -Dtrace, each tick is stamped when it is queued and the time it
+ * spent in the ring is recorded; a message carries the stamp of its
+ * first tick as a Trace-Published header.
+ */
+public class PublishPipeline implements AutoCloseable {
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final Bus bus;
+    private final PriceMessageEncoder encoder = new PriceMessageEncoder(); // sender thread only
+    private final BinaryCodec binary = new BinaryCodec(); // sender thread only
+    private final int mask;
+    private final int batchSize; // ticks drained between flushes
+
+    // each market's batch, and the ones being filled in the order they
+    // were started--sender thread only
+    private final int maxStocks;
+    private final long windowNanos;
+    private final long[] batchSequences; // scratch for whichever batch is being sent
+    private Batch[] batches = new Batch[16];
+    private Batch[] open = new Batch[16];
+    private int opened = 0;
+
+    // ring slots--one array per field, so a tick is never an object
+    private final int[] markets;
+    private final String[] symbols;
+    private final int[] adjustments;
+    private final int[] prices;
+    private final long[] timestamps;
+    private final long[] tickNanos; // only with -Dtrace
+    private final AtomicLongArray published; // sequence last written into each slot
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0; // next sequence the sender will read
+
+    private volatile boolean running = true;
+    private final Thread sender;
+
+    private final Latency.Histogram queued = Latency.histogram("publisher.queued");
+
+    /**
+     * Batching comes from -Dpublish.batch and -Dpublish.batchMicros.
+     */
+    public PublishPipeline(Bus bus) {
+        this(bus, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, Integer.getInteger("publish.batch", 1),
+            TimeUnit.MICROSECONDS.toNanos(Long.getLong("publish.batchMicros", 1000)));
+    }
+
+    public PublishPipeline(Bus bus, int capacity, int batchSize) {
+        this(bus, capacity, batchSize, 1, 0);
+    }
+
+    /**
+     * @param maxStocks the most ticks in one message; 1 sends each tick on its own
+     * @param windowNanos how long a partly-filled batch may wait for more
+     */
+    public PublishPipeline(Bus bus, int capacity, int batchSize, int maxStocks, long windowNanos) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.bus = bus;
+        this.mask = capacity - 1;
+        this.batchSize = batchSize;
+        if (maxStocks < 1 || maxStocks > BinaryCodec.MAX_PRICES) {
+            throw new IllegalArgumentException("stocks per message must be 1 to " + BinaryCodec.MAX_PRICES + ": " + maxStocks);
+        }
+        this.maxStocks = maxStocks;
+        this.windowNanos = windowNanos;
+        batchSequences = new long[maxStocks];
+
+        markets = new int[capacity];
+        symbols = new String[capacity];
+        adjustments = new int[capacity];
+        prices = new int[capacity];
+        timestamps = new long[capacity];
+        tickNanos = Latency.ENABLED ? new long[capacity] : null;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        sender = new Thread(this::drain, "publish-pipeline");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue one tick from the given market (numbered from 0) for
+     * publishing. Safe to call from any thread.
+     */
+    public void publish(int market, String symbol, int adjustment, int price) {
+        long seq = claimed.getAndIncrement();
+        while (seq - consumed > mask) {
+            Thread.onSpinWait(); // ring is full; wait for the sender
+        }
+        int slot = (int) seq & mask;
+        markets[slot] = market;
+        symbols[slot] = symbol;
+        adjustments[slot] = adjustment;
+        prices[slot] = price;
+        timestamps[slot] = System.currentTimeMillis();
+        if (Latency.ENABLED) {
+            tickNanos[slot] = Latency.now();
+        }
+        published.lazySet(slot, seq);
+    }
+
+    private void drain() {
+        long next = 0;
+        while (running || next < claimed.get()) {
+            int sent = 0;
+            while (sent < batchSize && published.get((int) next & mask) == next) {
+                int slot = (int) next & mask;
+                if (Latency.ENABLED) {
+                    queued.record(tickNanos[slot], Latency.now());
+                }
+                if (maxStocks > 1) {
+                    add(slot);
+                } else {
+                    Headers headers = Latency.ENABLED ? Latency.stamp(new Headers(), Latency.PUBLISHED, tickNanos[slot]) : null;
+                    try {
+                        StockPublisher.send(bus, encoder, binary, timestamps[slot], symbols[slot], adjustments[slot], prices[slot], headers);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+                next++;
+                sent++;
+                consumed = next;
+            }
+
+            boolean flushed = flushExpired(running ? System.nanoTime() : Long.MAX_VALUE);
+            if (sent > 0 || flushed) {
+                try {
+                    bus.flushBuffer();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+        flushExpired(Long.MAX_VALUE);
+    }
+
+    // Copy a tick into its market's batch, sending the batch once it is full
+    private void add(int slot) {
+        int market = markets[slot];
+        if (market >= batches.length) {
+            batches = Arrays.copyOf(batches, Math.max(market + 1, batches.length * 2));
+        }
+        Batch batch = batches[market];
+        if (batch == null) {
+            batch = batches[market] = new Batch(market, Math.min(maxStocks, 16));
+        }
+        if (batch.count == 0) {
+            batch.started = System.nanoTime();
+            batch.millis = timestamps[slot];
+            batch.tickNanos = Latency.ENABLED ? tickNanos[slot] : -1;
+            if (opened == open.length) {
+                open = Arrays.copyOf(open, opened * 2);
+            }
+            open[opened++] = batch;
+        }
+        batch.add(symbols[slot], adjustments[slot], prices[slot]);
+        if (batch.count == maxStocks) {
+            send(batch);
+        }
+    }
+
+    // Send every batch started at least windowNanos before now (every
+    // batch, given Long.MAX_VALUE), and forget the ones sent already
+    private boolean flushExpired(long now) {
+        boolean flushed = false;
+        int kept = 0;
+        for (int i = 0; i < opened; i++) {
+            Batch batch = open[i];
+            if (batch.count > 0 && (now == Long.MAX_VALUE || now - batch.started >= windowNanos)) {
+                send(batch);
+                flushed = true;
+            }
+            if (batch.count > 0) {
+                open[kept++] = batch;
+            }
+        }
+        Arrays.fill(open, kept, opened, null);
+        opened = kept;
+        return flushed;
+    }
+
+    private void send(Batch batch) {
+        Headers headers = Latency.ENABLED ? Latency.stamp(new Headers(), Latency.PUBLISHED, batch.tickNanos) : null;
+        try {
+            StockPublisher.sendBatch(bus, encoder, binary, batch.market, batch.millis, batch.symbols, batch.adjustments,
+                batch.prices, batchSequences, batch.count, headers);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        batch.count = 0;
+    }
+
+    /**
+     * Publish everything already queued, then close the bus.
+     */
+    public void close() throws InterruptedException {
+        running = false;
+        sender.join();
+        bus.close();
+    }
+
+    /**
+     * One market's ticks waiting to go out together; its arrays grow up to
+     * the most ticks a message may hold.
+     */
+    private static class Batch {
+        final int market;
+        String[] symbols;
+        int[] adjustments;
+        int[] prices;
+        int count = 0;
+        long millis, started, tickNanos;
+
+        Batch(int market, int capacity) {
+            this.market = market;
+            symbols = new String[capacity];
+            adjustments = new int[capacity];
+            prices = new int[capacity];
+        }
+
+        void add(String symbol, int adjustment, int price) {
+            if (count == symbols.length) {
+                symbols = Arrays.copyOf(symbols, count * 2);
+                adjustments = Arrays.copyOf(adjustments, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+            }
+            symbols[count] = symbol;
+            adjustments[count] = adjustment;
+            prices[count] = price;
+            count++;
+        }
+    }
+}
@@ -1,43 +1,80 @@
-import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
-import io.nats.client.Connection;
-import io.nats.client.Nats;
-import io.nats.client.Dispatcher;
 import io.nats.client.Message;
 
+/**
+ * Watches orders and their receipts for suspicious trading (see Surveillance).
+ *
+ * Messages are classified by subject on the dispatcher thread, before
+ * any payload is read: orders ("Order.(broker).(client)", in either wire
+ * format) and replies (anything under the inbox prefix) are handed to a
+ * worker, everything else is dropped. Each order's reply-to inbox is
+ * remembered together with the broker and client from its subject; the
+ * receipt comes back on that inbox, which is how it is matched to its
+ * order. Work is sharded by inbox across -Dsec.workers single-threaded
+ * workers (default one per core), so an order and its receipt always land
+ * on the same worker and each worker's correlation table needs no lock.
+ * Fills of resting limit orders ("Fill.(broker).(client)") name their
+ * parties in the subject, so they need no correlation. A broker's answer
+ * to a resent order repeats a receipt already seen, so it isn't reported,
+ * and neither is the answer for one instance's share of an order another
+ * instance of the same broker took.
+ *
+ * stop() shuts down in the order the work flows: it unsubscribes, lets the
+ * workers finish what they were handed, then the surveillance thread, and
+ * closes suspicions.log last, so no suspicion already on its way is lost.
+ */
 public class SEC {
   private static String STARTPATH = System.getProperty("user.dir");
-  private static String BROKER = "";
-  private static String CLIENT = "";
+  private static AuditLog suspicions;
+  private static Bus.Dispatcher intake;
+  private static volatile boolean stopping = false;
+
+  // Rolling per-client and per-broker rules (-Dsec.rules, default surveillance.xml),
+  // fed from one thread since a client's orders arrive on every worker
+  private static Surveillance surveillance;
+  private static final ExecutorService surveillanceThread = Executors.newSingleThreadExecutor();
+
+  private static final String ORDER_PREFIX = "Order.";
+  private static final String FILL_PREFIX = "Fill.";
+  private static final String INBOX_PREFIX = System.getProperty("sec.inboxPrefix", "_INBOX.");
+
+  // Correlation entries are dropped after -Dsec.correlationMillis (default 10s),
+  // and the oldest go first once a worker holds -Dsec.correlations (default 65536)
+  private static final int CORRELATION_CAPACITY = Integer.getInteger("sec.correlations", 1 << 16);
+  private static final long CORRELATION_MILLIS = Long.getLong("sec.correlationMillis", 10_000);
+
+  private static final String[] SUBJECTS = { ORDER_PREFIX + ">", WireFormat.binarySubject(ORDER_PREFIX + ">"),
+      INBOX_PREFIX + ">", FILL_PREFIX + ">", WireFormat.binarySubject(FILL_PREFIX + ">") };
+
+  private static final int WORKERS = Integer.getInteger("sec.workers", Runtime.getRuntime().availableProcessors());
+  private static final ExecutorService[] workers = new ExecutorService[WORKERS];
+  private static final Shard[] shards = new Shard[WORKERS];
+
+  static final int IGNORED = 0;
+  static final int ORDER = 1;
+  static final int REPLY = 2;
+  static final int FILL = 3;
 
   public static void main(String... args) {
     String natsURL = "nats://127.0.0.1:4222";
 
     try {
-      Connection nc = Nats.connect(natsURL);
-      Dispatcher market = nc.createDispatcher((msg) -> {
+      start(Bus.connect(natsURL), Paths.get(STARTPATH));
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
         try {
-          processMessage(msg);
-        } catch (Exception e) {
+          stop();
+        } catch (InterruptedException e) {
           e.printStackTrace();
         }
-
-      });
-
-      market.subscribe(">");
-
+      }));
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -45,83 +82,238 @@ public class SEC {
   }
 
 
-  private static void processMessage(Message msg) throws Exception {
-    DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    Document doc = builder.parse(new ByteArrayInputStream(msg.getData()));
-    XPath xPath = XPathFactory.newInstance().newXPath();
+  /**
+   * Watch the bus, writing suspicions.log into dir, until stop().
+   */
+  static void start(Bus bus, Path dir) throws Exception {
+    for (int i = 0; i < WORKERS; i++) {
+      workers[i] = Executors.newSingleThreadExecutor();
+      shards[i] = new Shard();
+    }
 
-    boolean isRequest = (boolean) xPath.compile("/order").evaluate(
-      doc, XPathConstants.BOOLEAN);
+    suspicions = AuditLog.fromSystemProperties(dir.resolve("suspicions.log"));
+
+    surveillance = Surveillance.fromFile(System.getProperty("sec.rules", "surveillance.xml"),
+        Integer.getInteger("sec.surveillance.keys", 1 << 16), SEC::buildLog);
+    System.out.println(surveillance.toString());
+
+    intake = bus.createDispatcher((msg) -> {
+      int kind = classify(msg.getSubject());
+      if (kind == IGNORED || stopping) {
+        return;
+      }
+      String inbox = kind == ORDER ? msg.getReplyTo() : msg.getSubject(); // any key will do for a fill
+      if (inbox == null) {
+        return; // an order nobody is waiting on can't be matched to a receipt
+      }
+      int partition = (inbox.hashCode() & 0x7FFFFFFF) % WORKERS;
+      Shard shard = shards[partition];
+      try {
+        workers[partition].execute(() -> {
+          try {
+            if (kind == ORDER) {
+              processRequest(shard, msg);
+            } else if (kind == FILL) {
+              processFill(shard, msg);
+            } else {
+              processReply(shard, msg);
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // arrived while stop() was shutting the workers down
+      }
+    });
+
+    for (String subject : SUBJECTS) {
+      intake.subscribe(subject);
+    }
+  }
 
-    boolean isReply = (boolean) xPath.compile("/orderReceipt").evaluate(
-      doc, XPathConstants.BOOLEAN);
 
-    if (isRequest) {
-      processRequest(msg);
-    } else if (isReply) {
-      processReply(msg);
+  /**
+   * Stop taking messages, wait for the workers and then the surveillance
+   * thread to finish what they were given, and close suspicions.log.
+   */
+  static void stop() throws InterruptedException {
+    stopping = true;
+    for (String subject : SUBJECTS) {
+      intake.unsubscribe(subject);
+    }
+    for (ExecutorService worker : workers) {
+      worker.shutdown();
+    }
+    for (ExecutorService worker : workers) {
+      if (!worker.awaitTermination(10, TimeUnit.SECONDS)) {
+        System.err.println("SEC: a worker is still busy after 10s");
+      }
     }
+    // only now, since the workers are what feed it
+    surveillanceThread.shutdown();
+    if (!surveillanceThread.awaitTermination(10, TimeUnit.SECONDS)) {
+      System.err.println("SEC: surveillance is still busy after 10s");
+    }
+    suspicions.close();
   }
 
 
-  private static void processRequest(Message msg) throws Exception {
-    String subject = new String(msg.getSubject());
-    String[] subjectArr = subject.split("[.]");
-    BROKER = subjectArr[1];
-    CLIENT = subjectArr[2];
+  /**
+   * Decide from the subject alone whether a message is an order, a reply, a fill, or noise.
+   */
+  static int classify(String subject) {
+    int start = subject.startsWith(WireFormat.BINARY_PREFIX) ? WireFormat.BINARY_PREFIX.length() : 0;
+    if (subject.startsWith(ORDER_PREFIX, start)) {
+      return ORDER;
+    }
+    if (subject.startsWith(FILL_PREFIX, start)) {
+      return FILL;
+    }
+    if (subject.startsWith(INBOX_PREFIX)) {
+      return REPLY;
+    }
+    return IGNORED;
   }
 
 
-  private static void processReply(Message msg) throws Exception {
-    DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    Document doc = builder.parse(new ByteArrayInputStream(msg.getData()));
-    XPath xPath = XPathFactory.newInstance().newXPath();
+  // "Order.(broker).(client)"; the payload isn't needed to know who is trading
+  private static void processRequest(Shard shard, Message msg) {
+    String subject = WireFormat.xmlSubject(msg.getSubject());
+    int brokerStart = ORDER_PREFIX.length();
+    int brokerEnd = subject.indexOf('.', brokerStart);
+    if (brokerEnd < 0) {
+      return;
+    }
+    String broker = subject.substring(brokerStart, brokerEnd);
+    String client = subject.substring(brokerEnd + 1);
+    long now = System.currentTimeMillis();
+    shard.correlations.put(msg.getReplyTo(), broker, client, now);
+    surveillanceThread.execute(() -> surveillance.onOrder(now, client, broker));
+  }
 
-    String totalCost = (String) xPath.compile("/orderReceipt/complete/@amount").evaluate(
-      doc, XPathConstants.STRING);
 
+  // Each leg of a batched order is its own transaction
+  private static void processReply(Shard shard, Message msg) throws Exception {
+    if (shard.codec.decode(msg.getData()) != MessageCodec.ORDER_RECEIPT) {
+      return; // some other request's reply
+    }
+    long now = System.currentTimeMillis();
+    Parties parties = shard.correlations.take(msg.getSubject(), now);
+    if (msg.hasHeaders() && msg.getHeaders().containsKey(StockBroker.REPEAT_HEADER)) {
+      return; // a resent order answered again; its fills were reported the first time
+    }
+    if (msg.hasHeaders() && msg.getHeaders().containsKey(StockBroker.SHARD_HEADER)) {
+      return; // one broker instance's share of another's order, reported with the whole
+    }
+    String client = parties != null ? parties.client : "unknown";
+    String broker = parties != null ? parties.broker : "unknown";
+    reportFills(shard.codec.receipt, now, client, broker);
+  }
 
-    if (Integer.parseInt(totalCost) > 500000) {
-      Node orderReceipt = (Node) xPath.compile("/orderReceipt").evaluate(
-        doc, XPathConstants.NODE);
 
-      Node orderSent = orderReceipt.getFirstChild();
+  // "Fill.(broker).(client)": a resting order of the client's, filled later
+  private static void processFill(Shard shard, Message msg) throws Exception {
+    String subject = WireFormat.xmlSubject(msg.getSubject());
+    int brokerStart = FILL_PREFIX.length();
+    int brokerEnd = subject.indexOf('.', brokerStart);
+    if (brokerEnd < 0 || shard.codec.decode(msg.getData()) != MessageCodec.ORDER_RECEIPT) {
+      return;
+    }
+    reportFills(shard.codec.receipt, System.currentTimeMillis(),
+        subject.substring(brokerEnd + 1), subject.substring(brokerStart, brokerEnd));
+  }
 
-      Timestamp timestamp = new Timestamp(System.currentTimeMillis());
 
-      buildLog(doc, timestamp, orderSent, totalCost);
+  // Only the shares that traded count; a leg's resting remainder is reported when it fills
+  private static void reportFills(MessageCodec.OrderReceipt receipt, long now, String client, String broker) {
+    for (int i = 0; i < receipt.legs; i++) {
+      int amount = receipt.filled(i);
+      if (amount > 0) {
+        String symbol = receipt.symbol[i];
+        boolean buy = receipt.buy[i];
+        int complete = receipt.legComplete[i];
+        surveillanceThread.execute(() -> surveillance.onFill(now, client, broker, symbol, buy, amount, complete));
+      }
     }
-
   }
 
 
-  private static void buildLog(Document doc, Timestamp time, Node orderSent, String totalCost) throws Exception {
+  private static void buildLog(long millis, String client, String broker, String detail) {
     StringBuilder sb = new StringBuilder();
-    XPath xPath = XPathFactory.newInstance().newXPath();
 
-    String orderType = orderSent.getNodeName();
+    sb.append("Timestamp: " + new Timestamp(millis) + ", ");
+    sb.append("Client: " + client + ", ");
+    sb.append("Broker: " + broker + ", ");
+    sb.append(detail + "\n");
 
-    String symbol = (String) xPath.compile("/orderReceipt/" + orderType + "/@symbol").evaluate(
-      doc, XPathConstants.STRING);
-  
-    String amount = (String) xPath.compile("/orderReceipt/" + orderType + "/@amount").evaluate(
-      doc, XPathConstants.STRING);
+    suspicions.append(sb.toString());
+  }
 
-    sb.append("Timestamp: " + time + ", ");
-    sb.append("Client: " + CLIENT + ", ");
-    sb.append("Broker: " + BROKER + ", ");
-    sb.append("Order Sent: <" + orderType + " symbol=\"" + symbol + "\" amount=\"" + amount + "\" />");
-    sb.append("Amount: " + totalCost + "\n");
 
-    logSuspicions(sb.toString());
+  /**
+   * One worker's codec and correlation table.
+   */
+  private static class Shard {
+    final MessageCodec codec = new MessageCodec();
+    final Correlations correlations = new Correlations(CORRELATION_CAPACITY, CORRELATION_MILLIS);
   }
 
 
-  private static void logSuspicions(String log) throws Exception {
-    File newFile = new File(STARTPATH + "/suspicions.log");
-    newFile.createNewFile();
+  /**
+   * Who sent the order waiting on a given inbox, and when.
+   */
+  static class Parties {
+    final String broker;
+    final String client;
+    final long millis;
 
-    FileOutputStream fos = new FileOutputStream(newFile, true);
-    fos.write(log.getBytes());
+    Parties(String broker, String client, long millis) {
+      this.broker = broker;
+      this.client = client;
+      this.millis = millis;
+    }
+  }
+
+
+  /**
+   * Inbox -> Parties, bounded in both size and age. Entries are kept in
+   * arrival order, which is also age order, so expiry only ever looks at
+   * the oldest few entries. Not thread-safe.
+   */
+  static class Correlations {
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final LinkedHashMap<String, Parties> entries = new LinkedHashMap<>();
+
+    Correlations(int capacity, long maxAgeMillis) {
+      this.capacity = capacity;
+      this.maxAgeMillis = maxAgeMillis;
+    }
+
+    void put(String inbox, String broker, String client, long now) {
+      expire(now);
+      if (entries.size() >= capacity) {
+        Iterator<Parties> oldest = entries.values().iterator();
+        oldest.next();
+        oldest.remove();
+      }
+      entries.put(inbox, new Parties(broker, client, now));
+    }
+
+    /**
+     * Remove and return the order waiting on this inbox, or null if there is none.
+     */
+    Parties take(String inbox, long now) {
+      expire(now);
+      return entries.remove(inbox);
+    }
+
+    private void expire(long now) {
+      Iterator<Parties> oldest = entries.values().iterator();
+      while (oldest.hasNext() && now - oldest.next().millis > maxAgeMillis) {
+        oldest.remove();
+      }
+    }
   }
 }
@@ -1,129 +1,675 @@
-import java.io.*;
 import java.time.Duration;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-
-import io.nats.client.Connection;
-import io.nats.client.Nats;
-import io.nats.client.Dispatcher;
 import io.nats.client.Message;
-
+import io.nats.client.impl.Headers;
+
+/**
+ * Usage: java StockBroker [broker_name]
+ *
+ * Each StockBroker is an instance, so several can share one bus in one
+ * process (see InProcessRun); main runs one over NATS.
+ *
+ * Every symbol has an OrderBook. An order's legs are matched against it
+ * (market orders, and limit orders via a leg's limit price); whatever a
+ * limit leg can't fill right away rests on the book, and the receipt
+ * says how much. A leg trades with other clients' resting orders before
+ * the market price (see OrderBook). A resting order is filled later by
+ * another client's order or by a PriceAdjustment that crosses it, and
+ * each of those fills is sent to its owner as a one-leg receipt on
+ * "Fill.(broker).(client)", in the format the order came in. What is
+ * still resting after -Dbroker.restMillis (default 60000; 0 keeps it
+ * until it fills) expires, and its owner gets a rejected one-leg receipt
+ * for it on the same subject.
+ *
+ * Several instances may run under the same name to share its load, each
+ * started with the same -Dbroker.shards (default 1) and its own
+ * -Dbroker.shard from 0. The symbols are split between them by hash, and
+ * only a symbol's owner keeps its price and its order book, so every
+ * order for a symbol meets the same book. They take orders as a queue
+ * group, so each order goes to exactly one of them; that instance trades
+ * the legs it owns and sends each other owner its share of the order on
+ * "Shard.(broker).(shard)". The worker doesn't wait for them: once every
+ * share's receipt is in, or -Dbroker.shardTimeoutMillis (default 2000)
+ * has passed, the client is answered with the receipts put back together
+ * leg by leg. A share whose owner is missing or too slow has its legs
+ * rejected, and the rest of the order is answered as usual; so while an
+ * instance is down, the symbols it owns can't be traded through any
+ * instance, and a share that was only answered too late may have traded
+ * all the same. A leg for a symbol the broker has no price for, or has
+ * never heard of, is rejected.
+ *
+ * An order leg names the sequence of the price its client decided on. The
+ * leg is priced at that exact tick (see PriceHistory), waiting up to
+ * -Dbroker.catchUpMillis (default 50) for an owner that is behind to
+ * receive it; only if the tick is too old to be remembered, or wasn't
+ * stamped, is the latest price used. The receipt says which sequence the
+ * leg was priced at.
+ *
+ * A client resends an order it got no receipt for under the same id. The
+ * broker remembers the receipts of the last -Dbroker.recentOrders orders
+ * (default 4096) by client and id, and answers a repeat with the receipt
+ * it already sent, marked with an Order-Repeat header, instead of trading
+ * it again. Owners remember their shares the same way, so a retry that
+ * reaches another instance still trades nothing twice.
+ */
 public class StockBroker {
-  private static Map<String, Integer> marketPrices = new HashMap<>();
+  private final String name;
+
+  // This instance owns the symbols that hash to shard, of shards
+  private final int shard;
+  private final int shards;
+  static final String SHARD_HEADER = "Broker-Shard";
+  private static final String FILL_SUBJECT_HEADER = "Fill-Subject";
+  private static final Duration SHARD_TIMEOUT = Duration.ofMillis(Long.getLong("broker.shardTimeoutMillis", 2000));
+  // Other instances' shares of orders are traded on its thread, which never waits on another instance
+  private Bus.Dispatcher shares;
+  private final MessageCodec shareCodec = new MessageCodec();
+  private final OrderBook.Fills shareFills = new OrderBook.Fills();
+  private final PriceBook.Quote shareQuote = new PriceBook.Quote();
+  // Split orders are put back together on whichever thread the last share's answer arrives on
+  private final MessageCodec mergeCodec = new MessageCodec();
+
+  // Written by the market dispatcher, quoted by the order workers
+  private final PriceBook marketPrices = new PriceBook();
+  private final PriceHistory priceHistory = new PriceHistory(Integer.getInteger("prices.symbols", 1 << 12));
+  private static final long CATCH_UP_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("broker.catchUpMillis", 50));
+  private Bus.Dispatcher market;
+  private Bus.Dispatcher request;
+  private volatile String snapshotInbox; // until the snapshot has arrived
+  private Bus bus;
+
+  // Locked while in use, by the order workers and the market dispatcher
+  private final Map<String, OrderBook> books = new ConcurrentHashMap<>();
+  // Order subject -> the subject its resting orders' fills go to
+  private final Map<String, String> fillSubjects = new ConcurrentHashMap<>();
+  private final OrderBook.Fills marketFills = new OrderBook.Fills();
+  private static final long REST_MILLIS = Long.getLong("broker.restMillis", 60_000);
+  private final LongAdder ordersHandled = new LongAdder();
+
+  // "(fill subject) (order id)" -> the receipt sent for it, once it has been
+  static final String REPEAT_HEADER = "Order-Repeat";
+  private static final int RECENT_ORDERS = Integer.getInteger("broker.recentOrders", 4096);
+  private final Map<String, CompletableFuture<byte[]>> recentOrders = Collections.synchronizedMap(
+    new LinkedHashMap<String, CompletableFuture<byte[]>>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<byte[]>> eldest) {
+        return size() > RECENT_ORDERS;
+      }
+    });
+
+  // Orders are handed off to a pool of single-threaded workers, partitioned
+  // by client (-Dbroker.workers, default one per core)
+  private static final int WORKERS = Integer.getInteger("broker.workers", Runtime.getRuntime().availableProcessors());
+  private final ExecutorService[] workers = new ExecutorService[WORKERS];
+
+  // One codec per thread, since codecs reuse their records (and so do fills and quotes)
+  private final MessageCodec marketCodec = new MessageCodec();
+  private final MessageCodec[] orderCodecs = new MessageCodec[WORKERS];
+  private final OrderBook.Fills[] orderFills = new OrderBook.Fills[WORKERS];
+  private final PriceBook.Quote[] orderQuotes = new PriceBook.Quote[WORKERS];
+
+  // With -Dtrace (see Latency)
+  private static final Latency.Histogram tickLatency = Latency.histogram("broker.tick");
+  private static final Latency.Histogram orderTransit = Latency.histogram("order.transit");
+  private static final Latency.Histogram queued = Latency.histogram("broker.queued");
+  private static final Latency.Histogram service = Latency.histogram("broker.service");
 
   public static void main(String... args) {
     String natsURL = "nats://127.0.0.1:4222";
 
     String name = args[0];
 
+    Latency.start("StockBroker " + name);
+    Runtime.getRuntime().addShutdownHook(new Thread(Latency::stop));
+
     try {
-      Connection nc = Nats.connect(natsURL);
-      Dispatcher market = nc.createDispatcher((msg) -> {
+      new StockBroker(name, Integer.getInteger("broker.shard", 0), Integer.getInteger("broker.shards", 1))
+        .start(Bus.connect(natsURL));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+
+  }
+
+
+  public StockBroker(String name) {
+    this(name, 0, 1);
+  }
+
+
+  /**
+   * One of shards instances running under name, owning the symbols that hash to shard.
+   */
+  public StockBroker(String name, int shard, int shards) {
+    if (shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("shard " + shard + " of " + shards);
+    }
+    this.name = name;
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+
+  /**
+   * Start quoting prices and taking this broker's orders on the bus.
+   */
+  public void start(Bus bus) {
+    this.bus = bus;
+    for (int i = 0; i < WORKERS; i++) {
+      workers[i] = Executors.newSingleThreadExecutor();
+      orderCodecs[i] = new MessageCodec();
+      orderFills[i] = new OrderBook.Fills();
+      orderQuotes[i] = new PriceBook.Quote();
+    }
+
+    market = bus.createDispatcher((msg) -> {
+      if (Latency.ENABLED) {
+        tickLatency.record(Latency.stamp(msg, Latency.PUBLISHED), Latency.now());
+      }
+      try {
+        updatePrices(msg);
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+
+    market.subscribe(WireFormat.subject("PriceAdjustment.*"));
+    market.subscribe(WireFormat.subject(StockPublisher.BATCH_SUBJECTS));
+    // Prices for every symbol right away, instead of as each one ticks
+    snapshotInbox = PriceSnapshot.request(bus, market);
+
+    request = bus.createDispatcher((msg) -> {
+      long received = Latency.ENABLED ? Latency.now() : -1;
+      int partition = partition(msg.getSubject());
+      workers[partition].execute(() -> {
         try {
-          updatePrices(msg);
+          receiveOrder(bus, msg, orderCodecs[partition], orderFills[partition], orderQuotes[partition], received);
         } catch (Exception e) {
           e.printStackTrace();
         }
       });
+    });
 
-      market.subscribe("PriceAdjustment.*");
+    // Orders are answered in whatever format they arrive in, so listen for
+    // both, sharing them with any other instances of this broker
+    request.subscribe("Order." + name + ".*", name);
+    request.subscribe(WireFormat.binarySubject("Order." + name + ".*"), name);
 
-      Dispatcher request = nc.createDispatcher((msg) -> {
+    if (shards > 1) {
+      shares = bus.createDispatcher((msg) -> {
         try {
-          receiveOrder(nc, msg);
+          receiveShare(msg);
         } catch (Exception e) {
           e.printStackTrace();
         }
       });
+      shares.subscribe(shardSubject(shard), name);
+    }
+  }
 
-      request.subscribe("Order." + name + ".*");
 
-    } catch (Exception e) {
-      e.printStackTrace();
+  /**
+   * Orders this instance has handled so far.
+   */
+  public long orders() {
+    return ordersHandled.sum();
+  }
+
+
+  /**
+   * Stop taking orders, leaving them to any other instances, and finish
+   * the ones already taken. Shares of other instances' orders are still
+   * traded, since no other instance owns their symbols.
+   */
+  public void close() {
+    if (request != null) {
+      request.unsubscribe("Order." + name + ".*");
+      request.unsubscribe(WireFormat.binarySubject("Order." + name + ".*"));
     }
+    for (ExecutorService worker : workers) {
+      if (worker != null) {
+        worker.shutdown();
+      }
+    }
+  }
 
+
+  // Live ticks and the snapshot arrive here in any order; each symbol keeps
+  // whichever price has the higher sequence number, and a new price fills
+  // the resting orders it crosses
+  void updatePrices(Message msg) throws Exception {
+    MessageCodec.PriceMessage prices = marketCodec.decodePriceMessage(msg.getData());
+
+    for (int i = 0; i < prices.count; i++) {
+      if (shards > 1 && owner(prices.symbol[i]) != shard) {
+        continue;
+      }
+      if (!marketPrices.merge(prices.symbol[i], prices.adjustedPrice[i], prices.sequence[i])) {
+        continue;
+      }
+      if (prices.sequence[i] > 0) {
+        priceHistory.record(marketPrices.id(prices.symbol[i]), prices.sequence[i], prices.adjustedPrice[i]);
+      }
+      OrderBook book = books.get(prices.symbol[i]);
+      if (book != null) {
+        marketFills.clear();
+        synchronized (book) {
+          book.expire(System.currentTimeMillis(), marketFills);
+          book.onPrice(prices.adjustedPrice[i], marketFills);
+        }
+        publishFills(marketFills, marketCodec, prices.sequence[i]);
+      }
+    }
+
+    if (msg.getSubject().equals(snapshotInbox) && !PriceSnapshot.more(msg)) {
+      market.unsubscribe(snapshotInbox);
+      snapshotInbox = null;
+    }
   }
 
 
-  private static void updatePrices(Message msg) throws Exception {
-    DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    Document doc = builder.parse(new ByteArrayInputStream(msg.getData()));
-    XPath xPath = XPathFactory.newInstance().newXPath();
+  // received is when the dispatcher took the order off the wire, if tracing
+  private void receiveOrder(Bus bus, Message msg, MessageCodec codec, OrderBook.Fills fills,
+                            PriceBook.Quote quote, long received) throws Exception {
+    long started = Latency.ENABLED ? Latency.now() : -1;
+    MessageCodec.Order order = codec.decodeOrder(msg.getData());
+    String fillSubject = fillSubjects.computeIfAbsent(msg.getSubject(), StockBroker::fillSubject);
+    boolean binary = BinaryCodec.isBinary(msg.getData());
 
-    Node nameElement = (Node) xPath.compile("/message/stock/name").evaluate(
-      doc, XPathConstants.NODE);
-    String stock = nameElement.getTextContent();
+    if (ownsAll(order)) {
+      reply(msg, trade(order, fillSubject, binary, codec, fills, quote), received, started);
+    } else {
+      // answered once the other owners have answered, without holding up this worker
+      split(order, fillSubject, binary, msg.getData(), codec, fills, quote)
+        .thenAccept(answer -> reply(msg, answer, received, started))
+        .exceptionally(e -> {
+          e.printStackTrace();
+          return null;
+        });
+    }
 
-    Node priceElement = (Node) xPath.compile("/message/stock/adjustedPrice").evaluate(
-      doc, XPathConstants.NODE);
-    String price = priceElement.getTextContent();
+    // The resting orders this one filled (at their own limits, not a
+    // market price); the reply has been encoded, so the receipt record is free
+    publishFills(fills, codec, 0);
+  }
 
-    if (!marketPrices.containsKey(stock)) {
-      marketPrices.put(stock, Integer.parseInt(price));
+
+  private void reply(Message msg, Answer answer, long received, long started) {
+    if (answer.repeat) {
+      Headers headers = new Headers(msg.getHeaders());
+      headers.put(REPEAT_HEADER, "true");
+      bus.publish(msg.getReplyTo(), headers, answer.reply);
+      return;
+    }
+
+    // A traced order gets its stamps back, plus ours
+    long ordered = Latency.ENABLED ? Latency.stamp(msg, Latency.ORDERED) : -1;
+    if (ordered >= 0) {
+      long replied = Latency.now();
+      orderTransit.record(ordered, received);
+      queued.record(received, started);
+      service.record(started, replied);
+      Headers headers = new Headers(msg.getHeaders());
+      Latency.stamp(headers, Latency.BROKER_RECEIVED, received);
+      Latency.stamp(headers, Latency.BROKER_REPLIED, replied);
+      bus.publish(msg.getReplyTo(), headers, answer.reply);
     } else {
-      marketPrices.replace(stock, Integer.parseInt(price));
+      bus.publish(msg.getReplyTo(), answer.reply);
     }
+    ordersHandled.increment();
   }
 
 
-  private static void receiveOrder(Connection nc, Message msg) throws Exception {
-    DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-    Document doc = builder.parse(new ByteArrayInputStream(msg.getData()));
-    XPath xPath = XPathFactory.newInstance().newXPath();
+  // Another instance's share of an order, all of it for symbols this one owns
+  private void receiveShare(Message msg) {
+    MessageCodec.Order order = shareCodec.decodeOrder(msg.getData());
+    String fillSubject = msg.getHeaders().getFirst(FILL_SUBJECT_HEADER);
+    Answer answer = trade(order, fillSubject, BinaryCodec.isBinary(msg.getData()), shareCodec, shareFills, shareQuote);
+    Headers headers = new Headers();
+    headers.put(SHARD_HEADER, Integer.toString(shard));
+    if (answer.repeat) {
+      headers.put(REPEAT_HEADER, "true");
+    }
+    bus.publish(msg.getReplyTo(), headers, answer.reply);
+    publishFills(shareFills, shareCodec, 0);
+  }
 
-    boolean transactionCheck = (boolean) xPath.compile("/order/buy").evaluate(
-      doc, XPathConstants.BOOLEAN);
 
-    String transactionType = "buy";
+  // Trade the order and encode its receipt, unless it has been traded
+  // before under the same id, in which case the receipt sent then is the answer
+  private Answer trade(MessageCodec.Order order, String fillSubject, boolean binary,
+                       MessageCodec codec, OrderBook.Fills fills, PriceBook.Quote quote) {
+    CompletableFuture<byte[]> answered = null;
+    if (order.id != 0) {
+      answered = new CompletableFuture<>();
+      CompletableFuture<byte[]> first = recentOrders.putIfAbsent(fillSubject + ' ' + order.id, answered);
+      if (first != null) {
+        fills.clear();
+        return new Answer(first.join(), true);
+      }
+    }
 
-    if (!transactionCheck) {
-      transactionType = "sell";
+    byte[] reply;
+    try {
+      MessageCodec.OrderReceipt receipt = processOrder(order, fillSubject, codec.receipt, fills, quote);
+      reply = binary ? codec.binary.encode(receipt) : codec.encode(receipt);
+    } catch (RuntimeException e) {
+      if (answered != null) {
+        recentOrders.remove(fillSubject + ' ' + order.id); // not traded, so a retry may try again
+        answered.completeExceptionally(e);
+      }
+      throw e;
+    }
+    if (answered != null) {
+      answered.complete(reply);
     }
+    return new Answer(reply, false);
+  }
 
-    String stock = (String) xPath.compile("/order/" + transactionType + "/@symbol").evaluate(
-      doc, XPathConstants.STRING);
 
-    String amount = (String) xPath.compile("/order/" + transactionType + "/@amount").evaluate(
-      doc, XPathConstants.STRING);
+  // Send every other owner its share of the order (the order itself if it
+  // is all theirs), trade ours, and put the receipts back together in the
+  // order's leg order once the others are in. It is a repeat only if every
+  // share was. Our share's fills are left in fills.
+  private CompletableFuture<Answer> split(MessageCodec.Order order, String fillSubject, boolean binary, byte[] data,
+                                          MessageCodec codec, OrderBook.Fills fills, PriceBook.Quote quote) {
+    int[] owners = new int[order.legs];
+    MessageCodec.Order[] parts = new MessageCodec.Order[shards];
+    int partCount = 0;
+    for (int i = 0; i < order.legs; i++) {
+      int owner = owner(order.symbol[i]);
+      owners[i] = owner;
+      MessageCodec.Order part = parts[owner];
+      if (part == null) {
+        part = parts[owner] = new MessageCodec.Order();
+        part.id = order.id;
+        partCount++;
+      }
+      int leg = part.add();
+      part.buy[leg] = order.buy[i];
+      part.symbol[leg] = order.symbol[i];
+      part.amount[leg] = order.amount[i];
+      part.limit[leg] = order.limit[i];
+      part.sequence[leg] = order.sequence[i];
+    }
+
+    Headers headers = new Headers();
+    headers.put(FILL_SUBJECT_HEADER, fillSubject);
+    List<CompletableFuture<Answer>> answers = new ArrayList<>(shards);
+    for (int s = 0; s < shards; s++) {
+      if (s == shard || parts[s] == null) {
+        answers.add(null);
+        continue;
+      }
+      byte[] share = partCount == 1 ? data : binary ? codec.binary.encode(parts[s]) : codec.encode(parts[s]);
+      MessageCodec.Order part = parts[s];
+      int owner = s;
+      answers.add(bus.requestWithTimeout(shardSubject(s), headers, share, SHARD_TIMEOUT).handle((reply, failure) ->
+        failure == null
+          ? new Answer(reply.getData(), reply.hasHeaders() && reply.getHeaders().containsKey(REPEAT_HEADER))
+          : unreachable(part, owner, binary)));
+    }
+    if (parts[shard] != null) {
+      answers.set(shard, CompletableFuture.completedFuture(trade(parts[shard], fillSubject, binary, codec, fills, quote)));
+    } else {
+      fills.clear(); // nothing of ours traded
+    }
+    if (partCount == 1) {
+      return answers.get(owners[0]);
+    }
+
+    CompletableFuture<?>[] all = new CompletableFuture<?>[partCount];
+    for (int s = 0, n = 0; s < shards; s++) {
+      if (answers.get(s) != null) {
+        all[n++] = answers.get(s);
+      }
+    }
+    return CompletableFuture.allOf(all).thenApply(done -> merge(order, owners, answers, binary));
+  }
+
+
+  // A share nobody answered in time: each of its legs is rejected
+  private Answer unreachable(MessageCodec.Order part, int owner, boolean binary) {
+    synchronized (mergeCodec) {
+      MessageCodec.OrderReceipt receipt = mergeCodec.receipt;
+      receipt.clear();
+      receipt.complete = 0;
+      for (int i = 0; i < part.legs; i++) {
+        int leg = receipt.add();
+        receipt.buy[leg] = part.buy[i];
+        receipt.symbol[leg] = part.symbol[i];
+        receipt.amount[leg] = part.amount[i];
+        receipt.legRejected[leg] = "no answer from " + name + " shard " + owner + ", which trades " + part.symbol[i];
+      }
+      receipt.rejected = receipt.legRejected[0];
+      return new Answer(binary ? mergeCodec.binary.encode(receipt) : mergeCodec.encode(receipt), false);
+    }
+  }
+
+
+  private Answer merge(MessageCodec.Order order, int[] owners, List<CompletableFuture<Answer>> answers, boolean binary) {
+    MessageCodec.OrderReceipt merged = new MessageCodec.OrderReceipt();
+    for (int i = 0; i < order.legs; i++) {
+      merged.add();
+    }
+    boolean repeat = true;
+    synchronized (mergeCodec) {
+      for (int s = 0; s < shards; s++) {
+        if (answers.get(s) == null) {
+          continue;
+        }
+        Answer answer = answers.get(s).join();
+        repeat &= answer.repeat;
+        MessageCodec.OrderReceipt receipt = mergeCodec.decodeReceipt(answer.reply);
+        for (int i = 0, leg = 0; i < order.legs; i++) {
+          if (owners[i] != s) {
+            continue;
+          }
+          merged.buy[i] = receipt.buy[leg];
+          merged.symbol[i] = receipt.symbol[leg];
+          merged.amount[i] = receipt.amount[leg];
+          merged.limit[i] = receipt.limit[leg];
+          merged.sequence[i] = receipt.sequence[leg];
+          merged.legComplete[i] = receipt.legComplete[leg];
+          merged.legRejected[i] = receipt.legRejected[leg];
+          merged.legResting[i] = receipt.legResting[leg];
+          merged.complete += receipt.legComplete[leg];
+          leg++;
+        }
+      }
+      merged.rejected = merged.legRejected[0];
+      for (int i = 0; i < merged.legs && merged.rejected != null; i++) {
+        if (merged.legRejected[i] == null) {
+          merged.rejected = null;
+        }
+      }
+      return new Answer(binary ? mergeCodec.binary.encode(merged) : mergeCodec.encode(merged), repeat);
+    }
+  }
+
+
+  private boolean ownsAll(MessageCodec.Order order) {
+    for (int i = 0; i < order.legs && shards > 1; i++) {
+      if (owner(order.symbol[i]) != shard) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  private int owner(String symbol) {
+    return Math.floorMod(symbol.hashCode(), shards);
+  }
 
-    String reply = processOrder(stock, amount, transactionCheck);
 
-    nc.publish(msg.getReplyTo(), reply.getBytes());
+  private String shardSubject(int s) {
+    return "Shard." + name + "." + s;
   }
 
 
-  private static String processOrder(String stock, String amount, boolean transactionType) {
-    int price = marketPrices.get(stock);
-    int cost = price * Integer.parseInt(amount);
+  // "Order.(broker).(client)" -> "Fill.(broker).(client)", keeping the wire format
+  private static String fillSubject(String orderSubject) {
+    int at = orderSubject.indexOf("Order.");
+    return orderSubject.substring(0, at) + "Fill." + orderSubject.substring(at + "Order.".length());
+  }
+
+
+  /**
+   * Match every leg of the order into the (reused) receipt record. A leg
+   * fills what it can now, rests the rest of a limit order on the book on
+   * behalf of owner, and is only rejected if neither happened; fills of
+   * resting orders are left in fills for the caller to publish, and quote
+   * is the calling thread's to reuse.
+   */
+  MessageCodec.OrderReceipt processOrder(MessageCodec.Order order, Object owner, MessageCodec.OrderReceipt receipt,
+                                         OrderBook.Fills fills, PriceBook.Quote quote) {
+    receipt.clear();
+    receipt.complete = 0;
+    receipt.rejected = null;
+    fills.clear();
+    int accepted = 0;
+    long now = System.currentTimeMillis();
+    long expires = REST_MILLIS > 0 ? now + REST_MILLIS : Long.MAX_VALUE;
+
+    for (int i = 0; i < order.legs; i++) {
+      int leg = receipt.add();
+      receipt.buy[leg] = order.buy[i];
+      receipt.symbol[leg] = order.symbol[i];
+
+      int id = marketPrices.id(order.symbol[i]);
+      if (id < 0) {
+        receipt.amount[leg] = order.amount[i];
+        receipt.legRejected[leg] = "unknown symbol " + order.symbol[i];
+        continue;
+      }
+      OrderBook book = books.computeIfAbsent(order.symbol[i], OrderBook::new);
+      int takenShares = fills.takerShares;
+      long takenCost = fills.takerCost;
+      price(id, order.sequence[i], quote);
+      int resting;
+      synchronized (book) {
+        book.expire(now, fills);
+        resting = book.submit(order.buy[i], order.limit[i], order.amount[i], quote.price, owner, expires, fills);
+      }
+      int filled = fills.takerShares - takenShares;
+
+      if (filled == 0 && resting == 0) {
+        receipt.amount[leg] = order.amount[i];
+        receipt.legRejected[leg] = "no price for " + order.symbol[i] + " yet";
+        continue;
+      }
+      receipt.amount[leg] = filled + resting; // less than asked if a market order ran out of liquidity
+      receipt.legResting[leg] = resting;
+      receipt.sequence[leg] = quote.price != PriceBook.NO_PRICE ? quote.sequence : 0;
+      receipt.legComplete[leg] = processLeg((int) (fills.takerCost - takenCost), order.buy[i]);
+      receipt.complete += receipt.legComplete[leg];
+      accepted++;
+    }
+
+    if (accepted == 0 && receipt.legs > 0) {
+      receipt.rejected = receipt.legRejected[0];
+    }
+    return receipt;
+  }
+
+
+  // The price to match a leg against: the tick it was decided on (sequence,
+  // 0 if none) if this instance has it or receives it in time, else the latest
+  private void price(int id, long sequence, PriceBook.Quote quote) {
+    if (sequence > 0) {
+      long deadline = System.nanoTime() + CATCH_UP_NANOS;
+      while (true) {
+        int price = priceHistory.price(id, sequence);
+        if (price != PriceBook.NO_PRICE) {
+          quote.price = price;
+          quote.sequence = sequence;
+          return;
+        }
+        boolean known = marketPrices.quote(id, quote);
+        if ((known && quote.sequence >= sequence) || System.nanoTime() >= deadline) {
+          break; // already moved past it (or gave up waiting): the latest will do
+        }
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+      }
+    }
+    if (!marketPrices.quote(id, quote)) {
+      quote.price = PriceBook.NO_PRICE;
+      quote.sequence = 0;
+    }
+  }
+
+
+  // Each resting order filled goes back to its owner as a one-leg receipt,
+  // with the sequence of the tick that filled it (0 if another order did),
+  // and each one expired as a rejected one
+  private void publishFills(OrderBook.Fills fills, MessageCodec codec, long sequence) {
+    MessageCodec.OrderReceipt receipt = codec.receipt;
+    for (int i = 0; i < fills.count; i++) {
+      String subject = (String) fills.owner[i];
+      receipt.clear();
+      receipt.rejected = null;
+      int leg = receipt.add();
+      receipt.buy[leg] = fills.buy[i];
+      receipt.symbol[leg] = fills.symbol[i];
+      receipt.amount[leg] = fills.shares[i];
+      if (fills.expired[i]) {
+        receipt.rejected = receipt.legRejected[leg] = "expired unfilled after " + REST_MILLIS + "ms";
+        receipt.complete = 0;
+      } else {
+        receipt.sequence[leg] = sequence;
+        receipt.legComplete[leg] = processLeg(fills.shares[i] * fills.price[i], fills.buy[i]);
+        receipt.complete = receipt.legComplete[leg];
+      }
+      bus.publish(subject, subject.startsWith(WireFormat.BINARY_PREFIX)
+        ? codec.binary.encode(receipt)
+        : codec.encode(receipt));
+    }
+  }
+
+
+  private static int processLeg(int cost, boolean transactionType) {
     int transactionFee = cost / 10;
-    int totalTransactionCost = 0;
 
     if (transactionType) {
-      totalTransactionCost = cost + transactionFee;
-      return buildReply("buy", stock, amount, totalTransactionCost);
+      return cost + transactionFee;
     } else {
-      totalTransactionCost = cost - transactionFee;
-      return buildReply("sell", stock, amount, totalTransactionCost);
+      return cost - transactionFee;
     }
   }
 
 
-  private static String buildReply(String transactionType, String stock, String amount, int cost) {
-    StringBuilder sb = new StringBuilder();
+  // Orders from one client always land on the same worker, so they are
+  // handled in order, while different clients are spread across workers
+  private static int partition(String subject) {
+    int hash = 0;
+    for (int i = subject.lastIndexOf('.') + 1; i < subject.length(); i++) {
+      hash = 31 * hash + subject.charAt(i);
+    }
+    return Math.floorMod(hash, WORKERS);
+  }
+
 
-    sb.append("<orderReceipt>");
-    sb.append("<" + transactionType + " symbol=\"" + stock + "\" amount=\"" + amount + "\" />");
-    sb.append("<complete amount=\"" + cost + "\" />");
-    sb.append("</orderReceipt>");
+  // A receipt to send, and whether it was sent before
+  private static class Answer {
+    final byte[] reply;
+    final boolean repeat;
 
-    return sb.toString();
+    Answer(byte[] reply, boolean repeat) {
+      this.reply = reply;
+      this.repeat = repeat;
+    }
   }
 }
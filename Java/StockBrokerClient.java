@@ -1,13 +1,19 @@
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -25,10 +31,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import io.nats.client.Connection;
-import io.nats.client.Dispatcher;
 import io.nats.client.Message;
-import io.nats.client.Nats;
 
 /**
  * Usage: java StockBrokerClient [client_name] [stockbroker_name] [nats_url] [path_to_strategy.xml] [portfolio.xml]
@@ -36,174 +39,344 @@ import io.nats.client.Nats;
 public class StockBrokerClient {
     private static final String PRICE_ADJUSTMENT_SUBJECT = "PriceAdjustment.*";
     private static final String ORDER_SUBJECT_PREFIX = "Order.";
-    private static String ORDER_SUBJECT;
+    private static final String FILL_SUBJECT_PREFIX = "Fill.";
+
+    private final String orderSubject;
+    private final String fillSubject;
+    private final Portfolio portfolio;
+    private final Strategy strategy;
+    private OrderPipeline orders;
+    private Bus.Dispatcher priceAdjustSubDispatcher;
+    private Bus.Dispatcher fillDispatcher;
+    private PriceConflator conflator; // only when conflating
+    private volatile String snapshotInbox; // until the snapshot has arrived
+    public boolean verbose = true;
+    // -Dprices.conflate=true: act only on the latest price of each symbol (see PriceConflator)
+    public boolean conflate = Boolean.getBoolean("prices.conflate");
+
+    // Prices are decoded on the price dispatcher thread; orders and receipts
+    // have their own codec on the OrderPipeline's thread
+    private final MessageCodec priceCodec = new MessageCodec();
+    private final MessageCodec fillCodec = new MessageCodec();
+    private final PriceBook latest = new PriceBook(); // dispatcher only
+
+    // With -Dtrace (see Latency)
+    private static final Latency.Histogram tickLatency = Latency.histogram("client.tick");
 
     public static void main(String[] args) {
-        ORDER_SUBJECT = ORDER_SUBJECT_PREFIX + args[1]; // broker name
-        ORDER_SUBJECT += "." + args[0]; // client name
         String natsURL = (args.length > 2 && args[2] != "") ? args[2] : "nats://127.0.0.1:4222";
         String strategyPath = (args.length > 3 && args[3] != "") ? args[3] : "strategy-1.xml";
         String portfolioPath = (args.length > 4 && args[4] != "") ? args[4] : "portfolio-1.xml";
 
         try {
-            Portfolio portfolio = new Portfolio(portfolioPath);
-            Strategy strategy = new Strategy(strategyPath, portfolio);
-            System.out.println(strategy.toString());
+            StockBrokerClient client = new StockBrokerClient(args[0], args[1], strategyPath, portfolioPath);
+            System.out.println(client.strategy.toString());
 
-            Connection nc = Nats.connect(natsURL);
-            final Connection conn = nc; // prevent compiler complaining about non-final variable used in lambda
-            
-            Dispatcher priceAdjustSubDispatcher = nc.createDispatcher((msg) -> {
+            Latency.start("StockBrokerClient " + args[0]);
+            client.start(Bus.connect(natsURL));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
-                    handlePriceAdjust(msg, strategy, portfolio, conn);
-                }
-                catch (Exception e) {
+                    client.close();
+                    Latency.stop();
+                } catch (Exception e) {
                     e.printStackTrace();
                 }
-            });
-            priceAdjustSubDispatcher.subscribe(PRICE_ADJUSTMENT_SUBJECT);
-
+            }));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static void handlePriceAdjust(Message msg, Strategy strategy, Portfolio portfolio, Connection nc) throws ParserConfigurationException, IOException, SAXException {
-        DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        InputStream msgStream = new ByteArrayInputStream(msg.getData());
-        Document msgDoc = docBuilder.parse(msgStream);
+    /**
+     * A client is an instance, so many can share one bus in one process
+     * (see InProcessRun); main runs one over NATS.
+     */
+    public StockBrokerClient(String clientName, String brokerName, String strategyPath, String portfolioPath)
+            throws ParserConfigurationException, IOException, SAXException, TransformerException {
+        orderSubject = ORDER_SUBJECT_PREFIX + brokerName + "." + clientName;
+        fillSubject = FILL_SUBJECT_PREFIX + brokerName + "." + clientName;
+        portfolio = new Portfolio(portfolioPath);
+        strategy = new Strategy(strategyPath, portfolio);
+    }
 
-        NodeList stocks = msgDoc.getElementsByTagName("stock");
-        StockPrice[] stockPrices = new StockPrice[stocks.getLength()];
-        for (int i = 0; i < stocks.getLength(); i++) {
-            Element stock = (Element) stocks.item(i);
+    /**
+     * Start trading on the bus.
+     */
+    public void start(Bus bus) {
+        orders = OrderPipeline.fromSystemProperties(bus, orderSubject, this::handleOrderReceipt, portfolio::getShares);
+        orders.verbose = verbose;
 
-            String symbol = stock.getElementsByTagName("name")
-                .item(0)
-                .getTextContent();
-            String adjustedPriceCents = stock.getElementsByTagName("adjustedPrice")
-                .item(0)
-                .getTextContent();
+        // Resting limit orders are filled later, and the fills come on their own subject
+        fillDispatcher = bus.createDispatcher((msg) -> {
+            try {
+                handleOrderReceipt(fillCodec.decodeReceipt(msg.getData()));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        fillDispatcher.subscribe(WireFormat.subject(fillSubject));
 
-            stockPrices[i] = new StockPrice(symbol, Integer.parseInt(adjustedPriceCents));
+        if (conflate) {
+            conflator = new PriceConflator(this::handlePrice);
         }
 
-        final Connection conn = nc; // prevent compiler complaining about non-final variable used in lambda
-        strategy.evaluate(stockPrices, txn -> { try {
-            requestTransaction(txn, portfolio, conn);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } });
+        priceAdjustSubDispatcher = bus.createDispatcher((msg) -> {
+            try {
+                handlePriceAdjust(msg);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        priceAdjustSubDispatcher.subscribe(WireFormat.subject(PRICE_ADJUSTMENT_SUBJECT));
+        priceAdjustSubDispatcher.subscribe(WireFormat.subject(StockPublisher.BATCH_SUBJECTS));
+        snapshotInbox = PriceSnapshot.request(bus, priceAdjustSubDispatcher);
     }
 
-    private static void requestTransaction(StockTransaction transaction, Portfolio portfolio, Connection nc) throws InterruptedException, ExecutionException, TimeoutException, ParserConfigurationException, SAXException, IOException, TransformerException {
-        System.out.println(transaction.toString());
-        String orderMsg = "<order><" +
-            transaction.type +
-            " symbol=\"" +
-            transaction.symbol +
-            "\" amount=\"" +
-            transaction.shares +
-            "\" /></order>";
-        Future<Message> incoming = nc.request(ORDER_SUBJECT, orderMsg.getBytes(StandardCharsets.US_ASCII));
-        Message msg = incoming.get(500, TimeUnit.MILLISECONDS);
-        handleOrderReceipt(msg, portfolio);
+    public OrderPipeline orders() {
+        return orders;
     }
 
-    private static void handleOrderReceipt(Message msg, Portfolio portfolio) throws ParserConfigurationException, SAXException, IOException, TransformerException {
-        DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        InputStream msgStream = new ByteArrayInputStream(msg.getData());
-        Document msgDoc = docBuilder.parse(msgStream);
+    /**
+     * Stop following prices, apply the last receipts, then write the
+     * portfolio back.
+     */
+    public void close() throws InterruptedException, IOException, TransformerException {
+        priceAdjustSubDispatcher.unsubscribe(WireFormat.subject(PRICE_ADJUSTMENT_SUBJECT));
+        priceAdjustSubDispatcher.unsubscribe(WireFormat.subject(StockPublisher.BATCH_SUBJECTS));
+        if (conflator != null) {
+            conflator.close();
+            System.out.println(conflator.stats());
+        }
+        orders.close();
+        fillDispatcher.unsubscribe(WireFormat.subject(fillSubject));
+        portfolio.close();
+    }
 
-        NodeList sellElems = msgDoc.getElementsByTagName("sell");
-        for (int i = 0; i < sellElems.getLength(); i++) {
-            Element sell = (Element) sellElems.item(i);
-            String symbol = sell.getAttribute("symbol");
-            int amount = Integer.parseInt(sell.getAttribute("amount"));
+    // Ticks and the snapshot both arrive here; a price the snapshot or a newer
+    // tick has already covered is stale and skipped. Without conflation the
+    // strategy runs right here, otherwise on the conflator's thread.
+    private void handlePriceAdjust(Message msg) {
+        // orders raised by a traced tick carry its stamps to the broker
+        long received = Latency.ENABLED ? Latency.now() : -1;
+        long published = Latency.ENABLED ? Latency.stamp(msg, Latency.PUBLISHED) : -1;
+        tickLatency.record(published, received);
+
+        MessageCodec.PriceMessage stockPrices = priceCodec.decodePriceMessage(msg.getData());
+        for (int i = 0; i < stockPrices.count; i++) {
+            String symbol = stockPrices.symbol[i];
+            int price = stockPrices.adjustedPrice[i];
+            long sequence = stockPrices.sequence[i];
+            if (!latest.merge(symbol, price, sequence)) {
+                continue;
+            }
+            if (conflator != null) {
+                conflator.offer(symbol, price, sequence, published, received);
+            } else {
+                handlePrice(symbol, price, sequence, published, received);
+            }
+        }
 
-            portfolio.setShares(
-                symbol,
-                portfolio.getShares(symbol) - amount
-            );
+        if (msg.getSubject().equals(snapshotInbox) && !PriceSnapshot.more(msg)) {
+            priceAdjustSubDispatcher.unsubscribe(snapshotInbox);
+            snapshotInbox = null;
         }
+    }
 
-        NodeList buyElems = msgDoc.getElementsByTagName("buy");
-        for (int i = 0; i < buyElems.getLength(); i++) {
-            Element buy = (Element) buyElems.item(i);
-            String symbol = buy.getAttribute("symbol");
-            int amount = Integer.parseInt(buy.getAttribute("amount"));
+    // Runs on the dispatcher, or on the conflator's thread when conflating.
+    // Orders name the sequence of the price behind them, so whichever broker
+    // instance takes one prices it the same (see StockBroker)
+    private void handlePrice(String symbol, int price, long sequence, long published, long received) {
+        strategy.evaluate(symbol, price, tx -> {
+            tx.sequence = sequence;
+            orders.submit(tx, published, received);
+        });
+    }
 
-            portfolio.setShares(
-                symbol,
-                portfolio.getShares(symbol) + amount
-            );
+    // Runs on the order pipeline's thread for receipts, and on the fill
+    // dispatcher for fills of resting orders; only filled shares are applied
+    private void handleOrderReceipt(MessageCodec.OrderReceipt receipt) throws IOException, TransformerException {
+        for (int i = 0; i < receipt.legs; i++) {
+            if (receipt.legRejected[i] != null) {
+                if (verbose) {
+                    System.out.println("Order rejected: " + receipt.legRejected[i]);
+                }
+                continue;
+            }
+            int filled = receipt.filled(i);
+            if (filled > 0) {
+                portfolio.addShares(receipt.symbol[i], receipt.buy[i] ? filled : -filled);
+            }
         }
     }
 
-    private static class Portfolio {
-        private Document document;
-        private String path;
+    /**
+     * The client's holdings, kept in memory as a symbol -> shares map.
+     *
+     * Every fill is appended to "(portfolio path).journal" as a small
+     * checksummed record of the symbol's new share count, so the hot path
+     * is one short append instead of a rewrite of the whole file. Every
+     * -Dportfolio.compactEvery fills (default 1000), and on close, the map
+     * is written back into the portfolio XML (through a temp file and an
+     * atomic rename) and the journal is emptied. On startup any journal
+     * left behind by a crash is replayed over the XML; since each record
+     * holds an absolute count, replaying one twice does no harm.
+     */
+    static class Portfolio {
+        private static final int COMPACT_EVERY = Integer.getInteger("portfolio.compactEvery", 1000);
+        private static final boolean FSYNC = Boolean.getBoolean("portfolio.fsync");
+
+        private final String path;
+        private final Path journalPath;
+        private final SymbolIntMap shares = new SymbolIntMap();
+        private final Document document; // kept so compaction preserves comments and layout
+        private final FileChannel journal;
+        private final ByteBuffer record = ByteBuffer.allocate(256);
+        private final CRC32 crc = new CRC32();
+        private int journaled = 0;
     
-        public Portfolio(String portfolioPath) throws ParserConfigurationException, IOException, SAXException {
+        public Portfolio(String portfolioPath) throws ParserConfigurationException, IOException, SAXException, TransformerException {
             path = portfolioPath;
-            load();
+            journalPath = Paths.get(path + ".journal");
+
+            DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            document = docBuilder.parse(new File(path));
+            NodeList stockNodes = document.getDocumentElement().getElementsByTagName("stock");
+            for (int i = 0; i < stockNodes.getLength(); i++) {
+                Element stockElement = (Element) stockNodes.item(i);
+                shares.put(stockElement.getAttribute("symbol"), Integer.parseInt(stockElement.getTextContent().trim()));
+            }
+
+            int replayed = replay();
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (replayed > 0) {
+                System.out.println("Recovered " + replayed + " fills from " + journalPath);
+                compact();
+            }
+            journal.position(journal.size());
         }
     
-        public int getShares(String symbol) throws ParserConfigurationException, SAXException, IOException {
-            load();
-            Element portfolioElement = document.getDocumentElement();
-            NodeList stockNodes = portfolioElement.getElementsByTagName("stock");
+        public synchronized int getShares(String symbol) {
+            return shares.get(symbol, 0);
+        }
     
-            for (int i = 0; i < stockNodes.getLength(); i++) {
-                Node stockNode = stockNodes.item(i);
-                if (stockNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element stockElement = (Element) stockNode;
-                    String stockSymbol = stockElement.getAttribute("symbol");
-                    if (stockSymbol.equals(symbol)) {
-                        String sharesText = stockElement.getTextContent();
-                        return Integer.parseInt(sharesText);
-                    }
-                }
-            }
-            return 0;
+        public synchronized void addShares(String symbol, int delta) throws IOException, TransformerException {
+            setShares(symbol, shares.get(symbol, 0) + delta);
         }
     
-        public void setShares(String symbol, int shares) throws TransformerException {
+        public synchronized void setShares(String symbol, int count) throws IOException, TransformerException {
+            shares.put(symbol, count);
+
+            // [symbol length (u8)][symbol][shares (i32)][crc32 of the preceding bytes (i32)]
+            byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+            record.clear();
+            record.put((byte) symbolBytes.length).put(symbolBytes).putInt(count);
+            crc.reset();
+            crc.update(record.array(), 0, record.position());
+            record.putInt((int) crc.getValue());
+            record.flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            if (FSYNC) {
+                journal.force(false);
+            }
+
+            if (++journaled >= COMPACT_EVERY) {
+                compact();
+            }
+        }
+
+        /**
+         * Write the current holdings back to the portfolio XML and empty the journal.
+         */
+        public synchronized void compact() throws IOException, TransformerException {
             Element portfolioElement = document.getDocumentElement();
             NodeList stockNodes = portfolioElement.getElementsByTagName("stock");
-    
+            SymbolIntMap written = new SymbolIntMap(shares.size());
             for (int i = 0; i < stockNodes.getLength(); i++) {
-                Node stockNode = stockNodes.item(i);
-                if (stockNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element stockElement = (Element) stockNode;
-                    String stockSymbol = stockElement.getAttribute("symbol");
-                    if (stockSymbol.equals(symbol)) {
-                        stockElement.setTextContent(Integer.toString(shares));
-                        break;
-                    }
-                }
+                Element stockElement = (Element) stockNodes.item(i);
+                String symbol = stockElement.getAttribute("symbol");
+                stockElement.setTextContent(Integer.toString(shares.get(symbol, 0)));
+                written.put(symbol, 1);
             }
-            save();
+            shares.forEach((symbol, count) -> {
+                if (!written.containsKey(symbol)) {
+                    Element stockElement = document.createElement("stock");
+                    stockElement.setAttribute("symbol", symbol);
+                    stockElement.setTextContent(Integer.toString(count));
+                    portfolioElement.appendChild(document.createTextNode("    "));
+                    portfolioElement.appendChild(stockElement);
+                    portfolioElement.appendChild(document.createTextNode("\n"));
+                }
+            });
+
+            Path target = Paths.get(path);
+            Path temp = Paths.get(path + ".tmp");
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.transform(new DOMSource(document), new StreamResult(temp.toFile()));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            journal.truncate(0);
+            journal.position(0);
+            journaled = 0;
         }
 
-        private void load() throws ParserConfigurationException, SAXException, IOException {
-            DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            document = docBuilder.parse(new File(path));
+        public synchronized void close() throws IOException, TransformerException {
+            compact();
+            journal.close();
         }
 
-        private void save() throws TransformerException {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    
-            DOMSource source = new DOMSource(document);
-            StreamResult result = new StreamResult(new File(path));
-            transformer.transform(source, result);
+        // Apply every intact journal record; a torn or corrupt tail is ignored
+        private int replay() throws IOException {
+            if (!Files.exists(journalPath)) {
+                return 0;
+            }
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+            int replayed = 0;
+            while (in.remaining() > 1) {
+                int start = in.position();
+                int symbolLength = in.get() & 0xFF;
+                if (in.remaining() < symbolLength + 8) {
+                    break;
+                }
+                String symbol = new String(in.array(), in.position(), symbolLength, StandardCharsets.UTF_8);
+                in.position(in.position() + symbolLength);
+                int count = in.getInt();
+                crc.reset();
+                crc.update(in.array(), start, in.position() - start);
+                if (in.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                shares.put(symbol, count);
+                replayed++;
+            }
+            return replayed;
         }
     }
 
-    private static class Strategy {
+    /**
+     * The client's rules, compiled into a per-symbol index so that a tick
+     * only touches the rules whose boundary it actually crossed.
+     *
+     * For every symbol (and once more for the wildcard {@code <stock />}
+     * rules, which apply to every symbol) the rules with a floor are kept
+     * sorted by their "above" price, and the rules with a ceiling by their
+     * "below" price. When a symbol moves up from its last price, a binary
+     * search finds the floors in [last, price), the only rules that can
+     * have just become true; moving down does the same for the ceilings in
+     * (price, last]. A rule fires when its condition becomes true, not on
+     * every tick it stays true; the first tick of a symbol fires every rule
+     * that already holds. Rules with neither bound fire on every tick.
+     */
+    static class Strategy {
         Rule[] rules;
         Portfolio portfolio;
 
+        private final Map<String, RuleIndex> bySymbol = new HashMap<>();
+        private final RuleIndex wildcard;
+        private final SymbolIntMap lastPrices = new SymbolIntMap();
+
         public Strategy(String strategyPath, Portfolio portfolio) throws ParserConfigurationException, IOException, SAXException {
             this.portfolio = portfolio;
 
@@ -217,20 +390,47 @@ public class StockBrokerClient {
                 Element ruleElem = (Element) ruleElems.item(i);
                 rules[i] = new Rule(ruleElem);
             }
-        }
 
-        public void evaluate(StockPrice[] stockPrices, Consumer<StockTransaction> placeTransaction) throws ParserConfigurationException, SAXException, IOException {
-            for (StockPrice stockPrice: stockPrices) {
-                for (Rule rule : rules) {
-                    if (rule.signalRaised(stockPrice)) {
-                        placeTransaction.accept(new StockTransaction(
-                            rule.transaction.symbol,
-                            rule.transaction.type,
-                            rule.transaction.shares == -1 ? this.portfolio.getShares(rule.transaction.symbol) : rule.transaction.shares
-                        ));
-                    }
+            Map<String, List<Rule>> grouped = new HashMap<>();
+            List<Rule> wildcardRules = new ArrayList<>();
+            for (Rule rule : rules) {
+                if (rule.symbol == null) {
+                    wildcardRules.add(rule);
+                } else {
+                    grouped.computeIfAbsent(rule.symbol, k -> new ArrayList<>()).add(rule);
                 }
             }
+            for (Map.Entry<String, List<Rule>> entry : grouped.entrySet()) {
+                bySymbol.put(entry.getKey(), new RuleIndex(entry.getValue()));
+            }
+            wildcard = new RuleIndex(wildcardRules);
+        }
+
+        public void evaluate(MessageCodec.PriceMessage stockPrices, Consumer<StockTransaction> placeTransaction) {
+            for (int i = 0; i < stockPrices.count; i++) {
+                evaluate(stockPrices.symbol[i], stockPrices.adjustedPrice[i], placeTransaction);
+            }
+        }
+
+        public void evaluate(String symbol, int price, Consumer<StockTransaction> placeTransaction) {
+            int last = lastPrices.get(symbol, PriceBook.NO_PRICE);
+            lastPrices.put(symbol, price);
+
+            RuleIndex index = bySymbol.get(symbol);
+            if (index != null) {
+                index.fire(this, symbol, last, price, placeTransaction);
+            }
+            wildcard.fire(this, symbol, last, price, placeTransaction);
+        }
+
+        // A sell of every share stays -1 here; OrderPipeline sizes it when it is sent
+        void place(Rule rule, String symbol, Consumer<StockTransaction> placeTransaction) {
+            placeTransaction.accept(new StockTransaction(
+                symbol,
+                rule.transaction.type,
+                rule.transaction.shares,
+                rule.transaction.limit
+            ));
         }
 
         public String toString() {
@@ -242,18 +442,110 @@ public class StockBrokerClient {
         }
     }
 
-    private static class Rule {
-        private String symbol;
+    /**
+     * One symbol's rules, sorted by their bounds.
+     */
+    private static class RuleIndex {
+        final int[] floors;       // ascending "above" prices
+        final Rule[] floorRules;
+        final int[] ceilings;     // ascending "below" prices
+        final Rule[] ceilingRules;
+        final Rule[] unbounded;
+
+        RuleIndex(List<Rule> rules) {
+            List<Rule> withFloor = new ArrayList<>();
+            List<Rule> withCeiling = new ArrayList<>();
+            List<Rule> neither = new ArrayList<>();
+            for (Rule rule : rules) {
+                if (rule.above != -1) withFloor.add(rule);
+                if (rule.below != -1) withCeiling.add(rule);
+                if (rule.above == -1 && rule.below == -1) neither.add(rule);
+            }
+            withFloor.sort((a, b) -> Integer.compare(a.above, b.above));
+            withCeiling.sort((a, b) -> Integer.compare(a.below, b.below));
+
+            floorRules = withFloor.toArray(new Rule[0]);
+            floors = new int[floorRules.length];
+            for (int i = 0; i < floors.length; i++) floors[i] = floorRules[i].above;
+            ceilingRules = withCeiling.toArray(new Rule[0]);
+            ceilings = new int[ceilingRules.length];
+            for (int i = 0; i < ceilings.length; i++) ceilings[i] = ceilingRules[i].below;
+            unbounded = neither.toArray(new Rule[0]);
+        }
+
+        void fire(Strategy strategy, String symbol, int last, int price, Consumer<StockTransaction> placeTransaction) {
+            if (last == PriceBook.NO_PRICE) {
+                // first tick: everything that holds right now
+                for (int k = 0, end = firstAtLeast(floors, price); k < end; k++) {
+                    if (floorRules[k].below == -1 || price < floorRules[k].below) {
+                        strategy.place(floorRules[k], symbol, placeTransaction);
+                    }
+                }
+                for (int k = firstAbove(ceilings, price); k < ceilings.length; k++) {
+                    if (ceilingRules[k].above == -1) { // ranged rules were handled with the floors
+                        strategy.place(ceilingRules[k], symbol, placeTransaction);
+                    }
+                }
+            } else if (price > last) {
+                // rose through floors in [last, price)
+                for (int k = firstAtLeast(floors, last); k < floors.length && floors[k] < price; k++) {
+                    if (floorRules[k].below == -1 || price < floorRules[k].below) {
+                        strategy.place(floorRules[k], symbol, placeTransaction);
+                    }
+                }
+            } else if (price < last) {
+                // fell through ceilings in (price, last]
+                for (int k = firstAbove(ceilings, price); k < ceilings.length && ceilings[k] <= last; k++) {
+                    if (ceilingRules[k].above == -1 || price > ceilingRules[k].above) {
+                        strategy.place(ceilingRules[k], symbol, placeTransaction);
+                    }
+                }
+            }
+
+            for (Rule rule : unbounded) {
+                strategy.place(rule, symbol, placeTransaction);
+            }
+        }
+
+        // first index whose value is >= x
+        private static int firstAtLeast(int[] sorted, int x) {
+            int lo = 0;
+            int hi = sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sorted[mid] < x) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        // first index whose value is > x
+        private static int firstAbove(int[] sorted, int x) {
+            int lo = 0;
+            int hi = sorted.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sorted[mid] <= x) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    static class Rule {
+        private String symbol; // null for a wildcard <stock /> rule
         private int above = -1; // -1 represents lack of ceiling
         private int below = -1; // -1 represents lack of floor
 
         public StockTransaction transaction;
 
         public Rule(Element rule) {
-            // parse relevant symbol
+            // parse relevant symbol; an empty <stock /> matches every symbol
             symbol = rule.getElementsByTagName("stock")
                 .item(0)
-                .getTextContent();
+                .getTextContent()
+                .trim();
+            if (symbol.isEmpty()) {
+                symbol = null;
+            }
 
             // parse conditions
             try {
@@ -276,35 +568,44 @@ public class StockBrokerClient {
                 below = -1;
             }
             
-            // parse actions (buy and sell are considered mutually exclusive)
+            // parse actions (buy and sell are considered mutually exclusive);
+            // an optional limit="(price)" makes it a limit order
             NodeList buyElems = rule.getElementsByTagName("buy");
             if (buyElems.getLength() > 0) {
                 int shares = Integer.parseInt(buyElems.item(0).getTextContent());
-                transaction = new StockTransaction(symbol, "buy", shares);
+                transaction = new StockTransaction(symbol, "buy", shares, limit((Element) buyElems.item(0)));
             }
 
             NodeList sellElems = rule.getElementsByTagName("sell");
             if (sellElems.getLength() > 0) {
+                int limit = limit((Element) sellElems.item(0));
                 try {
                     int shares = Integer.parseInt(sellElems.item(0).getTextContent());
-                    transaction = new StockTransaction(symbol, "sell", shares);
+                    transaction = new StockTransaction(symbol, "sell", shares, limit);
                 } catch (NumberFormatException e) {
-                    transaction = new StockTransaction(symbol, "sell", -1); // sell all available shares
+                    transaction = new StockTransaction(symbol, "sell", -1, limit); // sell all available shares
                 }
             }
         }
 
+        // limit="(price)" on a <buy> or <sell>, or MARKET
+        private static int limit(Element action) {
+            String limit = action.getAttribute("limit").trim();
+            return limit.isEmpty() ? MessageCodec.Order.MARKET : Integer.parseInt(limit);
+        }
+
         /**
          * Evaluate whether or not to place this rule's transaction given
          * the stock price. The trading signal is raised if the price meets
          * this rule's conditions.
-         * @param price stock price
+         * @param stockSymbol stock symbol
+         * @param adjustedPriceCents stock price
          * @return trading signal
          */
-        public boolean signalRaised(StockPrice price) {
-            if (price.symbol.equals(symbol)) {
-                if (above == -1 || price.adjustedPriceCents > above) {
-                    if (below == -1 || price.adjustedPriceCents < below) {
+        public boolean signalRaised(String stockSymbol, int adjustedPriceCents) {
+            if (symbol == null || stockSymbol.equals(symbol)) {
+                if (above == -1 || adjustedPriceCents > above) {
+                    if (below == -1 || adjustedPriceCents < below) {
                         return true;
                     }
                 }
@@ -315,7 +616,7 @@ public class StockBrokerClient {
         public String toString() {
             String aboveStr = above == -1 ? "-inf" : String.valueOf(above);
             String belowStr = below == -1 ? "inf" : String.valueOf(below);
-            return "If " + aboveStr + " < " + symbol + " < " + belowStr + " then " + transaction.toString();
+            return "If " + aboveStr + " < " + (symbol == null ? "any stock" : symbol) + " < " + belowStr + " then " + transaction.toString();
         }
     }
 
@@ -328,12 +629,20 @@ public class StockBrokerClient {
         public String type; // either "buy" or "sell"
         public int shares;
 
+        public int limit = MessageCodec.Order.MARKET; // the worst price to trade at
+        public long sequence = 0; // of the price it was decided on, if the publisher stamped it
+
         public StockTransaction(String symbol, String type, int shares) {
             this.symbol = symbol;
             this.type = type;
             this.shares = shares;
         }
 
+        public StockTransaction(String symbol, String type, int shares, int limit) {
+            this(symbol, type, shares);
+            this.limit = limit;
+        }
+
         public String toString() {
             String out = type + " ";
             if (shares == -1) {
@@ -343,24 +652,10 @@ public class StockBrokerClient {
             }
             out += " shares";
             out += " of " + symbol;
+            if (limit != MessageCodec.Order.MARKET) {
+                out += " at " + limit + " or better";
+            }
             return out;
         }
     }
-
-    /**
-     * Represents a symbol's stock price in cents
-     */
-    private static class StockPrice {
-        public String symbol;
-        public int adjustedPriceCents;
-
-        public StockPrice(String symbol, int adjustedPriceCents) {
-            this.symbol = symbol;
-            this.adjustedPriceCents = adjustedPriceCents;
-        }
-
-        public String toString() {
-            return symbol + " " + String.valueOf(adjustedPriceCents);
-        }
-    }
 }
@@ -1,22 +1,6 @@
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
-import java.util.function.*;
-
-/**
- * This is a new feature of Java, called a "functional interface";
- * it defines a lambda type that means we can pass in a three-argument
- * method (instance or static) as a parameter to the StockMarket
- * constructor. See the StockPublisher code for an example.
- * 
- * In general, "function parameters" like this are a powerful way
- * to combine functionality without using traditional inheritance--in
- * essence, you are "customizing" the behavior of the recipient
- * by passing that functionality in as a parameter.
- */
-@FunctionalInterface
-interface Function3<T1, T2, T3> {
-    public void apply(T1 one, T2 two, T3 three);
-}
 
 /**
  * A StockMarket spends its time doing two different things:
@@ -24,53 +8,113 @@ interface Function3<T1, T2, T3> {
  * ticker symbol to a new value. Note that a given SMT will only
  * change stocks for a small set of companies/symbols. It will be
  * assumed that no other SMTs represent the same set of symbols (yet).
+ *
+ * A market can run on its own thread (run()), or be driven by a
+ * MarketSimulator, which calls tick() whenever nextDelayNanos() says the
+ * market is due, for thousands of markets from a few threads. Either way
+ * all of its randomness comes from one generator, so a market built with
+ * a seed produces the same ticks every time.
  */
 public class StockMarket implements Runnable {
+    /**
+     * How long a market thinks between ticks. UNIFORM is the original
+     * behaviour: a whole number of half-means from 0 to 4, so a mean of
+     * 2 seconds sleeps 0, 1, 2, 3 or 4 seconds.
+     */
+    public enum Pacing { UNIFORM, EXPONENTIAL, FIXED }
+
     private AtomicBoolean quit = new AtomicBoolean(false);
     private String[] symbols = null;
-    private Map<String, Integer> stocks = new HashMap<>();
+    private int[] prices = null;
         // price is always in pennies--no floats! Floating-point money is evil.
+    private final SplittableRandom random;
+
+    private Pacing pacing = Pacing.UNIFORM;
+    private long meanNanos = TimeUnit.SECONDS.toNanos(2);
+    public boolean verbose = true;
 
-    public Function3<String, Integer, Integer> publish = null;
+    public PriceSink publish = null;
         // You must provide the function instance that does the NATS work
   
-    public StockMarket(Function3<String, Integer, Integer> publishFn, String... symbols)
-        throws java.io.IOException, InterruptedException {
+    public StockMarket(PriceSink publishFn, String... symbols) {
+      this(publishFn, new SplittableRandom(), symbols);
+    }
+
+    public StockMarket(PriceSink publishFn, SplittableRandom random, String... symbols) {
       this.symbols = symbols;
+      this.random = random;
   
       // Set up initial stock prices
-      Random startingPriceRandom = new Random();
-      for (String symbol : symbols) {
-        int price = startingPriceRandom.nextInt(10000) + 1000; // min $10.00
-        stocks.put(symbol, price);
-        System.out.println(symbol + " " + price(price));
+      prices = new int[symbols.length];
+      for (int i = 0; i < symbols.length; i++) {
+        prices[i] = random.nextInt(10000) + 1000; // min $10.00
       }
 
       this.publish = publishFn;
     }
   
+    /**
+     * Print the opening prices, as a market has always done on startup.
+     */
+    public void printPrices() {
+      for (int i = 0; i < symbols.length; i++) {
+        System.out.println(symbols[i] + " " + price(prices[i]));
+      }
+    }
+
+    /**
+     * How many stocks this market trades.
+     */
+    public int size() {
+      return symbols.length;
+    }
+
+    public StockMarket pace(Pacing pacing, long meanNanos) {
+      this.pacing = pacing;
+      this.meanNanos = meanNanos;
+      return this;
+    }
+
+    public long nextDelayNanos() {
+      switch (pacing) {
+        case FIXED:
+          return meanNanos;
+        case EXPONENTIAL:
+          return (long) (-Math.log(1.0 - random.nextDouble()) * meanNanos);
+        default:
+          return random.nextInt(5) * (meanNanos / 2);
+      }
+    }
+
+    /**
+     * Adjust one stock and publish the change.
+     */
+    public void tick() {
+      // Choose a stock at random
+      int stock = random.nextInt(symbols.length);
+
+      // Choose a fluctuation at random, +/- $5.00
+      int adjustment = (random.nextInt(1000) - 500);
+      int price = prices[stock] + adjustment;
+      prices[stock] = price;
+      if (verbose) {
+        System.out.println(symbols[stock] + " " + price(adjustment) + " = " + price(price));
+      }
+
+      // STUDENT: Publish the change to the NATS server
+      publish.apply(symbols[stock], adjustment, price);
+    }
+
+    public void quit() {
+      quit.set(true);
+    }
+
     public void run() {
-      Random waiter = new Random();
-      Random stockChooser = new Random();
-      Random priceFluctuator = new Random();
-  
       try {
         while (quit.get() == false) {
-          // Sleep up to 5 seconds
-          Thread.sleep(waiter.nextInt(5) * 1000);
-  
-          // Choose a stock at random
-          String symbol = symbols[stockChooser.nextInt(symbols.length)];
-          int price = stocks.get(symbol);
-  
-          // Choose a fluctuation at random, +/- $5.00
-          int adjustment = (priceFluctuator.nextInt(1000) - 500);
-          price += adjustment;
-          System.out.println(symbol + " " + price(adjustment) + " = " + price(price));
-          stocks.put(symbol, price);
-  
-          // STUDENT: Publish the change to the NATS server
-          publish.apply(symbol, adjustment, price);
+          // Think for a while (up to 4 seconds by default)
+          TimeUnit.NANOSECONDS.sleep(nextDelayNanos());
+          tick();
         }
       }
       catch (InterruptedException intEx) {
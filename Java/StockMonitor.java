@@ -1,92 +1,137 @@
 import io.nats.client.*;
 import java.io.File;
-import java.io.FileWriter;
-import org.w3c.dom.Document;
-import javax.xml.parsers.*;
-import javax.xml.xpath.*;
-import java.io.StringReader;
-// import input source
-import org.xml.sax.InputSource;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class StockMonitor {
 
-    private static DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    // Only ever touched from the dispatcher thread
+    private static final MessageCodec codec = new MessageCodec();
+    private static PriceLogWriter logWriter;
+    private static BarAggregator bars; // null unless -Dbars.windows is set
+    private static Set<String> wanted; // null when logging every stock
+    private static Bus.Dispatcher dispatcher;
+    private static final List<String> subjects = new ArrayList<>();
+    private static boolean stopping = false; // guarded by StockMonitor.class
 
     public static void main(String[] args) {
         try {
-            Connection nc = Nats.connect("nats://localhost:4222");
             String[] stock_list = { "*" };
             if (args.length > 0) {
                 stock_list = args;
             }
-            createLogFiles(stock_list);
-            subscribeToStocks(nc, stock_list);
+            start(Bus.connect("nats://localhost:4222"), stock_list, Paths.get("./logs"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    stop();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
         } catch (Exception e) {
             e.printStackTrace();
         }    
     }
 
-    private static void createLogFiles(String[] stock_list) {
-        try {
-            for (String stock : stock_list) {
-                File stock_file = new File("./logs/" +stock + "-log.log");
-                stock_file.createNewFile();
+    /**
+     * Log the given stocks ("*" for all) from the bus into logDir.
+     */
+    static PriceLogWriter start(Bus bus, String[] stock_list, Path logDir) throws IOException {
+        for (String stock : stock_list) {
+            if (!stock.equals("*") && !WireFormat.isSymbol(stock)) {
+                throw new IllegalArgumentException("not a symbol: " + stock);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        logWriter = PriceLogWriter.fromSystemProperties(logDir);
+        bars = BarAggregator.fromSystemProperties(bus, logDir);
+        createLogFiles(stock_list, logDir);
+        subscribeToStocks(bus, stock_list);
+        return logWriter;
+    }
+
+    /**
+     * Stop taking ticks, wait out the message being logged (if any), and
+     * only then flush and close the logs and the bars it was writing to.
+     */
+    static void stop() throws Exception {
+        for (String subject : subjects) {
+            dispatcher.unsubscribe(subject);
+        }
+        synchronized (StockMonitor.class) {
+            stopping = true; // anything the dispatcher still holds is dropped
+        }
+        logWriter.close();
+        if (bars != null) {
+            bars.close();
         }
     }
 
-    private static void logPriceAdjustment(Message msg, String stock_name) {
+    private static void createLogFiles(String[] stock_list, Path logDir) {
         try {
-            String adjustment = new String(msg.getData());
-            FileWriter stock_file = new FileWriter("./logs/" + stock_name + "-log.log", true);
-            stock_file.append(parseXML(adjustment));
-            stock_file.close();
+            for (String stock : stock_list) {
+                if (stock.equals("*")) {
+                    continue; // wildcard logs are created per symbol as ticks arrive
+                }
+                File stock_file = logDir.resolve(stock + "-log.log").toFile();
+                stock_file.createNewFile();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static String parseXML(String adjustment) {
+    // Every stock in the message goes to its own symbol's log, in wildcard
+    // mode too; the writer thread does the actual I/O. A batch can hold
+    // stocks nobody asked for. Each logged tick also goes into the bars.
+    private static void logPriceAdjustment(Message msg) {
         try {
-            Document document = dbf.newDocumentBuilder().parse(new InputSource(new StringReader(adjustment)));
-            XPath xpath = XPathFactory.newInstance().newXPath();
-            XPathExpression timestampExpr = xpath.compile("/message/@sent");
-            XPathExpression symbolExpr = xpath.compile("/message/stock/name/text()");
-            XPathExpression amountExpr = xpath.compile("/message/stock/adjustment/text()");
-            XPathExpression adjustedPriceExpr = xpath.compile("/message/stock/adjustedPrice/text()");
-
-            String symbol = (String) symbolExpr.evaluate(document, XPathConstants.STRING);
-            String timestamp = (String) timestampExpr.evaluate(document, XPathConstants.STRING);
-            String amount = (String) amountExpr.evaluate(document, XPathConstants.STRING);
-            String adjustedPrice = (String) adjustedPriceExpr.evaluate(document, XPathConstants.STRING);
-
-            return symbol + " " + timestamp + " " + amount + " " + adjustedPrice + "\n";
+            MessageCodec.PriceMessage message = codec.decodePriceMessage(msg.getData());
+            long received = System.currentTimeMillis();
+            for (int i = 0; i < message.count; i++) {
+                if (wanted == null || wanted.contains(message.symbol[i])) {
+                    logWriter.append(message, i);
+                    if (bars != null) {
+                        bars.onTick(message.symbol[i], message.adjustedPrice[i], received);
+                    }
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return null;
     }
 
 
-    private static void subscribeToStocks(Connection nc, String[] stock_list) {
-        Dispatcher stockMonitorDispatcher = nc.createDispatcher((msg) -> {
+    private static void subscribeToStocks(Bus bus, String[] stock_list) {
+        dispatcher = bus.createDispatcher((msg) -> {
             try {
-                if (stock_list[0].equals("*")) {
-                    logPriceAdjustment(msg, "*");
-                } else {
-                    String subject = msg.getSubject();
-                    String stock_name = subject.substring(subject.indexOf(".") + 1);
-                    logPriceAdjustment(msg, stock_name);
+                synchronized (StockMonitor.class) {
+                    if (!stopping) {
+                        logPriceAdjustment(msg);
+                    }
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
 
+        wanted = List.of(stock_list).contains("*") ? null : new HashSet<>(List.of(stock_list));
+        synchronized (StockMonitor.class) {
+            stopping = false;
+        }
+        subjects.clear();
         for (String stock : stock_list) {
-            stockMonitorDispatcher.subscribe("PriceAdjustment." + stock);
+            subjects.add(WireFormat.subject("PriceAdjustment." + stock));
+        }
+        // Batched ticks (see PublishPipeline) come on their market's subject,
+        // and which market trades which stock isn't known here, so take them all
+        subjects.add(WireFormat.subject(StockPublisher.BATCH_SUBJECTS));
+        for (String subject : subjects) {
+            dispatcher.subscribe(subject);
         }
     }
 }
@@ -1,12 +1,23 @@
-import io.nats.client.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import io.nats.client.impl.Headers;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
 /**
  * Take the NATS URL on the command-line.
  */
 public class StockPublisher {
 
   private static String natsURL = "nats://localhost:4222";
+
+  // Batched ticks go to their market's "PriceAdjustment.market(N).batch"; subscribe to
+  // BATCH_SUBJECTS (through WireFormat.subject) alongside "PriceAdjustment.*" for all of them
+  static final String BATCH_SUBJECTS = "PriceAdjustment.*.batch";
+  private static String[] batchSubjects = new String[16]; // by market, sender thread only
+  private static String[] binaryBatchSubjects = new String[16];
+  private static int markets = 0; // numbered as they are built
+  private static PublishPipeline pipeline;
+  private static PriceSnapshot snapshots; // numbers every tick and answers PriceSnapshot requests
+
   public static void main(String... args) throws Exception {
       if (args.length > 0) {
           natsURL = args[0];
@@ -14,12 +25,88 @@ public class StockPublisher {
 
       System.console().writer().println("Starting stock publisher....");
 
-      StockMarket sm1 = new StockMarket(StockPublisher::publishMessage, "AMZN", "MSFT", "GOOG", "APPL", "NVDA", "ADBE", "INTC");
-      new Thread(sm1).start();
-      StockMarket sm2 = new StockMarket(StockPublisher::publishMessage, "ACTV", "BLIZ", "ROVIO", "FDX", "COF", "ROST", "DLTR", "KHC");
-      new Thread(sm2).start();
-      StockMarket sm3 = new StockMarket(StockPublisher::publishMessage, "GE", "GMC", "F", "CAT", "TSLA", "RACE", "TM", "MBGYY", "HMC", "VWAGY");
-      new Thread(sm3).start();
+      // One connection for the life of the process; the pipeline owns it
+      Bus bus = Bus.connect(natsURL);
+      pipeline = new PublishPipeline(bus);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+              pipeline.close();
+              Latency.stop();
+          } catch (Exception e) {
+              e.printStackTrace();
+          }
+      }));
+      Latency.start("StockPublisher");
+
+      // -Dreplay=... republishes captured StockMonitor logs instead of simulating
+      if (System.getProperty("replay") != null) {
+          snapshots = new PriceSnapshot();
+          snapshots.start(bus);
+          TapeReplay.fromSystemProperties().play(nextMarket()); // the tape is the one market
+          System.exit(0); // the shutdown hook drains the pipeline
+      }
+
+      startMarkets(bus);
+    }
+
+    /**
+     * Publish onto an existing bus (see InProcessRun); stop() drains and
+     * closes it.
+     */
+    static MarketSimulator start(Bus bus) {
+      pipeline = new PublishPipeline(bus);
+      return startMarkets(bus);
+    }
+
+    static void stop() throws InterruptedException {
+      pipeline.close();
+    }
+
+    private static MarketSimulator startMarkets(Bus bus) {
+      // All markets share a few driver threads; see MarketSimulator for the -Dmarket.* knobs
+      MarketSimulator simulator = new MarketSimulator(Integer.getInteger("market.threads", 1));
+      long seed = Long.getLong("market.seed", System.nanoTime());
+      SplittableRandom seeds = new SplittableRandom(seed);
+      markets = 0;
+      StockMarket sm1 = new StockMarket(nextMarket(), seeds.split(), "AMZN", "MSFT", "GOOG", "APPL", "NVDA", "ADBE", "INTC");
+      StockMarket sm2 = new StockMarket(nextMarket(), seeds.split(), "ACTV", "BLIZ", "ROVIO", "FDX", "COF", "ROST", "DLTR", "KHC");
+      StockMarket sm3 = new StockMarket(nextMarket(), seeds.split(), "GE", "GMC", "F", "CAT", "TSLA", "RACE", "TM", "MBGYY", "HMC", "VWAGY");
+      int symbols = 0;
+      for (StockMarket market : new StockMarket[] { sm1, sm2, sm3 }) {
+          market.printPrices();
+          simulator.add(market);
+          symbols += market.size();
+      }
+
+      // -Dmarket.count=N adds N generated markets of -Dmarket.symbols stocks each (default 10)
+      int generated = Integer.getInteger("market.count", 0);
+      if (generated > 0) {
+          StockMarket.Pacing pacing = StockMarket.Pacing.valueOf(System.getProperty("market.pacing", "uniform").toUpperCase());
+          long meanNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("market.meanMillis", 2000));
+          for (StockMarket market : MarketSimulator.generate(StockPublisher::nextMarket,
+                  generated, Integer.getInteger("market.symbols", 10), seeds.nextLong())) {
+              simulator.add(market.pace(pacing, meanNanos));
+              symbols += market.size();
+          }
+      }
+
+      // Room in the snapshot for every symbol (or -Dsnapshot.symbols, if that
+      // is more), so that every tick is sequenced
+      snapshots = new PriceSnapshot(Math.max(PriceSnapshot.DEFAULT_SYMBOLS, symbols));
+      snapshots.start(bus);
+
+      // -Dmarket.tps=N turns every market into a load generator producing N ticks a second in total
+      long tps = Long.getLong("market.tps", 0);
+      if (tps > 0) {
+          for (StockMarket market : new StockMarket[] { sm1, sm2, sm3 }) {
+              market.verbose = false;
+          }
+          simulator.loadTest(tps);
+      }
+
+      System.out.println(simulator.size() + " markets, seed " + seed);
+      simulator.start();
+      return simulator;
     }
 
     public synchronized static void publishDebugOutput(String symbol, int adjustment, int price) {
@@ -27,25 +114,72 @@ public class StockPublisher {
     }
     // When you have the NATS code here to publish a message, put "publishMessage" in
     // the above where "publishDebugOutput" currently is
-    public synchronized static void publishMessage(String symbol, int adjustment, int price) {
-        String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        String msg = buildXMLString(timeStamp, symbol, adjustment, price);
-        try (Connection nc = Nats.connect(natsURL)) {
-            nc.publish("PriceAdjustment." + symbol, msg.getBytes());
-        } catch (Exception e) {
-            e.printStackTrace();
+    //
+    // No longer synchronized: the StockMarket threads just drop their tick into
+    // the pipeline, and its sender thread does the actual NATS work.
+    public static void publishMessage(int market, String symbol, int adjustment, int price) {
+        pipeline.publish(market, symbol, adjustment, price);
+    }
+
+    // Where the next market to be built publishes, so its ticks are batched together
+    private static PriceSink nextMarket() {
+        int market = markets++;
+        return (symbol, adjustment, price) -> publishMessage(market, symbol, adjustment, price);
+    }
+
+    // Called only from the pipeline's sender thread, which owns the encoders.
+    // Publishes in whichever wire format(s) -Dwire asks for; see WireFormat.
+    // headers is null unless the tick is being traced (see Latency).
+    // Every tick carries its symbol's sequence number (see PriceSnapshot).
+    static void send(Bus bus, PriceMessageEncoder encoder, BinaryCodec binary, long sentMillis, String symbol, int adjustment, int price, Headers headers) {
+        long sequence = snapshots.record(symbol, price);
+        // Encoding allocates nothing; the bus takes its own copy of the bytes it sends
+        if (WireFormat.xml()) {
+            int length = encoder.encode(sentMillis, symbol, adjustment, price, sequence);
+            bus.publish(encoder.subject(symbol), headers, encoder.buffer(), 0, length);
+        }
+        if (WireFormat.binary()) {
+            int length = binary.encodePrice(sentMillis, symbol, adjustment, price, sequence);
+            bus.publish(binary.priceSubject(symbol), headers, binary.buffer(), 0, length);
         }
     }
 
-    private static String buildXMLString(String timeStamp, String symbol, int adjustment, int price) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<message sent=\"").append(timeStamp).append("\">\n");
-        sb.append("  <stock>\n");
-        sb.append("    <name>").append(symbol).append("</name>\n");
-        sb.append("    <adjustment>").append(adjustment).append("</adjustment>\n");
-        sb.append("    <adjustedPrice>").append(price).append("</adjustedPrice>\n");
-        sb.append("  </stock>\n");
-        sb.append("</message>");
-        return sb.toString();
+    // Several ticks of one market in one message on its batch subject (see
+    // PublishPipeline), stamped with the first tick's time; otherwise just
+    // like send. sequences is scratch space for the ticks' sequence numbers.
+    static void sendBatch(Bus bus, PriceMessageEncoder encoder, BinaryCodec binary, int market, long sentMillis,
+                          String[] symbols, int[] adjustments, int[] prices, long[] sequences, int count, Headers headers) {
+        for (int i = 0; i < count; i++) {
+            sequences[i] = snapshots.record(symbols[i], prices[i]);
+        }
+        if (WireFormat.xml()) {
+            encoder.begin(sentMillis);
+            for (int i = 0; i < count; i++) {
+                encoder.add(symbols[i], adjustments[i], prices[i], sequences[i]);
+            }
+            int length = encoder.end();
+            bus.publish(batchSubject(market, false), headers, encoder.buffer(), 0, length);
+        }
+        if (WireFormat.binary()) {
+            binary.beginSequencedPrices(sentMillis);
+            for (int i = 0; i < count; i++) {
+                binary.addPrice(symbols[i], adjustments[i], prices[i], sequences[i]);
+            }
+            int length = binary.endPrices();
+            bus.publish(batchSubject(market, true), headers, binary.buffer(), 0, length);
+        }
+    }
+
+    // "PriceAdjustment.market(N).batch" in either wire format, built once per market
+    static String batchSubject(int market, boolean binary) {
+        if (market >= batchSubjects.length) {
+            batchSubjects = Arrays.copyOf(batchSubjects, Math.max(market + 1, batchSubjects.length * 2));
+            binaryBatchSubjects = Arrays.copyOf(binaryBatchSubjects, batchSubjects.length);
+        }
+        if (batchSubjects[market] == null) {
+            batchSubjects[market] = "PriceAdjustment.market" + market + ".batch";
+            binaryBatchSubjects[market] = WireFormat.binarySubject(batchSubjects[market]);
+        }
+        return binary ? binaryBatchSubjects[market] : batchSubjects[market];
     }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a large strategy (per-symbol and wildcard rules) and a random
+ * price walk, checks that StockBrokerClient.Strategy's indexed evaluation
+ * fires exactly the rules a linear scan over Rule.signalRaised says just
+ * became true, and then compares the two for throughput.
+ *
+ * Usage: java StrategyBenchmark [rules] [symbols] [ticks]
+ */
+public class StrategyBenchmark {
+    public static void main(String... args) throws Exception {
+        int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int symbolCount = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+
+        String[] symbols = new String[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            symbols[i] = "S" + i;
+        }
+
+        Path dir = Files.createTempDirectory("strategy-benchmark");
+        Path strategyFile = dir.resolve("strategy.xml");
+        Path portfolioFile = dir.resolve("portfolio.xml");
+        writeStrategy(strategyFile, ruleCount, symbols, new Random(314));
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(portfolioFile))) {
+            out.println("<portfolio><stock symbol=\"S0\">100</stock></portfolio>");
+        }
+
+        StockBrokerClient.Portfolio portfolio = new StockBrokerClient.Portfolio(portfolioFile.toString());
+        try {
+            StockBrokerClient.Strategy verify = new StockBrokerClient.Strategy(strategyFile.toString(), portfolio);
+            check(verify, symbols, 200_000);
+            System.out.println("Indexed evaluation matches the linear scan");
+            System.out.println();
+
+            long[] fired = new long[1];
+            StockBrokerClient.Strategy indexed = new StockBrokerClient.Strategy(strategyFile.toString(), portfolio);
+            StockBrokerClient.Strategy linear = new StockBrokerClient.Strategy(strategyFile.toString(), portfolio);
+            Map<String, Integer> last = new HashMap<>();
+
+            System.out.printf("%d rules over %d symbols, %d ticks%n", indexed.rules.length, symbolCount, ticks);
+            for (int round = 0; round < 3; round++) {
+                Random walk = new Random(42);
+                long start = System.nanoTime();
+                for (int t = 0; t < ticks; t++) {
+                    String symbol = symbols[walk.nextInt(symbolCount)];
+                    indexed.evaluate(symbol, 1000 + walk.nextInt(9000), tx -> fired[0]++);
+                }
+                long indexedNanos = System.nanoTime() - start;
+
+                int linearTicks = Math.max(1, ticks / 20);
+                walk = new Random(42);
+                start = System.nanoTime();
+                for (int t = 0; t < linearTicks; t++) {
+                    String symbol = symbols[walk.nextInt(symbolCount)];
+                    int price = 1000 + walk.nextInt(9000);
+                    Integer previous = last.put(symbol, price);
+                    for (StockBrokerClient.Rule rule : linear.rules) {
+                        if (rule.signalRaised(symbol, price) && (previous == null || !rule.signalRaised(symbol, previous))) {
+                            fired[0]++;
+                        }
+                    }
+                }
+                long linearNanos = System.nanoTime() - start;
+
+                System.out.printf("  indexed %,12.0f ticks/s   linear scan %,12.0f ticks/s%n",
+                    ticks * 1e9 / indexedNanos, linearTicks * 1e9 / linearNanos);
+            }
+            System.out.println("(" + fired[0] + " signals)");
+        } finally {
+            portfolio.close();
+            for (Path file : Files.newDirectoryStream(dir)) {
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    static void writeStrategy(Path file, int ruleCount, String[] symbols, Random random) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<strategy>");
+            for (int i = 0; i < ruleCount; i++) {
+                String symbol = i % 50 == 0 ? "" : symbols[random.nextInt(symbols.length)];
+                int low = 1000 + random.nextInt(9000);
+                int high = low + 1 + random.nextInt(2000);
+                String condition;
+                switch (random.nextInt(4)) {
+                    case 0: condition = "<above>" + low + "</above>"; break;
+                    case 1: condition = "<below>" + high + "</below>"; break;
+                    case 2: condition = "<above>" + low + "</above><below>" + high + "</below>"; break;
+                    default: condition = i % 1000 == 1 ? "" : "<above>" + low + "</above>"; break;
+                }
+                String action = random.nextBoolean() ? "<buy>" + (1 + random.nextInt(500)) + "</buy>" : "<sell />";
+                out.println("  <when><stock>" + symbol + "</stock>" + condition + action + "</when>");
+            }
+            out.println("</strategy>");
+        }
+    }
+
+    /**
+     * Compare the fired rules tick by tick, as counts per (type, shares).
+     */
+    private static void check(StockBrokerClient.Strategy strategy, String[] symbols, int ticks) {
+        Random walk = new Random(7);
+        Map<String, Integer> last = new HashMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+        Map<String, Integer> actual = new HashMap<>();
+        for (int t = 0; t < ticks; t++) {
+            String symbol = symbols[walk.nextInt(Math.min(symbols.length, 20))];
+            int price = 1000 + walk.nextInt(9000);
+            if (t % 3 == 0 && last.containsKey(symbol)) {
+                price = last.get(symbol); // unchanged prices fire only unbounded rules
+            }
+
+            expected.clear();
+            Integer previous = last.put(symbol, price);
+            for (StockBrokerClient.Rule rule : strategy.rules) {
+                boolean unbounded = rule.signalRaised(symbol, Integer.MIN_VALUE + 1) && rule.signalRaised(symbol, Integer.MAX_VALUE);
+                if (rule.signalRaised(symbol, price) && (previous == null || unbounded || !rule.signalRaised(symbol, previous))) {
+                    expected.merge(rule.transaction.type + " " + rule.transaction.shares, 1, Integer::sum);
+                }
+            }
+
+            actual.clear();
+            strategy.evaluate(symbol, price, tx -> {
+                int shares = tx.type.equals("sell") ? -1 : tx.shares; // every generated sell is sell-all
+                actual.merge(tx.type + " " + shares, 1, Integer::sum);
+            });
+
+            if (!expected.equals(actual)) {
+                throw new AssertionError("tick " + t + " " + symbol + " " + previous + " -> " + price
+                    + ": expected " + expected + " but fired " + actual);
+            }
+        }
+    }
+}
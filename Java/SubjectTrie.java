@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subscriptions indexed by subject pattern, one trie level per
+ * '.'-separated token, matched the way NATS matches them: "*" stands for
+ * exactly one token and a trailing ">" for one or more.
+ *
+ * A match only walks the branches the subject can reach (the literal
+ * token, "*" and ">" at each level), so its cost depends on the depth of
+ * the subject, not on how many subscriptions there are.
+ *
+ * Not thread-safe; InProcessBus guards it with a lock and caches matches.
+ */
+public class SubjectTrie<T> {
+    private final Node<T> root = new Node<>();
+    private int size = 0;
+
+    private static class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        Node<T> star;  // "*"
+        Node<T> tail;  // ">"
+        final List<T> values = new ArrayList<>();
+
+        boolean isEmpty() {
+            return values.isEmpty() && children.isEmpty() && star == null && tail == null;
+        }
+    }
+
+    public void add(String pattern, T value) {
+        String[] tokens = tokens(pattern);
+        Node<T> node = root;
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            if (token.equals(">")) {
+                if (i != tokens.length - 1) {
+                    throw new IllegalArgumentException("'>' must be the last token: " + pattern);
+                }
+                if (node.tail == null) {
+                    node.tail = new Node<>();
+                }
+                node = node.tail;
+            } else if (token.equals("*")) {
+                if (node.star == null) {
+                    node.star = new Node<>();
+                }
+                node = node.star;
+            } else {
+                node = node.children.computeIfAbsent(token, t -> new Node<>());
+            }
+        }
+        node.values.add(value);
+        size++;
+    }
+
+    /**
+     * @return false if the value wasn't subscribed to this pattern
+     */
+    public boolean remove(String pattern, T value) {
+        boolean removed = remove(root, tokens(pattern), 0, value);
+        if (removed) {
+            size--;
+        }
+        return removed;
+    }
+
+    // prunes nodes left empty on the way back up
+    private boolean remove(Node<T> node, String[] tokens, int at, T value) {
+        if (at == tokens.length) {
+            return node.values.remove(value);
+        }
+        String token = tokens[at];
+        Node<T> child = token.equals(">") ? node.tail : token.equals("*") ? node.star : node.children.get(token);
+        if (child == null || !remove(child, tokens, at + 1, value)) {
+            return false;
+        }
+        if (child.isEmpty()) {
+            if (token.equals(">")) {
+                node.tail = null;
+            } else if (token.equals("*")) {
+                node.star = null;
+            } else {
+                node.children.remove(token);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Everything subscribed to a pattern matching this (literal) subject,
+     * once per subscription.
+     */
+    public List<T> match(String subject) {
+        List<T> matched = new ArrayList<>();
+        match(root, tokens(subject), 0, matched);
+        return matched;
+    }
+
+    private void match(Node<T> node, String[] tokens, int at, List<T> matched) {
+        if (at == tokens.length) {
+            matched.addAll(node.values);
+            return;
+        }
+        if (node.tail != null) {
+            matched.addAll(node.tail.values);
+        }
+        Node<T> literal = node.children.get(tokens[at]);
+        if (literal != null) {
+            match(literal, tokens, at + 1, matched);
+        }
+        if (node.star != null) {
+            match(node.star, tokens, at + 1, matched);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static String[] tokens(String subject) {
+        String[] tokens = subject.split("\\.", -1);
+        for (String token : tokens) {
+            if (token.isEmpty()) {
+                throw new IllegalArgumentException("Empty token in subject: " + subject);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * SEC's surveillance rules, evaluated against rolling per-client and
+ * per-broker aggregates. Rules come from an XML file in the same style as
+ * the client strategy files:
+ *
+ *   <surveillance>
+ *     <fill><over>500000</over></fill>
+ *     <notional><per>client</per><window>60000</window><over>5000000</over></notional>
+ *     <orders><per>broker</per><window>1000</window><over>200</over></orders>
+ *     <roundtrip><per>client</per><window>10000</window></roundtrip>
+ *   </surveillance>
+ *
+ * "fill" flags any single filled leg over the limit (the original SEC
+ * check). "notional" and "orders" flag a client or broker whose traded
+ * amount or order count within the window (in millis) goes over the limit.
+ * "roundtrip" flags a buy and a sell of the same symbol within the window.
+ *
+ * Each client and broker seen is given a slot in a fixed-size table
+ * (-Dsec.surveillance.keys, default 65536 of each), and every rule keeps its
+ * state in primitive arrays indexed by slot: a ring of time buckets per
+ * slot for the windowed sums, a short ring of recent fills for round
+ * trips. Updating either is O(1) (bounded by the bucket count, not the
+ * traffic). A key that has been idle for longer than the longest window
+ * gives up its slot, and if the table is still full a key that hasn't
+ * been seen for a while is evicted, so memory stays fixed no matter how many clients
+ * come and go; eviction is incremental, a few slots per new key.
+ *
+ * Each rule is sorted, as it is added, into the rules that see orders or
+ * the ones that see fills, and handles the event itself, so an order or a
+ * fill only visits the rules it concerns.
+ *
+ * Not thread-safe; SEC feeds it from one thread.
+ */
+public class Surveillance {
+    public static final int CLIENT = 0;
+    public static final int BROKER = 1;
+
+    @FunctionalInterface
+    public interface Alert {
+        void raise(long millis, String client, String broker, String detail);
+    }
+
+    private final Alert alert;
+    private final KeySpace[] scopes = new KeySpace[2];
+    private final List<Rule> rules = new ArrayList<>();
+    private Rule[] orderRules = new Rule[0];
+    private Rule[] fillRules = new Rule[0];
+
+    /**
+     * Load the rules in path, or fall back to the original fixed check
+     * (any fill over $5000) if there is no such file.
+     */
+    public static Surveillance fromFile(String path, int keys, Alert alert) throws ParserConfigurationException, IOException, SAXException {
+        Surveillance surveillance = new Surveillance(keys, alert);
+        File file = new File(path);
+        if (!file.exists()) {
+            surveillance.add(new FillRule(500000));
+            return surveillance;
+        }
+
+        DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document document = docBuilder.parse(file);
+        NodeList ruleNodes = document.getDocumentElement().getChildNodes();
+        for (int i = 0; i < ruleNodes.getLength(); i++) {
+            if (ruleNodes.item(i).getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element ruleElem = (Element) ruleNodes.item(i);
+            int scope = text(ruleElem, "per", "client").equals("broker") ? BROKER : CLIENT;
+            long window = Long.parseLong(text(ruleElem, "window", "60000"));
+            switch (ruleElem.getTagName()) {
+                case "fill":
+                    surveillance.add(new FillRule(Long.parseLong(text(ruleElem, "over", "500000"))));
+                    break;
+                case "notional":
+                    surveillance.add(new WindowRule("notional", scope, window, Long.parseLong(text(ruleElem, "over", "0")), keys));
+                    break;
+                case "orders":
+                    surveillance.add(new WindowRule("orders", scope, window, Long.parseLong(text(ruleElem, "over", "0")), keys));
+                    break;
+                case "roundtrip":
+                    surveillance.add(new RoundTripRule(scope, window, keys));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown surveillance rule <" + ruleElem.getTagName() + ">");
+            }
+        }
+        return surveillance;
+    }
+
+    private static String text(Element parent, String tag, String missing) {
+        NodeList nodes = parent.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? missing : nodes.item(0).getTextContent().trim();
+    }
+
+    public Surveillance(int keys, Alert alert) {
+        this.alert = alert;
+        scopes[CLIENT] = new KeySpace(keys);
+        scopes[BROKER] = new KeySpace(keys);
+    }
+
+    public void add(Rule rule) {
+        rules.add(rule);
+        if (rule.watchesOrders()) {
+            orderRules = Arrays.copyOf(orderRules, orderRules.length + 1);
+            orderRules[orderRules.length - 1] = rule;
+        } else {
+            fillRules = Arrays.copyOf(fillRules, fillRules.length + 1);
+            fillRules[fillRules.length - 1] = rule;
+        }
+        if (rule.scope >= 0) {
+            scopes[rule.scope].rules.add(rule);
+            scopes[rule.scope].idleMillis = Math.max(scopes[rule.scope].idleMillis, rule.window);
+        }
+    }
+
+    /**
+     * An order was sent.
+     */
+    public void onOrder(long now, String client, String broker) {
+        int clientSlot = scopes[CLIENT].slot(client, now);
+        int brokerSlot = scopes[BROKER].slot(broker, now);
+        for (Rule rule : orderRules) {
+            rule.onOrder(rule.scope == BROKER ? brokerSlot : clientSlot, now, client, broker, alert);
+        }
+    }
+
+    /**
+     * One leg of an order was filled for complete (cents, including fees).
+     */
+    public void onFill(long now, String client, String broker, String symbol, boolean buy, int amount, int complete) {
+        int clientSlot = scopes[CLIENT].slot(client, now);
+        int brokerSlot = scopes[BROKER].slot(broker, now);
+        for (Rule rule : fillRules) {
+            rule.onFill(rule.scope == BROKER ? brokerSlot : clientSlot, now, client, broker, symbol, buy, amount, complete, alert);
+        }
+    }
+
+    public int keys(int scope) {
+        return scopes[scope].map.size();
+    }
+
+    public String toString() {
+        String out = "Surveillance rules:\n";
+        for (Rule rule : rules) {
+            out += "\t" + rule.toString() + "\n";
+        }
+        return out;
+    }
+
+    /**
+     * Clients or brokers, each mapped to a slot in the rules' arrays.
+     *
+     * Eviction is incremental: every time a new key needs a slot, a cursor
+     * looks at the next SAMPLE slots and frees any that have been idle for
+     * longer than any window can see; if none is free after that, the least
+     * recently seen of those sampled is taken over. Either way a new key
+     * costs O(SAMPLE), and a known key costs one lookup and one store.
+     */
+    private static class KeySpace {
+        static final int SAMPLE = 8;
+
+        final SymbolIntMap map;
+        final String[] keyOf;
+        final long[] lastSeen;
+        final int[] free;
+        int freeCount = 0;
+        int used = 0; // slots 0..used-1 have been handed out at least once
+        int cursor = 0;
+        long idleMillis = 0;
+        final List<Rule> rules = new ArrayList<>();
+
+        KeySpace(int capacity) {
+            map = new SymbolIntMap(capacity);
+            keyOf = new String[capacity];
+            lastSeen = new long[capacity];
+            free = new int[capacity];
+        }
+
+        int slot(String key, long now) {
+            int slot = map.get(key, -1);
+            if (slot < 0) {
+                slot = allocate(now);
+                keyOf[slot] = key;
+                map.put(key, slot);
+                for (int r = 0; r < rules.size(); r++) {
+                    rules.get(r).reset(slot);
+                }
+            }
+            lastSeen[slot] = now;
+            return slot;
+        }
+
+        private int allocate(long now) {
+            int victim = -1;
+            for (int n = 0; n < SAMPLE && used > 0; n++) {
+                int candidate = cursor;
+                cursor = cursor + 1 >= used ? 0 : cursor + 1;
+                if (keyOf[candidate] == null) {
+                    continue;
+                }
+                if (now - lastSeen[candidate] > idleMillis) {
+                    release(candidate);
+                } else if (victim < 0 || lastSeen[candidate] < lastSeen[victim]) {
+                    victim = candidate;
+                }
+            }
+            if (freeCount > 0) {
+                return free[--freeCount];
+            }
+            if (used < keyOf.length) {
+                return used++;
+            }
+            release(victim);
+            return free[--freeCount];
+        }
+
+        private void release(int slot) {
+            map.remove(keyOf[slot], -1);
+            keyOf[slot] = null;
+            free[freeCount++] = slot;
+        }
+    }
+
+    /**
+     * A rule; scope is CLIENT, BROKER, or -1 for rules that keep no state.
+     * A rule sees either orders or fills, never both, as watchesOrders() says.
+     */
+    public abstract static class Rule {
+        final String kind;
+        final int scope;
+        final long window;
+
+        Rule(String kind, int scope, long window) {
+            this.kind = kind;
+            this.scope = scope;
+            this.window = window;
+        }
+
+        void reset(int slot) {
+        }
+
+        abstract boolean watchesOrders();
+
+        void onOrder(int slot, long now, String client, String broker, Alert alert) {
+        }
+
+        void onFill(int slot, long now, String client, String broker, String symbol, boolean buy, int amount,
+                    int complete, Alert alert) {
+        }
+
+        String per() {
+            return scope == BROKER ? "broker" : "client";
+        }
+    }
+
+    public static class FillRule extends Rule {
+        final long limit;
+
+        public FillRule(long limit) {
+            super("fill", -1, 0);
+            this.limit = limit;
+        }
+
+        boolean watchesOrders() {
+            return false;
+        }
+
+        void onFill(int slot, long now, String client, String broker, String symbol, boolean buy, int amount,
+                    int complete, Alert alert) {
+            if (complete > limit) {
+                alert.raise(now, client, broker, "Order Sent: <" + (buy ? "buy" : "sell") + " symbol=\"" + symbol
+                    + "\" amount=\"" + amount + "\" />Amount: " + complete);
+            }
+        }
+
+        public String toString() {
+            return "Any fill over " + limit;
+        }
+    }
+
+    /**
+     * A rolling sum over the last window millis, kept as BUCKETS buckets per
+     * slot. Alerts once each time the sum goes from at-or-under the limit
+     * to over it. An "orders" rule counts orders, a "notional" rule sums
+     * what fills were worth.
+     */
+    public static class WindowRule extends Rule {
+        static final int BUCKETS = 10;
+        private static final int STRIDE = BUCKETS + 2; // per slot: newest epoch, total, buckets
+
+        final boolean orders;
+        final long limit;
+        final long bucketMillis;
+        final long[] state; // one slot's state is contiguous, so an update touches one or two cache lines
+
+        public WindowRule(String kind, int scope, long window, long limit, int keys) {
+            super(kind, scope, window);
+            switch (kind) {
+                case "orders": orders = true; break;
+                case "notional": orders = false; break;
+                default: throw new IllegalArgumentException("no windowed surveillance rule <" + kind + ">");
+            }
+            this.limit = limit;
+            this.bucketMillis = Math.max(1, window / BUCKETS);
+            state = new long[keys * STRIDE];
+        }
+
+        void reset(int slot) {
+            Arrays.fill(state, slot * STRIDE, (slot + 1) * STRIDE, 0);
+        }
+
+        boolean watchesOrders() {
+            return orders;
+        }
+
+        void onOrder(int slot, long now, String client, String broker, Alert alert) {
+            add(slot, now, 1, client, broker, alert);
+        }
+
+        void onFill(int slot, long now, String client, String broker, String symbol, boolean buy, int amount,
+                    int complete, Alert alert) {
+            add(slot, now, complete, client, broker, alert);
+        }
+
+        void add(int slot, long now, long value, String client, String broker, Alert alert) {
+            int base = slot * STRIDE;
+            long epoch = now / bucketMillis;
+            long newest = state[base];
+            if (epoch > newest) {
+                // expire the buckets that slid out of the window
+                for (long e = newest + 1, n = Math.min(epoch - newest, BUCKETS); n > 0; e++, n--) {
+                    int bucket = base + 2 + (int) (e % BUCKETS);
+                    state[base + 1] -= state[bucket];
+                    state[bucket] = 0;
+                }
+                state[base] = newest = epoch;
+            }
+            long before = state[base + 1];
+            state[base + 2 + (int) (newest % BUCKETS)] += value; // a clock step back counts in the newest bucket
+            long total = state[base + 1] = before + value;
+            if (before <= limit && total > limit) {
+                alert.raise(now, client, broker, "Rule: " + kind + " per " + per() + " over " + limit
+                    + " in " + window + "ms, now " + total);
+            }
+        }
+
+        public String toString() {
+            return "Any " + per() + " with " + kind + " over " + limit + " in " + window + "ms";
+        }
+    }
+
+    /**
+     * Remembers each slot's last DEPTH fills and flags a fill on the
+     * opposite side of one of them, for the same symbol, within the window.
+     * A fill is packed into one long, (millis << 21 | buy << 20 | symbol id + 1),
+     * so a slot's history is one contiguous run of DEPTH longs.
+     */
+    public static class RoundTripRule extends Rule {
+        static final int DEPTH = 16;
+        private static final long SYMBOL_MASK = (1 << 20) - 1;
+        private static final long BUY = 1 << 20;
+
+        final long[] fills; // slot * DEPTH + i; 0 is empty
+        private final SymbolIntMap symbolIds = new SymbolIntMap();
+
+        public RoundTripRule(int scope, long window, int keys) {
+            super("roundtrip", scope, window);
+            fills = new long[keys * DEPTH];
+        }
+
+        void reset(int slot) {
+            Arrays.fill(fills, slot * DEPTH, (slot + 1) * DEPTH, 0);
+        }
+
+        boolean watchesOrders() {
+            return false;
+        }
+
+        void onFill(int slot, long now, String client, String broker, String symbol, boolean buy, int amount,
+                    int complete, Alert alert) {
+            fill(slot, now, symbol, buy, client, broker, alert);
+        }
+
+        void fill(int slot, long now, String symbol, boolean buy, String client, String broker, Alert alert) {
+            long symbolId = symbolIds.get(symbol, -1);
+            if (symbolId < 0) {
+                symbolId = symbolIds.size();
+                symbolIds.put(symbol, (int) symbolId);
+            }
+            long id = (symbolId + 1) & SYMBOL_MASK;
+
+            int base = slot * DEPTH;
+            int oldest = base;
+            boolean matched = false;
+            for (int i = base; i < base + DEPTH; i++) {
+                long fill = fills[i];
+                if (!matched && fill != 0 && (fill & SYMBOL_MASK) == id && ((fill & BUY) != 0) != buy
+                        && now - (fill >>> 21) <= window) {
+                    alert.raise(now, client, broker, "Rule: roundtrip per " + per() + " " + (buy ? "bought" : "sold")
+                        + " " + symbol + " " + (now - (fill >>> 21)) + "ms after " + (buy ? "selling" : "buying") + " it");
+                    fills[i] = fill = 0; // each earlier fill pairs off once
+                    matched = true;
+                }
+                if (fill == 0 || (fills[oldest] != 0 && fill < fills[oldest])) {
+                    oldest = i;
+                }
+            }
+            fills[oldest] = (now << 21) | (buy ? BUY : 0) | id;
+        }
+
+        public String toString() {
+            return "Any " + per() + " buying and selling the same stock within " + window + "ms";
+        }
+    }
+}
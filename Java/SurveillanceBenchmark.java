@@ -0,0 +1,106 @@
+import java.util.Random;
+
+/**
+ * Checks the surveillance windows against hand-computed cases, then feeds
+ * Surveillance random orders and fills from a growing number of clients.
+ * The cost per message rises only while the clients' state still fits in
+ * cache and then levels off, and the number of live clients (and so the
+ * memory) stops at the key table size however many clients there are.
+ *
+ * Usage: java SurveillanceBenchmark [messages per run]
+ */
+public class SurveillanceBenchmark {
+    private static final String[] SYMBOLS = { "AMZN", "MSFT", "GOOG", "MBGYY", "ROVIO", "F", "NTFLX", "AAPL" };
+
+    public static void main(String... args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+        check();
+        System.out.println("Window checks OK");
+        System.out.println();
+
+        int keys = 1 << 16;
+        System.out.printf("%10s %12s %14s%n", "clients", "ns/message", "live clients");
+        for (int round = 0; round < 2; round++) {
+            for (int clients : new int[] { 100, 1_000, 10_000, 50_000, 200_000, 1_000_000 }) {
+                long[] alerts = new long[1];
+                Surveillance surveillance = rules(keys, (millis, client, broker, detail) -> alerts[0]++);
+                String[] brokers = new String[8];
+                for (int i = 0; i < brokers.length; i++) {
+                    brokers[i] = "broker" + i;
+                }
+                String[] names = new String[clients];
+                for (int i = 0; i < clients; i++) {
+                    names[i] = "client" + i;
+                }
+                Random random = new Random(clients);
+                long now = 1_700_000_000_000L;
+                long start = System.nanoTime();
+                for (int m = 0; m < messages; m++) {
+                    now += random.nextInt(3); // roughly a thousand messages a second
+                    String client = names[random.nextInt(clients)];
+                    String broker = brokers[client.hashCode() & 7];
+                    if ((m & 1) == 0) {
+                        surveillance.onOrder(now, client, broker);
+                    } else {
+                        surveillance.onFill(now, client, broker, SYMBOLS[random.nextInt(SYMBOLS.length)],
+                            random.nextBoolean(), 100, random.nextInt(600_000));
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.printf("%,10d %12.1f %,14d   (%d alerts)%n", clients, (double) nanos / messages,
+                        surveillance.keys(Surveillance.CLIENT), alerts[0]);
+                }
+            }
+        }
+    }
+
+    private static Surveillance rules(int keys, Surveillance.Alert alert) {
+        Surveillance surveillance = new Surveillance(keys, alert);
+        surveillance.add(new Surveillance.FillRule(500000));
+        surveillance.add(new Surveillance.WindowRule("notional", Surveillance.CLIENT, 60_000, 5_000_000, keys));
+        surveillance.add(new Surveillance.WindowRule("orders", Surveillance.CLIENT, 1_000, 20, keys));
+        surveillance.add(new Surveillance.WindowRule("orders", Surveillance.BROKER, 1_000, 500, keys));
+        surveillance.add(new Surveillance.RoundTripRule(Surveillance.CLIENT, 10_000, keys));
+        return surveillance;
+    }
+
+    private static void check() {
+        StringBuilder raised = new StringBuilder();
+        Surveillance s = new Surveillance(4, (millis, client, broker, detail) ->
+            raised.append(client).append(' ').append(detail.split(" ")[1]).append(';'));
+        s.add(new Surveillance.WindowRule("notional", Surveillance.CLIENT, 60_000, 1000, 4));
+        s.add(new Surveillance.RoundTripRule(Surveillance.CLIENT, 10_000, 4));
+
+        long t = 0;
+        s.onFill(t, "a", "b", "MSFT", true, 1, 600);
+        s.onFill(t + 59_000, "a", "b", "GOOG", true, 1, 400);    // 1000, not over
+        expect(raised, "");
+        s.onFill(t + 59_500, "a", "b", "GOOG", true, 1, 1);      // 1001
+        expect(raised, "a notional;");
+        s.onFill(t + 61_000, "a", "b", "AMZN", true, 1, 500);    // first 600 slid out: 901
+        expect(raised, "");
+        s.onFill(t + 62_000, "a", "b", "AMZN", true, 1, 200);    // 1101
+        expect(raised, "a notional;");
+        s.onFill(t + 65_000, "a", "b", "AMZN", false, 1, 0);     // sold within 10s of buying
+        expect(raised, "a roundtrip;");
+        s.onFill(t + 80_000, "a", "b", "AMZN", true, 1, 0);      // 15s after the sell
+        expect(raised, "");
+
+        // six clients through a four-key table: the idle ones are evicted
+        for (int i = 0; i < 6; i++) {
+            s.onFill(t + 200_000 + i, "c" + i, "b", "F", true, 1, 1);
+        }
+        if (s.keys(Surveillance.CLIENT) != 4) {
+            throw new AssertionError("expected 4 live clients, got " + s.keys(Surveillance.CLIENT));
+        }
+    }
+
+    private static void expect(StringBuilder raised, String expected) {
+        if (!raised.toString().equals(expected)) {
+            throw new AssertionError("expected [" + expected + "] but raised [" + raised + "]");
+        }
+        raised.setLength(0);
+    }
+}
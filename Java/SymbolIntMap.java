@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * A String -> int map with open addressing and no boxing, for the
+ * per-symbol counters and positions that sit on hot paths. Not
+ * thread-safe.
+ */
+public class SymbolIntMap {
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(String symbol, int value);
+    }
+
+    private String[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public SymbolIntMap() {
+        this(16);
+    }
+
+    public SymbolIntMap(int expected) {
+        int slots = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) * 2;
+        keys = new String[slots];
+        values = new int[slots];
+    }
+
+    public int get(String symbol, int missing) {
+        int slot = find(symbol);
+        return keys[slot] == null ? missing : values[slot];
+    }
+
+    public boolean containsKey(String symbol) {
+        return keys[find(symbol)] != null;
+    }
+
+    public void put(String symbol, int value) {
+        int slot = find(symbol);
+        if (keys[slot] == null) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(symbol);
+            }
+            keys[slot] = symbol;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return the new value
+     */
+    public int add(String symbol, int delta) {
+        int value = get(symbol, 0) + delta;
+        put(symbol, value);
+        return value;
+    }
+
+    /**
+     * @return the removed value, or missing if the symbol wasn't there
+     */
+    public int remove(String symbol, int missing) {
+        int slot = find(symbol);
+        if (keys[slot] == null) {
+            return missing;
+        }
+        int value = values[slot];
+        // shift later members of the probe run back so lookups still find them
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != null) {
+            int home = home(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = null;
+        size--;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    private int home(String symbol) {
+        int h = symbol.hashCode();
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private int find(String symbol) {
+        int mask = keys.length - 1;
+        int slot = home(symbol);
+        while (keys[slot] != null && !keys[slot].equals(symbol)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps the bytes of a stock symbol to one canonical String (and a small
+ * int id), so decoding a symbol we have seen before allocates nothing.
+ * Lookups hash the bytes in place and probe an open-addressed table.
+ *
+ * Not thread-safe; each codec gets its own unless the caller synchronizes.
+ */
+public class SymbolTable {
+    private byte[][] keys = new byte[64][];
+    private String[] values = new String[64];
+    private int[] ids = new int[64];
+    private int size = 0;
+
+    /**
+     * @return the canonical String for these bytes
+     */
+    public String intern(byte[] data, int offset, int length) {
+        int slot = slot(data, offset, length); // may grow the arrays, so look up after
+        return values[slot];
+    }
+
+    public String intern(String symbol) {
+        byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return a dense id (0, 1, 2, ...) for these bytes
+     */
+    public int id(byte[] data, int offset, int length) {
+        int slot = slot(data, offset, length);
+        return ids[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (Arrays.equals(keys[slot], 0, keys[slot].length, data, offset, offset + length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            return slot(data, offset, length);
+        }
+        keys[slot] = Arrays.copyOfRange(data, offset, offset + length);
+        values[slot] = new String(keys[slot], StandardCharsets.UTF_8);
+        ids[slot] = size++;
+        return slot;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldIds = ids;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        ids = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            int hash = 1;
+            for (byte b : oldKeys[i]) {
+                hash = 31 * hash + b;
+            }
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            ids[slot] = oldIds[i];
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays price logs captured by StockMonitor ("(symbol)-log.log", one
+ * "SYMBOL yyyy.MM.dd.HH.mm.ss adjustment price" line per tick) back onto
+ * PriceAdjustment.(symbol) through a PublishPipeline.
+ *
+ * Each log is read through a sliding memory-mapped window, so a tape of
+ * any size streams through a fixed amount of memory, and the logs are
+ * merged by timestamp into one tape. At a numeric speed the recorded
+ * spacing between ticks is kept, scaled by the speed (1 = real time, 10 =
+ * ten times faster); at "max" ticks go out as fast as the pipeline takes
+ * them. The logs only record whole seconds, so ticks from the same second
+ * go out together. Progress is printed once a second, and a summary
+ * compares the achieved rate with the rate the tape asked for.
+ *
+ * Usage: java -Dreplay=(log dir or file)[,(log dir or file)...] [-Dreplay.speed=1|N|max] StockPublisher [nats_url]
+ */
+public class TapeReplay {
+    private static final long WINDOW = 64L << 20;
+
+    private final List<Tape> tapes = new ArrayList<>();
+    private final double speed; // 0 = as fast as possible
+    private final SymbolTable symbols = new SymbolTable();
+
+    /**
+     * Tapes from -Dreplay (comma-separated files or directories of *-log.log),
+     * speed from -Dreplay.speed (default 1).
+     */
+    public static TapeReplay fromSystemProperties() throws IOException {
+        String speed = System.getProperty("replay.speed", "1");
+        List<Path> files = new ArrayList<>();
+        for (String source : System.getProperty("replay").split(",")) {
+            Path path = Paths.get(source.trim());
+            if (Files.isDirectory(path)) {
+                try (DirectoryStream<Path> logs = Files.newDirectoryStream(path, "*-log.log")) {
+                    logs.forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        return new TapeReplay(files, speed.equals("max") ? 0 : Double.parseDouble(speed));
+    }
+
+    public TapeReplay(List<Path> files, double speed) throws IOException {
+        this.speed = speed;
+        for (Path file : files) {
+            Tape tape = new Tape(file, symbols);
+            if (tape.next()) {
+                tapes.add(tape);
+            } else {
+                tape.close();
+            }
+        }
+    }
+
+    /**
+     * Publish every tick on the tapes, in timestamp order.
+     * @return the number of ticks published
+     */
+    public long play(PriceSink publish) throws IOException {
+        // min-heap of tapes by their current record's time
+        Tape[] heap = tapes.toArray(new Tape[0]);
+        int n = heap.length;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(heap, n, i);
+        }
+        if (n == 0) {
+            System.out.println("Nothing to replay");
+            return 0;
+        }
+
+        long tapeStart = heap[0].millis;
+        long tapeEnd = tapeStart;
+        long wallStart = System.nanoTime();
+        long published = 0;
+        long lastReport = wallStart;
+        long lastReported = 0;
+        long lagNanos = 0;
+
+        while (n > 0) {
+            Tape tape = heap[0];
+            if (speed > 0) {
+                long due = wallStart + (long) ((tape.millis - tapeStart) * 1_000_000L / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else {
+                    lagNanos = -wait;
+                }
+            }
+            publish.apply(tape.symbol, tape.adjustment, tape.price);
+            published++;
+            tapeEnd = tape.millis;
+
+            if (tape.next()) {
+                siftDown(heap, n, 0);
+            } else {
+                tape.close();
+                heap[0] = heap[--n];
+                siftDown(heap, n, 0);
+            }
+
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(1)) {
+                System.out.printf("%,d ticks/s, tape at +%,d s%s%n",
+                    (published - lastReported) * 1_000_000_000L / (now - lastReport),
+                    (tapeEnd - tapeStart) / 1000,
+                    speed > 0 ? String.format(", %,d ms behind", TimeUnit.NANOSECONDS.toMillis(lagNanos)) : "");
+                lastReport = now;
+                lastReported = published;
+                lagNanos = 0;
+            }
+        }
+
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+        double tapeSeconds = Math.max(1, tapeEnd - tapeStart + 1000) / 1000.0; // stamps are whole seconds
+        System.out.printf("Replayed %,d ticks covering %,.0f s of tape in %,.1f s: achieved %,.0f ticks/s",
+            published, tapeSeconds, wallSeconds, published / wallSeconds);
+        if (speed > 0) {
+            System.out.printf(", requested %,.0f ticks/s (%sx)", published / (tapeSeconds / speed), speed);
+        }
+        System.out.println();
+        return published;
+    }
+
+    private static void siftDown(Tape[] heap, int n, int at) {
+        Tape tape = heap[at];
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && heap[child + 1].millis < heap[child].millis) {
+                child++;
+            }
+            if (heap[child].millis >= tape.millis) {
+                break;
+            }
+            heap[at] = heap[child];
+            at = child;
+        }
+        if (n > 0) {
+            heap[at] = tape;
+        }
+    }
+
+    /**
+     * One log file, read a line at a time through a mapped window.
+     */
+    private static class Tape {
+        final FileChannel channel;
+        final long size;
+        final SymbolTable symbols;
+        MappedByteBuffer map;
+        byte[] symbolBytes = new byte[16];
+        long mapStart = 0;
+        int pos = 0;
+
+        // the current record
+        String symbol;
+        long millis;
+        int adjustment;
+        int price;
+
+        // timestamps are local time; the zone offset is looked up once per hour of tape
+        private final ZoneId zone = ZoneId.systemDefault();
+        private long cachedHourKey = -1;
+        private long cachedHourMillis;
+
+        Tape(Path file, SymbolTable symbols) throws IOException {
+            this.symbols = symbols;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+            remap(0);
+        }
+
+        private void remap(long start) throws IOException {
+            mapStart = start;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+            pos = 0;
+        }
+
+        /**
+         * Advance to the next well-formed line.
+         * @return false at the end of the file (a torn last line is ignored)
+         */
+        boolean next() throws IOException {
+            while (true) {
+                int end = pos;
+                int limit = map.limit();
+                while (end < limit && map.get(end) != '\n') {
+                    end++;
+                }
+                if (end == limit) {
+                    if (mapStart + limit >= size || pos == 0) {
+                        return false; // end of file, or a line longer than the window
+                    }
+                    remap(mapStart + pos);
+                    continue;
+                }
+                int start = pos;
+                pos = end + 1;
+                if (parse(start, end)) {
+                    return true;
+                }
+            }
+        }
+
+        // "SYMBOL yyyy.MM.dd.HH.mm.ss adjustment price"
+        private boolean parse(int start, int end) {
+            int space = indexOf(' ', start, end);
+            if (space <= start) {
+                return false;
+            }
+            if (space - start > symbolBytes.length) {
+                symbolBytes = new byte[space - start];
+            }
+            map.get(start, symbolBytes, 0, space - start);
+            symbol = symbols.intern(symbolBytes, 0, space - start);
+
+            int sentStart = space + 1;
+            int sentEnd = indexOf(' ', sentStart, end);
+            if (sentEnd - sentStart != 19) {
+                return false;
+            }
+            long sent = parseSent(sentStart);
+            if (sent < 0) {
+                return false;
+            }
+            millis = sent;
+
+            int adjustmentEnd = indexOf(' ', sentEnd + 1, end);
+            if (adjustmentEnd < 0) {
+                return false;
+            }
+            adjustment = parseInt(sentEnd + 1, adjustmentEnd);
+            int priceEnd = end > adjustmentEnd + 1 && map.get(end - 1) == '\r' ? end - 1 : end;
+            price = parseInt(adjustmentEnd + 1, priceEnd);
+            return true;
+        }
+
+        private long parseSent(int at) {
+            int year = digits(at, 4);
+            int month = digits(at + 5, 2);
+            int day = digits(at + 8, 2);
+            int hour = digits(at + 11, 2);
+            int minute = digits(at + 14, 2);
+            int second = digits(at + 17, 2);
+            if ((year | month | day | hour | minute | second) < 0) {
+                return -1;
+            }
+            long hourKey = ((year * 100L + month) * 100 + day) * 100 + hour;
+            if (hourKey != cachedHourKey) {
+                cachedHourMillis = LocalDateTime.of(year, month, day, hour, 0).atZone(zone).toInstant().toEpochMilli();
+                cachedHourKey = hourKey;
+            }
+            return cachedHourMillis + (minute * 60 + second) * 1000L;
+        }
+
+        private int digits(int at, int count) {
+            int value = 0;
+            for (int i = at; i < at + count; i++) {
+                int d = map.get(i) - '0';
+                if (d < 0 || d > 9) {
+                    return -1;
+                }
+                value = value * 10 + d;
+            }
+            return value;
+        }
+
+        private int parseInt(int from, int to) {
+            boolean negative = from < to && map.get(from) == '-';
+            int value = 0;
+            for (int i = negative ? from + 1 : from; i < to; i++) {
+                value = value * 10 + (map.get(i) - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        private int indexOf(char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (map.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Which wire format this process speaks, picked with -Dwire=xml|binary|both
+ * (xml is the default).
+ *
+ * Binary traffic lives in a parallel subject namespace--"bin.PriceAdjustment.MSFT",
+ * "bin.Order.broker.client"--so components that only understand XML never
+ * see a binary payload. "both" only matters to StockPublisher, which then
+ * publishes every tick in both namespaces so XML and binary consumers can
+ * run side by side. Replies always come back in the format of the request.
+ */
+public class WireFormat {
+    public static final String BINARY_PREFIX = "bin.";
+
+    public static final String MODE = System.getProperty("wire", "xml");
+
+    /** The longest symbol accepted off the wire. */
+    public static final int MAX_SYMBOL_LENGTH = 32;
+
+    public static boolean xml() {
+        return !MODE.equals("binary");
+    }
+
+    public static boolean binary() {
+        return MODE.equals("binary") || MODE.equals("both");
+    }
+
+    /**
+     * The subject to subscribe to / publish on for this process's format.
+     * In "both" mode this is the XML subject.
+     */
+    public static String subject(String xmlSubject) {
+        return MODE.equals("binary") ? BINARY_PREFIX + xmlSubject : xmlSubject;
+    }
+
+    public static String binarySubject(String xmlSubject) {
+        return BINARY_PREFIX + xmlSubject;
+    }
+
+    /**
+     * Strip the binary prefix, if any, so subject parsing works for both.
+     */
+    public static String xmlSubject(String subject) {
+        return subject.startsWith(BINARY_PREFIX) ? subject.substring(BINARY_PREFIX.length()) : subject;
+    }
+
+    /**
+     * Whether symbol can stand as a single subject token, and so also as a
+     * file name or an unescaped XML attribute: not empty, at most
+     * MAX_SYMBOL_LENGTH characters, and free of whitespace, control
+     * characters, '.', '*', '>', '/', '\\', ':', '<', '&', '"' and '\''.
+     */
+    public static boolean isSymbol(String symbol) {
+        if (symbol == null || symbol.isEmpty() || symbol.length() > MAX_SYMBOL_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < symbol.length(); i++) {
+            char c = symbol.charAt(i);
+            if (c <= ' ' || c == 127 || c == '.' || c == '*' || c == '>' || c == '/' || c == '\\' || c == ':'
+                || c == '<' || c == '&' || c == '"' || c == '\'') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
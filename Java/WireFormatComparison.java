@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round-trips every message shape through both wire formats, checks that
+ * nothing was lost, and then compares payload size and encode+decode
+ * throughput for XML against binary.
+ *
+ * Usage: java WireFormatComparison [iterations]
+ */
+public class WireFormatComparison {
+    private static final String[] SYMBOLS = { "AMZN", "MSFT", "GOOG", "MBGYY", "ROVIO", "F" };
+
+    public static void main(String... args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        roundTrips();
+        System.out.println("All round trips OK");
+        System.out.println();
+
+        compare(iterations);
+    }
+
+    private static void roundTrips() {
+        Random random = new Random(314);
+        PriceMessageEncoder xmlPrices = new PriceMessageEncoder();
+        MessageCodec codec = new MessageCodec();
+        BinaryCodec binary = new BinaryCodec();
+        int[] edges = { 0, -1, 1, -500, 499, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+        for (int i = 0; i < 10_000; i++) {
+            long sent = 1_700_000_000_000L + random.nextInt(1_000_000_000);
+            String symbol = SYMBOLS[i % SYMBOLS.length];
+            int adjustment = i < edges.length ? edges[i] : random.nextInt(1000) - 500;
+            int price = i < edges.length ? edges[edges.length - 1 - i] : random.nextInt(20000);
+
+            int n = xmlPrices.encode(sent, symbol, adjustment, price);
+            MessageCodec.PriceMessage fromXml = codec.decodePriceMessage(Arrays.copyOf(xmlPrices.buffer(), n));
+            check(fromXml.count == 1 && fromXml.symbol[0].equals(symbol)
+                && fromXml.adjustment[0] == adjustment && fromXml.adjustedPrice[0] == price, "xml price");
+            String xmlSent = fromXml.sent();
+
+            n = binary.encodePrice(sent, symbol, adjustment, price);
+            MessageCodec.PriceMessage fromBinary = codec.decodePriceMessage(Arrays.copyOf(binary.buffer(), n));
+            check(fromBinary.count == 1 && fromBinary.symbol[0].equals(symbol)
+                && fromBinary.adjustment[0] == adjustment && fromBinary.adjustedPrice[0] == price, "binary price");
+            check(fromBinary.sent().equals(xmlSent), "binary sent timestamp");
+            check(fromXml.sequence[0] == 0 && fromBinary.sequence[0] == 0, "unsequenced price");
+
+            long sequence = 1 + (i < 2 ? (long) Integer.MAX_VALUE * (i + 1) : random.nextInt(1_000_000));
+            n = xmlPrices.encode(sent, symbol, adjustment, price, sequence);
+            fromXml = codec.decodePriceMessage(Arrays.copyOf(xmlPrices.buffer(), n));
+            check(fromXml.count == 1 && fromXml.adjustedPrice[0] == price && fromXml.sequence[0] == sequence, "xml sequenced price");
+            n = binary.encodePrice(sent, symbol, adjustment, price, sequence);
+            fromBinary = codec.decodePriceMessage(Arrays.copyOf(binary.buffer(), n));
+            check(fromBinary.count == 1 && fromBinary.symbol[0].equals(symbol) && fromBinary.adjustedPrice[0] == price
+                && fromBinary.sequence[0] == sequence, "binary sequenced price");
+
+            int stocks = 1 + random.nextInt(8);
+            xmlPrices.begin(sent);
+            binary.beginSequencedPrices(sent);
+            for (int k = 0; k < stocks; k++) {
+                xmlPrices.add(SYMBOLS[(i + k) % SYMBOLS.length], adjustment + k, price - k, sequence + k);
+                binary.addPrice(SYMBOLS[(i + k) % SYMBOLS.length], adjustment + k, price - k, sequence + k);
+            }
+            checkBatch(codec.decodePriceMessage(Arrays.copyOf(xmlPrices.buffer(), xmlPrices.end())), i, stocks, adjustment, price, sequence, "xml batch");
+            checkBatch(codec.decodePriceMessage(Arrays.copyOf(binary.buffer(), binary.endPrices())), i, stocks, adjustment, price, sequence, "binary batch");
+
+            MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+            int legs = 1 + random.nextInt(4);
+            for (int l = 0; l < legs; l++) {
+                int leg = receipt.add();
+                receipt.buy[leg] = random.nextBoolean();
+                receipt.symbol[leg] = SYMBOLS[random.nextInt(SYMBOLS.length)];
+                receipt.amount[leg] = random.nextInt(10_000);
+                receipt.limit[leg] = i % 3 == 0 ? 1 + random.nextInt(10_000) : MessageCodec.Order.MARKET;
+                receipt.sequence[leg] = i % 4 == 0 ? 1 + random.nextInt(Integer.MAX_VALUE) * 8L : 0;
+            }
+            receipt.complete = random.nextInt();
+            receipt.rejected = i % 5 == 0 ? "no price for " + receipt.symbol[0] + " yet" : null;
+
+            MessageCodec.Order xmlOrder = codec.decodeOrder(codec.encode((MessageCodec.Order) receipt));
+            checkLegs(receipt, xmlOrder, "xml order");
+            checkOrderOptions(receipt, xmlOrder, "xml order");
+            MessageCodec.Order binaryOrder = codec.decodeOrder(binary.encode((MessageCodec.Order) receipt));
+            checkLegs(receipt, binaryOrder, "binary order");
+            checkOrderOptions(receipt, binaryOrder, "binary order");
+
+            for (int l = 0; l < legs && receipt.rejected == null && i % 2 == 0; l++) {
+                receipt.legResting[l] = random.nextInt(receipt.amount[l] + 1);
+            }
+            MessageCodec.OrderReceipt xmlReceipt = codec.decodeReceipt(codec.encode(receipt));
+            checkLegs(receipt, xmlReceipt, "xml receipt");
+            checkReceiptOptions(receipt, xmlReceipt, "xml receipt");
+            check(receipt.rejected != null
+                ? receipt.rejected.equals(xmlReceipt.rejected)
+                : xmlReceipt.rejected == null && xmlReceipt.complete == receipt.complete, "xml receipt outcome");
+            MessageCodec.OrderReceipt binaryReceipt = codec.decodeReceipt(binary.encode(receipt));
+            checkLegs(receipt, binaryReceipt, "binary receipt");
+            checkReceiptOptions(receipt, binaryReceipt, "binary receipt");
+            check((binaryReceipt.rejected != null) == (receipt.rejected != null)
+                && binaryReceipt.complete == receipt.complete, "binary receipt outcome");
+        }
+    }
+
+    private static void compare(int iterations) {
+        PriceMessageEncoder xmlPrices = new PriceMessageEncoder();
+        MessageCodec codec = new MessageCodec();
+        BinaryCodec binary = new BinaryCodec();
+        long now = System.currentTimeMillis();
+
+        MessageCodec.Order order = new MessageCodec.Order();
+        int leg = order.add();
+        order.buy[leg] = true;
+        order.symbol[leg] = "MSFT";
+        order.amount[leg] = 500;
+
+        System.out.printf("%-14s %10s %10s%n", "size (bytes)", "xml", "binary");
+        System.out.printf("%-14s %10d %10d%n", "price", xmlPrices.encode(now, "MSFT", -123, 4567), binary.encodePrice(now, "MSFT", -123, 4567));
+        System.out.printf("%-14s %10d %10d%n", "order", codec.encode(order).length, binary.encode(order).length);
+        System.out.println();
+
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int n = xmlPrices.encode(now, SYMBOLS[i % SYMBOLS.length], i % 1000 - 500, i);
+                codec.decode(xmlPrices.buffer(), 0, n);
+                sink += codec.priceMessage.adjustedPrice[0];
+            }
+            long xml = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int n = binary.encodePrice(now, SYMBOLS[i % SYMBOLS.length], i % 1000 - 500, i);
+                codec.binary.decode(binary.buffer(), n, codec.priceMessage, codec.order, codec.receipt);
+                sink += codec.priceMessage.adjustedPrice[0];
+            }
+            long bin = System.nanoTime() - start;
+
+            System.out.printf("round %d: price encode+decode  xml %.1f ns/msg  binary %.1f ns/msg  (%.1fx)%n",
+                round + 1, (double) xml / iterations, (double) bin / iterations, (double) xml / bin);
+        }
+        if (sink == 42) {
+            System.out.println(); // keep the JIT from discarding the loops
+        }
+    }
+
+    private static void checkBatch(MessageCodec.PriceMessage m, int i, int stocks, int adjustment, int price, long sequence, String what) {
+        check(m.count == stocks, what + " stock count");
+        for (int k = 0; k < stocks; k++) {
+            check(m.symbol[k].equals(SYMBOLS[(i + k) % SYMBOLS.length]) && m.adjustment[k] == adjustment + k
+                && m.adjustedPrice[k] == price - k && m.sequence[k] == sequence + k, what);
+        }
+    }
+
+    private static void checkLegs(MessageCodec.Order expected, MessageCodec.Order actual, String what) {
+        check(expected.legs == actual.legs, what + " leg count");
+        for (int i = 0; i < expected.legs; i++) {
+            check(expected.buy[i] == actual.buy[i]
+                && expected.symbol[i].equals(actual.symbol[i])
+                && expected.amount[i] == actual.amount[i], what + " leg " + i);
+        }
+    }
+
+    private static void checkOrderOptions(MessageCodec.Order expected, MessageCodec.Order actual, String what) {
+        for (int i = 0; i < expected.legs; i++) {
+            check(expected.limit[i] == actual.limit[i] && expected.sequence[i] == actual.sequence[i],
+                what + " limit and sequence " + i);
+        }
+    }
+
+    private static void checkReceiptOptions(MessageCodec.OrderReceipt expected, MessageCodec.OrderReceipt actual, String what) {
+        for (int i = 0; i < expected.legs && expected.rejected == null; i++) {
+            check(expected.filled(i) == actual.filled(i) && expected.sequence[i] == actual.sequence[i],
+                what + " filled and sequence " + i);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            throw new AssertionError("round trip failed: " + what);
+        }
+    }
+}
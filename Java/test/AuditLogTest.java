@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AuditLogTest {
+    private static final int RECORDS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    // Records appended from several threads while the file rotates every few
+    // hundred of them all end up, once each, in the live or a rotated file
+    @Test
+    void rotationLosesNoRecord() throws Exception {
+        AuditLog log = new AuditLog(dir.resolve("suspicions.log"), 50, 5, false, 4096, 0);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t * RECORDS / threads.length;
+            threads[t] = new Thread(() -> {
+                for (int r = first; r < first + RECORDS / threads.length; r++) {
+                    log.append("record " + r + "\n");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        List<Integer> seen = new ArrayList<>();
+        int rotated = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".gz")) {
+                    rotated++;
+                }
+                try (InputStream in = name.endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(file))
+                                                           : Files.newInputStream(file)) {
+                    for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                        if (!line.isEmpty()) {
+                            seen.add(Integer.parseInt(line.substring("record ".length())));
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(name, e);
+                }
+            }
+        }
+        assertTrue(rotated > 10, rotated + " rotations");
+        Collections.sort(seen);
+        assertEquals(RECORDS, seen.size());
+        for (int r = 0; r < RECORDS; r++) {
+            assertEquals(r, seen.get(r));
+        }
+    }
+}
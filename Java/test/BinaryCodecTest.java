@@ -0,0 +1,213 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Every binary message shape survives a round trip, and a malformed one
+ * is turned away with an IllegalArgumentException instead of being read
+ * past its end.
+ */
+class BinaryCodecTest {
+    private static final long SENT = 1_700_000_000_000L;
+
+    private final BinaryCodec binary = new BinaryCodec();
+    private final MessageCodec codec = new MessageCodec();
+
+    @Test
+    void priceRoundTrips() {
+        int[] edges = { 0, -1, 1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int value : edges) {
+            MessageCodec.PriceMessage prices = codec.decodePriceMessage(price(binary.encodePrice(SENT, "MBGYY", value, -value)));
+            assertEquals(1, prices.count);
+            assertEquals("MBGYY", prices.symbol[0]);
+            assertEquals(value, prices.adjustment[0]);
+            assertEquals(-value, prices.adjustedPrice[0]);
+            assertEquals(0, prices.sequence[0]);
+        }
+
+        MessageCodec.PriceMessage prices = codec.decodePriceMessage(price(binary.encodePrice(SENT, "F", 5, 105, 3L << 33)));
+        assertEquals("F", prices.symbol[0]);
+        assertEquals(105, prices.adjustedPrice[0]);
+        assertEquals(3L << 33, prices.sequence[0]);
+    }
+
+    @Test
+    void batchRoundTrips() {
+        String[] symbols = { "AMZN", "MSFT", "GOOG", "ROVIO" };
+        binary.beginSequencedPrices(SENT);
+        for (int i = 0; i < symbols.length; i++) {
+            binary.addPrice(symbols[i], i - 2, 1000 * i, i + 1);
+        }
+        MessageCodec.PriceMessage prices = codec.decodePriceMessage(price(binary.endPrices()));
+        assertEquals(symbols.length, prices.count);
+        for (int i = 0; i < symbols.length; i++) {
+            assertEquals(symbols[i], prices.symbol[i]);
+            assertEquals(i - 2, prices.adjustment[i]);
+            assertEquals(1000 * i, prices.adjustedPrice[i]);
+            assertEquals(i + 1, prices.sequence[i]);
+        }
+    }
+
+    @Test
+    void ordersRoundTrip() {
+        MessageCodec.Order order = new MessageCodec.Order();
+        addLeg(order, true, "GE", 100, MessageCodec.Order.MARKET, 0);
+        addLeg(order, false, "TSLA", 7, MessageCodec.Order.MARKET, 0);
+        assertEquals(BinaryCodec.ORDER, binary.encode(order)[1]);
+        assertOrder(order, codec.decodeOrder(binary.encode(order)));
+
+        addLeg(order, true, "VWAGY", 3, 2900, 41);
+        assertEquals(BinaryCodec.EXTENDED_ORDER, binary.encode(order)[1]);
+        assertOrder(order, codec.decodeOrder(binary.encode(order)));
+        assertEquals(0, codec.order.id);
+
+        // an id alone makes it extended, and survives XML too
+        order.clear();
+        addLeg(order, false, "GE", 5, MessageCodec.Order.MARKET, 0);
+        order.id = 1L << 40;
+        assertEquals(BinaryCodec.EXTENDED_ORDER, binary.encode(order)[1]);
+        assertEquals(1L << 40, codec.decodeOrder(binary.encode(order)).id);
+        assertOrder(order, codec.order);
+        assertEquals(1L << 40, codec.decodeOrder(codec.encode(order)).id);
+        assertOrder(order, codec.order);
+    }
+
+    @Test
+    void receiptsRoundTrip() {
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        int leg = addLeg(receipt, true, "GE", 100, MessageCodec.Order.MARKET, 0);
+        receipt.legComplete[leg] = 11000;
+        leg = addLeg(receipt, false, "TSLA", 7, MessageCodec.Order.MARKET, 0);
+        receipt.legRejected[leg] = "no price for TSLA yet";
+        receipt.complete = 11000;
+        assertEquals(BinaryCodec.ORDER_RECEIPT, binary.encode(receipt)[1]);
+        MessageCodec.OrderReceipt decoded = codec.decodeReceipt(binary.encode(receipt));
+        assertReceipt(receipt, decoded);
+        assertNull(decoded.rejected);
+
+        receipt.legResting[0] = 40;
+        receipt.sequence[0] = 9;
+        assertEquals(BinaryCodec.EXTENDED_RECEIPT, binary.encode(receipt)[1]);
+        decoded = codec.decodeReceipt(binary.encode(receipt));
+        assertReceipt(receipt, decoded);
+        assertEquals(40, decoded.legResting[0]);
+        assertEquals(60, decoded.filled(0));
+        assertEquals(9, decoded.sequence[0]);
+
+        receipt.rejected = "no price for GE yet";
+        assertEquals(BinaryCodec.REJECTED_RECEIPT, binary.encode(receipt)[1]);
+        decoded = codec.decodeReceipt(binary.encode(receipt));
+        assertEquals("no price for GE yet", decoded.rejected);
+        assertNull(decoded.legRejected[0]);
+        assertEquals("no price for TSLA yet", decoded.legRejected[1]);
+    }
+
+    // Reasons of any length and in any script travel in full
+    @Test
+    void rejectedReceiptsCarryTheirReasons() {
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        addLeg(receipt, true, "GE", 100, MessageCodec.Order.MARKET, 0);
+        addLeg(receipt, false, "F", 5, MessageCodec.Order.MARKET, 0);
+        receipt.rejected = "shard 1 of broker \u2014 unreachable";
+        receipt.legRejected[0] = "";
+        receipt.legRejected[1] = "x".repeat(1000);
+        MessageCodec.OrderReceipt decoded = codec.decodeReceipt(binary.encode(receipt));
+        assertEquals(receipt.rejected, decoded.rejected);
+        assertEquals("", decoded.legRejected[0]);
+        assertEquals(receipt.legRejected[1], decoded.legRejected[1]);
+
+        byte[] trailing = Arrays.copyOf(binary.encode(receipt), binary.encode(receipt).length + 1);
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(trailing));
+    }
+
+    @Test
+    void truncatedMessagesAreRejected() {
+        MessageCodec.Order order = new MessageCodec.Order();
+        addLeg(order, true, "GE", 100, 2900, 41);
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        addLeg(receipt, true, "GE", 100, MessageCodec.Order.MARKET, 0);
+        receipt.legResting[0] = 40;
+        MessageCodec.OrderReceipt rejected = new MessageCodec.OrderReceipt();
+        addLeg(rejected, false, "F", 5, MessageCodec.Order.MARKET, 0);
+        rejected.rejected = rejected.legRejected[0] = "not enough shares";
+        binary.beginSequencedPrices(SENT);
+        binary.addPrice("AMZN", 1, 2, 3);
+        binary.addPrice("MSFT", 4, 5, 6);
+        byte[] batch = price(binary.endPrices());
+
+        for (byte[] message : new byte[][] { price(binary.encodePrice(SENT, "GE", 1, 2)), batch,
+                binary.encode(order), binary.encode(receipt), binary.encode(rejected) }) {
+            // Below the 4-byte header a message isn't recognised as binary at all
+            for (int length = 4; length < message.length; length++) {
+                byte[] truncated = Arrays.copyOf(message, length);
+                assertThrows(IllegalArgumentException.class, () -> binary.decode(truncated,
+                    codec.priceMessage, codec.order, codec.receipt), "truncated to " + length);
+            }
+        }
+    }
+
+    @Test
+    void countsThatDisagreeWithTheLengthAreRejected() {
+        byte[] message = price(binary.encodePrice(SENT, "GE", 1, 2));
+        message[3] = 2; // claims a second record it doesn't have
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(message));
+        message[2] = (byte) 0xFF; // and far more
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(message));
+
+        byte[] padded = Arrays.copyOf(price(binary.encodePrice(SENT, "GE", 1, 2)), 40);
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(padded));
+        // unless the caller says where the message ends, as when decoding an encoder's buffer
+        assertEquals(MessageCodec.PRICE_MESSAGE, binary.decode(padded, 28, codec.priceMessage, codec.order, codec.receipt));
+        assertEquals(2, codec.priceMessage.adjustedPrice[0]);
+    }
+
+    @Test
+    void unknownTypesAreLeftAlone() {
+        byte[] message = price(binary.encodePrice(SENT, "GE", 1, 2));
+        message[1] = 'Z';
+        assertEquals(MessageCodec.UNKNOWN, codec.decode(message));
+        assertArrayEquals(new byte[] { BinaryCodec.MAGIC, 'Z' }, Arrays.copyOf(message, 2));
+    }
+
+    private byte[] price(int length) {
+        return Arrays.copyOf(binary.buffer(), length);
+    }
+
+    private static int addLeg(MessageCodec.Order order, boolean buy, String symbol, int amount, int limit, long sequence) {
+        int leg = order.add();
+        order.buy[leg] = buy;
+        order.symbol[leg] = symbol;
+        order.amount[leg] = amount;
+        order.limit[leg] = limit;
+        order.sequence[leg] = sequence;
+        return leg;
+    }
+
+    private static void assertOrder(MessageCodec.Order expected, MessageCodec.Order actual) {
+        assertEquals(expected.legs, actual.legs);
+        for (int i = 0; i < expected.legs; i++) {
+            assertEquals(expected.buy[i], actual.buy[i]);
+            assertEquals(expected.symbol[i], actual.symbol[i]);
+            assertEquals(expected.amount[i], actual.amount[i]);
+            assertEquals(expected.limit[i], actual.limit[i]);
+            assertEquals(expected.sequence[i], actual.sequence[i]);
+        }
+    }
+
+    private static void assertReceipt(MessageCodec.OrderReceipt expected, MessageCodec.OrderReceipt actual) {
+        assertEquals(expected.legs, actual.legs);
+        assertEquals(expected.complete, actual.complete);
+        for (int i = 0; i < expected.legs; i++) {
+            assertEquals(expected.buy[i], actual.buy[i]);
+            assertEquals(expected.symbol[i], actual.symbol[i]);
+            assertEquals(expected.amount[i], actual.amount[i]);
+            assertEquals(expected.legComplete[i], actual.legComplete[i]);
+            assertEquals(expected.legRejected[i] != null, actual.legRejected[i] != null);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class InProcessBusTest {
+    private final InProcessBus bus = new InProcessBus();
+
+    @AfterEach
+    void close() throws InterruptedException {
+        bus.close();
+    }
+
+    // Members of a queue group take turns; a plain subscriber sees everything
+    @Test
+    void queueGroupsRoundRobin() throws Exception {
+        AtomicInteger[] members = new AtomicInteger[3];
+        Bus.Dispatcher[] dispatchers = new Bus.Dispatcher[members.length];
+        for (int m = 0; m < members.length; m++) {
+            AtomicInteger received = members[m] = new AtomicInteger();
+            dispatchers[m] = bus.createDispatcher(msg -> received.incrementAndGet()).subscribe("Order.*", "broker");
+        }
+        AtomicInteger everything = new AtomicInteger();
+        bus.createDispatcher(msg -> everything.incrementAndGet()).subscribe("Order.>");
+
+        publish(300);
+        await(everything, 300);
+        for (AtomicInteger member : members) {
+            await(member, 100);
+        }
+
+        // the members left share what the one that left would have had
+        dispatchers[0].unsubscribe("Order.*");
+        publish(300);
+        await(everything, 600);
+        await(members[1], 250);
+        await(members[2], 250);
+        assertEquals(100, members[0].get());
+    }
+
+    private void publish(int messages) {
+        for (int i = 0; i < messages; i++) {
+            bus.publish("Order.client" + i % 7, new byte[] { (byte) i });
+        }
+    }
+
+    private static void await(AtomicInteger count, int expected) throws InterruptedException {
+        for (int waited = 0; count.get() < expected && waited < 5_000; waited += 10) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(20); // and nothing more arrives
+        assertEquals(expected, count.get());
+    }
+}
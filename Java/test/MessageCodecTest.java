@@ -0,0 +1,142 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The XML messages decode as written, round-trip through the encoder, and
+ * a malformed number is turned away instead of wrapping.
+ */
+class MessageCodecTest {
+    private final MessageCodec codec = new MessageCodec();
+
+    @Test
+    void priceMessageDecodes() {
+        MessageCodec.PriceMessage prices = codec.decodePriceMessage(xml(
+            "<?xml version=\"1.0\"?><message sent=\"2024.01.02.03.04.05\">"
+            + "<stock><name> GE </name><adjustment>-12</adjustment><adjustedPrice>1088</adjustedPrice></stock>"
+            + "<!-- a comment --><stock><name>F</name><adjustment>+3</adjustment><adjustedPrice>105</adjustedPrice>"
+            + "<sequence>9223372036854775807</sequence></stock></message>"));
+        assertEquals(2, prices.count);
+        assertEquals("GE", prices.symbol[0]);
+        assertEquals(-12, prices.adjustment[0]);
+        assertEquals(1088, prices.adjustedPrice[0]);
+        assertEquals(0, prices.sequence[0]);
+        assertEquals("F", prices.symbol[1]);
+        assertEquals(3, prices.adjustment[1]);
+        assertEquals(Long.MAX_VALUE, prices.sequence[1]);
+        assertEquals("2024.01.02.03.04.05", new String(prices.source, prices.sentStart, prices.sentLength, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void orderRoundTrips() {
+        MessageCodec.Order order = new MessageCodec.Order();
+        order.id = -7;
+        int leg = order.add();
+        order.buy[leg] = true;
+        order.symbol[leg] = "GE";
+        order.amount[leg] = 10;
+        order.limit[leg] = 1050;
+        order.sequence[leg] = Long.MIN_VALUE;
+        leg = order.add();
+        order.symbol[leg] = "F";
+        order.amount[leg] = Integer.MAX_VALUE;
+
+        MessageCodec.Order decoded = codec.decodeOrder(codec.encode(order));
+        assertEquals(-7, decoded.id);
+        assertEquals(2, decoded.legs);
+        assertEquals(true, decoded.buy[0]);
+        assertEquals("GE", decoded.symbol[0]);
+        assertEquals(10, decoded.amount[0]);
+        assertEquals(1050, decoded.limit[0]);
+        assertEquals(Long.MIN_VALUE, decoded.sequence[0]);
+        assertEquals(false, decoded.buy[1]);
+        assertEquals("F", decoded.symbol[1]);
+        assertEquals(Integer.MAX_VALUE, decoded.amount[1]);
+        assertEquals(MessageCodec.Order.MARKET, decoded.limit[1]);
+    }
+
+    @Test
+    void receiptsRoundTrip() {
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        int leg = receipt.add();
+        receipt.buy[leg] = true;
+        receipt.symbol[leg] = "GE";
+        receipt.amount[leg] = 10;
+        receipt.complete = 10_880;
+        MessageCodec.OrderReceipt decoded = codec.decodeReceipt(codec.encode(receipt));
+        assertNull(decoded.rejected);
+        assertEquals(10_880, decoded.complete);
+        assertEquals(10_880, decoded.legComplete[0]);
+
+        receipt.complete = 0;
+        receipt.rejected = "no price for GE";
+        decoded = codec.decodeReceipt(codec.encode(receipt));
+        assertEquals("no price for GE", decoded.rejected);
+        assertEquals("no price for GE", decoded.legRejected[0]);
+
+        receipt.rejected = null;
+        leg = receipt.add();
+        receipt.symbol[leg] = "F";
+        receipt.amount[leg] = 5;
+        receipt.legRejected[leg] = "short";
+        receipt.legComplete[0] = 10_880;
+        receipt.legResting[0] = 2;
+        receipt.complete = 10_880;
+        decoded = codec.decodeReceipt(codec.encode(receipt));
+        assertEquals(2, decoded.legs);
+        assertEquals(10_880, decoded.legComplete[0]);
+        assertEquals(2, decoded.legResting[0]);
+        assertNull(decoded.legRejected[0]);
+        assertEquals("short", decoded.legRejected[1]);
+        assertEquals(10_880, decoded.complete);
+    }
+
+    // Reasons and symbols with markup in them come back as they went in
+    @Test
+    void attributeValuesAreEscaped() {
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        int leg = receipt.add();
+        receipt.symbol[leg] = "A&B";
+        receipt.amount[leg] = 1;
+        receipt.rejected = "limit \"1<2\" & 'x' > y, café 📈";
+        byte[] encoded = codec.encode(receipt);
+        for (byte b : encoded) {
+            assertEquals(b & 0x7f, b & 0xff, "non-ASCII byte in " + new String(encoded, StandardCharsets.UTF_8));
+        }
+        MessageCodec.OrderReceipt decoded = codec.decodeReceipt(encoded);
+        assertEquals("A&B", decoded.symbol[0]);
+        assertEquals(receipt.rejected, decoded.rejected);
+    }
+
+    @Test
+    void malformedNumbersAreRejected() {
+        String[] amounts = { "", "-", "+", "12x", "2147483648", "-2147483649", "99999999999" };
+        for (String amount : amounts) {
+            assertThrows(NumberFormatException.class,
+                () -> codec.decodeOrder(xml("<order><buy symbol=\"GE\" amount=\"" + amount + "\" /></order>")), amount);
+        }
+        assertEquals(Integer.MIN_VALUE, codec.decodeOrder(xml("<order><buy symbol=\"GE\" amount=\"-2147483648\" /></order>")).amount[0]);
+
+        String[] ids = { "9223372036854775808", "-9223372036854775809", "18446744073709551616" };
+        for (String id : ids) {
+            assertThrows(NumberFormatException.class,
+                () -> codec.decodeOrder(xml("<order id=\"" + id + "\"><buy symbol=\"GE\" amount=\"1\" /></order>")), id);
+        }
+        assertEquals(-42, codec.decodeOrder(xml("<order id=\"-42\"><buy symbol=\"GE\" amount=\"1\" /></order>")).id);
+    }
+
+    @Test
+    void otherDocumentsAreNotMessages() {
+        assertEquals(MessageCodec.UNKNOWN, codec.decode(xml("<quote />")));
+        assertEquals(MessageCodec.UNKNOWN, codec.decode(xml("no markup")));
+        assertThrows(IllegalArgumentException.class, () -> codec.decodeReceipt(xml("<order />")));
+    }
+
+    private static byte[] xml(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class OrderBookTest {
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int MARKET = OrderBook.MARKET;
+
+    private final OrderBook book = new OrderBook("GE");
+    private final OrderBook.Fills fills = new OrderBook.Fills();
+
+    // One client's resting ask is what another's crossing bid trades with,
+    // at the ask's price, even though the market is cheaper
+    @Test
+    void clientsTradeWithEachOther() {
+        assertEquals(10, book.submit(false, 105, 10, 100, "seller", NEVER, fills));
+        assertEquals(0, fills.takerShares);
+
+        fills.clear();
+        assertEquals(0, book.submit(true, 106, 4, 100, "buyer", NEVER, fills));
+        assertEquals(4, fills.takerShares);
+        assertEquals(4 * 105, fills.takerCost);
+        assertEquals(1, fills.count);
+        assertEquals("seller", fills.owner[0]);
+        assertFalse(fills.buy[0]);
+        assertEquals(4, fills.shares[0]);
+        assertEquals(105, fills.price[0]);
+        assertFalse(fills.expired[0]);
+        assertEquals(6, book.resting(false));
+    }
+
+    @Test
+    void bestPriceFirstThenOldestFirst() {
+        book.submit(false, 105, 5, 100, "a", NEVER, fills);
+        book.submit(false, 104, 5, 100, "b", NEVER, fills);
+        book.submit(false, 104, 5, 100, "c", NEVER, fills);
+
+        fills.clear();
+        book.submit(true, MARKET, 12, PriceBook.NO_PRICE, "buyer", NEVER, fills);
+        assertEquals(3, fills.count);
+        assertEquals("b", fills.owner[0]);
+        assertEquals("c", fills.owner[1]);
+        assertEquals("a", fills.owner[2]);
+        assertEquals(2, fills.shares[2]);
+        assertEquals(5 * 104 + 5 * 104 + 2 * 105, fills.takerCost);
+        assertEquals(3, book.resting(false));
+    }
+
+    // What the book can't fill within the limit goes to the market, and only
+    // what neither can rests
+    @Test
+    void theMarketTakesWhatTheBookCannot() {
+        book.submit(false, 105, 5, 100, "seller", NEVER, fills);
+        book.submit(false, 110, 5, 100, "seller", NEVER, fills);
+
+        fills.clear();
+        assertEquals(0, book.submit(true, 106, 20, 100, "buyer", NEVER, fills));
+        assertEquals(20, fills.takerShares);
+        assertEquals(5 * 105 + 15 * 100, fills.takerCost);
+        assertEquals(5, book.resting(false)); // the ask at 110 was out of reach
+
+        fills.clear();
+        assertEquals(7, book.submit(true, 99, 7, 100, "bidder", NEVER, fills));
+        assertEquals(0, fills.takerShares);
+        assertEquals(7, book.resting(true));
+    }
+
+    @Test
+    void aTickFillsTheOrdersItCrosses() {
+        book.submit(true, 99, 5, 100, "bidder", NEVER, fills);
+        book.submit(true, 97, 5, 100, "bidder", NEVER, fills);
+        book.submit(false, 103, 5, 100, "seller", NEVER, fills);
+
+        fills.clear();
+        book.onPrice(98, fills);
+        assertEquals(1, fills.count);
+        assertEquals("bidder", fills.owner[0]);
+        assertEquals(98, fills.price[0]);
+        assertEquals(0, fills.takerShares);
+        assertEquals(5, book.resting(true));
+        assertEquals(5, book.resting(false));
+    }
+
+    @Test
+    void restingOrdersExpire() {
+        book.submit(true, 99, 5, 100, "early", 1_000, fills);
+        book.submit(true, 99, 6, 100, "late", 2_000, fills);
+        book.submit(true, 98, 7, 100, "early", 1_000, fills);
+
+        fills.clear();
+        book.expire(999, fills);
+        assertEquals(0, fills.count);
+
+        book.expire(1_000, fills);
+        assertEquals(2, fills.count);
+        for (int i = 0; i < fills.count; i++) {
+            assertTrue(fills.expired[i]);
+            assertEquals("early", fills.owner[i]);
+            assertTrue(fills.buy[i]);
+        }
+        assertEquals(6, book.resting(true));
+
+        // what survived still trades
+        fills.clear();
+        book.submit(false, MARKET, 10, PriceBook.NO_PRICE, "seller", NEVER, fills);
+        assertEquals(1, fills.count);
+        assertEquals("late", fills.owner[0]);
+        assertEquals(6, fills.shares[0]);
+        assertEquals(99, fills.price[0]);
+
+        fills.clear();
+        book.expire(NEVER - 1, fills);
+        assertEquals(0, fills.count);
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.nats.client.Message;
+
+/**
+ * A sell of every share is sized when it goes out, from the holding left
+ * once the sells ahead of it are accounted for, and never oversells.
+ */
+class OrderPipelineTest {
+    private static final String SUBJECT = "Order.broker.client";
+
+    private final InProcessBus bus = new InProcessBus();
+    private final BlockingQueue<Message> broker = new LinkedBlockingQueue<>();
+    private final Map<String, Integer> holdings = new ConcurrentHashMap<>();
+    private final MessageCodec codec = new MessageCodec();
+    private OrderPipeline orders;
+
+    private void start(Duration timeout) {
+        holdings.put("GE", 10);
+        bus.createDispatcher(broker::add).subscribe(WireFormat.subject(SUBJECT));
+        orders = new OrderPipeline(bus, SUBJECT, receipt -> {
+            for (int i = 0; i < receipt.legs; i++) {
+                holdings.merge(receipt.symbol[i], receipt.buy[i] ? receipt.filled(i) : -receipt.filled(i), Integer::sum);
+            }
+        }, symbol -> holdings.getOrDefault(symbol, 0), 4, 64, timeout, 0, 16);
+        orders.verbose = false;
+    }
+
+    @AfterEach
+    void close() throws InterruptedException {
+        orders.close();
+        bus.close();
+    }
+
+    @Test
+    void sellAllWaitsForTheSellAheadOfIt() throws Exception {
+        start(Duration.ofSeconds(10));
+        orders.submit(new StockBrokerClient.StockTransaction("GE", "sell", 4));
+        Message first = broker.poll(5, TimeUnit.SECONDS);
+        assertEquals(4, amount(first));
+
+        orders.submit(new StockBrokerClient.StockTransaction("GE", "sell", -1));
+        assertNull(broker.poll(100, TimeUnit.MILLISECONDS)); // behind the first sell
+        fill(first);
+        Message second = broker.poll(5, TimeUnit.SECONDS);
+        assertEquals(6, amount(second));
+
+        orders.submit(new StockBrokerClient.StockTransaction("GE", "sell", -1));
+        fill(second);
+        assertNull(broker.poll(200, TimeUnit.MILLISECONDS)); // nothing left to sell
+    }
+
+    @Test
+    void sellAllLeavesOutSharesAnUnansweredOrderIsSelling() throws Exception {
+        start(Duration.ofMillis(50));
+        orders.submit(new StockBrokerClient.StockTransaction("GE", "sell", 4));
+        Message unanswered = broker.poll(5, TimeUnit.SECONDS);
+        assertNotNull(unanswered);
+
+        TimeUnit.MILLISECONDS.sleep(200); // given up on, but it may still fill
+        orders.submit(new StockBrokerClient.StockTransaction("GE", "sell", -1));
+        assertEquals(6, amount(broker.poll(5, TimeUnit.SECONDS)));
+    }
+
+    private int amount(Message order) {
+        MessageCodec.Order decoded = codec.decodeOrder(order.getData());
+        assertEquals(1, decoded.legs);
+        return decoded.amount[0];
+    }
+
+    // Fill every leg of the order in full
+    private void fill(Message order) {
+        MessageCodec.Order decoded = codec.decodeOrder(order.getData());
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        for (int i = 0; i < decoded.legs; i++) {
+            int leg = receipt.add();
+            receipt.buy[leg] = decoded.buy[i];
+            receipt.symbol[leg] = decoded.symbol[i];
+            receipt.amount[leg] = decoded.amount[i];
+            receipt.legComplete[leg] = decoded.amount[i] * 100;
+        }
+        bus.publish(order.getReplyTo(), codec.encode(receipt));
+    }
+}
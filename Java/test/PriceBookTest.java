@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * A snapshot and the live ticks merge by sequence number, so whichever
+ * arrives first, the book ends on the newest price.
+ */
+class PriceBookTest {
+    private final PriceBook book = new PriceBook(64);
+    private final PriceBook.Quote quote = new PriceBook.Quote();
+
+    @Test
+    void aStaleSnapshotDoesNotOverwriteLiveTicks() {
+        assertTrue(book.merge("GE", 110, 10));
+        assertTrue(book.merge("GE", 111, 11));
+        assertFalse(book.merge("GE", 100, 8)); // the snapshot, taken before those ticks
+        assertFalse(book.merge("GE", 105, 11)); // the same sequence twice
+        assertTrue(book.quote("GE", quote));
+        assertEquals(111, quote.price);
+        assertEquals(11, quote.sequence);
+    }
+
+    @Test
+    void aSnapshotFillsInWhatTheTicksHaveNotReached() {
+        assertTrue(book.merge("GE", 100, 8)); // the snapshot arrives first
+        assertFalse(book.merge("GE", 99, 7)); // a tick from before it
+        assertTrue(book.merge("GE", 101, 9));
+        assertEquals(101, book.price("GE"));
+        assertTrue(book.merge("F", 50, 3)); // a symbol only the snapshot has seen
+        assertEquals(50, book.price("F"));
+        assertEquals(PriceBook.NO_PRICE, book.price("IBM"));
+    }
+
+    // A price the publisher didn't stamp is always taken as the newest
+    @Test
+    void unstampedPricesAlwaysWin() {
+        assertTrue(book.merge("GE", 100, 8));
+        assertTrue(book.merge("GE", 90, 0));
+        assertTrue(book.quote("GE", quote));
+        assertEquals(90, quote.price);
+        assertEquals(9, quote.sequence);
+        assertFalse(book.merge("GE", 80, 9));
+        assertTrue(book.merge("GE", 85, 10));
+        assertEquals(85, book.price("GE"));
+    }
+
+    @Test
+    void anyArrivalOrderEndsOnTheNewestPrice() {
+        Random random = new Random(7);
+        for (int round = 0; round < 100; round++) {
+            PriceBook shuffled = new PriceBook(64);
+            List<Integer> sequences = new ArrayList<>();
+            for (int s = 1; s <= 50; s++) {
+                sequences.add(s);
+                sequences.add(s); // snapshot and live tick for the same sequence
+            }
+            Collections.shuffle(sequences, random);
+            for (int sequence : sequences) {
+                shuffled.merge("GE", sequence * 10, sequence);
+            }
+            assertTrue(shuffled.quote("GE", quote));
+            assertEquals(500, quote.price);
+            assertEquals(50, quote.sequence);
+        }
+    }
+}
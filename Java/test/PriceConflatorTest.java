@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The listener always gets a price together with the sequence of the tick
+ * that carried it, even while the offering thread keeps overwriting it.
+ */
+class PriceConflatorTest {
+    private static final int TICKS = 2_000_000;
+    private static final String[] SYMBOLS = { "AMZN", "MSFT", "GOOG" };
+
+    @Test
+    void priceAndSequenceArriveAsOnePair() throws Exception {
+        List<String> mismatches = new ArrayList<>();
+        long[] last = new long[SYMBOLS.length];
+        AtomicLong handed = new AtomicLong();
+        PriceConflator conflator = new PriceConflator((symbol, price, sequence, published, received) -> {
+            int s = symbol.charAt(0) == 'A' ? 0 : symbol.charAt(0) == 'M' ? 1 : 2;
+            if (price != (int) (sequence * 7) || sequence <= last[s]) {
+                mismatches.add(symbol + " price " + price + " with sequence " + sequence);
+            }
+            last[s] = sequence;
+            handed.incrementAndGet();
+        }, 16);
+
+        for (long sequence = 1; sequence <= TICKS; sequence++) {
+            conflator.offer(SYMBOLS[(int) sequence % SYMBOLS.length], (int) (sequence * 7), sequence, -1, -1);
+        }
+        conflator.close();
+
+        assertTrue(mismatches.isEmpty(), mismatches.size() + " mismatches, first " + (mismatches.isEmpty() ? "" : mismatches.get(0)));
+        assertTrue(handed.get() > 0);
+        assertEquals(TICKS, conflator.offered());
+        // whatever was last offered for each symbol is what it ends on
+        for (int s = 0; s < SYMBOLS.length; s++) {
+            assertTrue(last[s] > TICKS - SYMBOLS.length, SYMBOLS[s] + " ended on " + last[s]);
+        }
+    }
+
+    @Test
+    void unstampedPricesAreHandedOverWithSequenceZero() throws Exception {
+        List<Integer> prices = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        PriceConflator conflator = new PriceConflator((symbol, price, sequence, published, received) -> {
+            prices.add(price);
+            sequences.add(sequence);
+        }, 16);
+        conflator.offer("GE", 100, 0, -1, -1);
+        Thread.sleep(50);
+        conflator.offer("GE", 101, 0, -1, -1); // not mistaken for the same price again
+        conflator.close();
+
+        assertEquals(List.of(100, 101), prices);
+        assertEquals(List.of(0L, 0L), sequences);
+    }
+}
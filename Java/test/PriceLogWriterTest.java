@@ -0,0 +1,39 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PriceLogWriterTest {
+    @TempDir
+    Path dir;
+
+    // A symbol that would name a file outside the log directory is dropped
+    @Test
+    void ticksForBadSymbolsAreDropped() throws Exception {
+        Path logs = dir.resolve("logs");
+        PriceLogWriter writer = new PriceLogWriter(logs, 1, 1, false);
+        for (String symbol : new String[] { "../escaped", "a/b", "..", "GE" }) {
+            writer.append(message(symbol), 0);
+        }
+        writer.close();
+
+        assertEquals(3, writer.badSymbols());
+        assertTrue(Files.exists(logs.resolve("GE-log.log")));
+        assertFalse(Files.exists(dir.resolve("escaped-log.log")));
+        try (var files = Files.list(logs)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    private static MessageCodec.PriceMessage message(String symbol) {
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        int length = encoder.encode(1000, symbol, 0, 100, 1);
+        return new MessageCodec().decodePriceMessage(Arrays.copyOf(encoder.buffer(), length));
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The publisher's encoders write into their own buffers and, once every
+ * symbol and the current second have been seen, allocate nothing per tick.
+ */
+class PriceMessageEncoderTest {
+    private static final String[] SYMBOLS = { "AMZN", "MSFT", "GOOG", "APPL", "NVDA", "ADBE", "INTC" };
+    private static final long SENT = 1_700_000_000_000L;
+    private static final int TICKS = 200_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void encodesTheDocumentStockPublisherAlwaysSent() {
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        int length = encoder.encode(SENT, "MSFT", -25, 31075);
+        String xml = new String(encoder.buffer(), 0, length, StandardCharsets.US_ASCII);
+        assertTrue(xml.startsWith("<message sent=\""), xml);
+        assertTrue(xml.endsWith("\">\n  <stock>\n    <name>MSFT</name>\n    <adjustment>-25</adjustment>\n"
+            + "    <adjustedPrice>31075</adjustedPrice>\n  </stock>\n</message>"), xml);
+
+        MessageCodec.PriceMessage message = new MessageCodec().decodePriceMessage(
+            Arrays.copyOf(encoder.buffer(), encoder.encode(SENT, "MSFT", -25, 31075, 42)));
+        assertEquals(1, message.count);
+        assertEquals("MSFT", message.symbol[0]);
+        assertEquals(-25, message.adjustment[0]);
+        assertEquals(31075, message.adjustedPrice[0]);
+        assertEquals(42, message.sequence[0]);
+    }
+
+    @Test
+    void xmlEncodingAllocatesNothingPerTick() {
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        assertNoAllocation(tick -> encoder.encode(SENT, SYMBOLS[tick % SYMBOLS.length], tick % 100 - 50, 1000 + tick, tick + 1));
+    }
+
+    @Test
+    void xmlBatchEncodingAllocatesNothingPerTick() {
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        assertNoAllocation(tick -> {
+            encoder.begin(SENT);
+            for (String symbol : SYMBOLS) {
+                encoder.add(symbol, tick % 100 - 50, 1000 + tick, tick + 1);
+            }
+            return encoder.end();
+        });
+    }
+
+    @Test
+    void binaryEncodingAllocatesNothingPerTick() {
+        BinaryCodec codec = new BinaryCodec();
+        assertNoAllocation(tick -> codec.encodePrice(SENT, SYMBOLS[tick % SYMBOLS.length], tick % 100 - 50, 1000 + tick, tick + 1));
+    }
+
+    private interface Encoding {
+        int encode(int tick);
+    }
+
+    // Warm up (caching every symbol, and letting the JIT compile the
+    // encoder), then count what the thread allocates over TICKS more
+    private static void assertNoAllocation(Encoding encoding) {
+        long sink = 0;
+        for (int tick = 0; tick < TICKS; tick++) {
+            sink += encoding.encode(tick);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        for (int tick = 0; tick < TICKS; tick++) {
+            sink += encoding.encode(tick);
+        }
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - before;
+        assertTrue(sink > 0);
+        // A few hundred bytes of slack for the measurement itself, far less than one byte a tick
+        assertTrue(allocated < 1024, allocated + " bytes allocated encoding " + TICKS + " ticks");
+    }
+}
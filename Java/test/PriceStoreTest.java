@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PriceStoreTest {
+    @TempDir
+    Path dir;
+
+    // A timestamp that ends one segment and starts the next must be found in both
+    @Test
+    void rangeStartingOnASegmentBoundaryScansTheEarlierSegment() throws Exception {
+        try (PriceStore store = new PriceStore(dir)) {
+            for (long r = 0; r < PriceStore.SEGMENT_RECORDS - 1; r++) {
+                store.append("GE", 1000, 0, 1);
+            }
+            store.append("GE", 2000, 0, 2); // the last record of the first segment
+            store.append("GE", 2000, 0, 3); // the first of the second
+            store.append("GE", 3000, 0, 4);
+            store.flush(false);
+
+            List<Integer> prices = new ArrayList<>();
+            assertEquals(2, store.range("GE", 2000, 2000, (millis, adjustment, price) -> prices.add(price)));
+            assertEquals(List.of(2, 3), prices);
+            assertEquals(3, store.range("GE", 2000, 3000, (millis, adjustment, price) -> { }));
+        }
+    }
+
+    @Test
+    void symbolsThatWouldLeaveTheStoreAreRejected() throws Exception {
+        Path store = dir.resolve("store");
+        try (PriceStore prices = new PriceStore(store)) {
+            assertThrows(IllegalArgumentException.class, () -> prices.append("../outside", 1000, 0, 1));
+            assertThrows(IllegalArgumentException.class, () -> prices.range("..", 0, Long.MAX_VALUE, (millis, adjustment, price) -> { }));
+            assertThrows(IllegalArgumentException.class, () -> prices.last("a\\b", 1, (millis, adjustment, price) -> { }));
+        }
+        assertFalse(Files.exists(dir.resolve("outside")));
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * An order split across the instances of a broker is answered leg by leg,
+ * with the legs an instance that isn't there owns rejected.
+ */
+class StockBrokerTest {
+    private static final String BROKER = "broker";
+
+    private final InProcessBus bus = new InProcessBus();
+    private final MessageCodec codec = new MessageCodec();
+    private final StockBroker[] brokers = new StockBroker[2];
+    // a symbol each instance owns
+    private final String[] symbols = new String[2];
+
+    private void start(int instances) throws InterruptedException {
+        for (int s = 0; symbols[0] == null || symbols[1] == null; s++) {
+            symbols[Math.floorMod(("S" + s).hashCode(), 2)] = "S" + s;
+        }
+        for (int i = 0; i < instances; i++) {
+            brokers[i] = new StockBroker(BROKER, i, 2);
+            brokers[i].start(bus);
+        }
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        for (String symbol : symbols) {
+            int length = encoder.encode(System.currentTimeMillis(), symbol, 0, 100, 1);
+            bus.publish(WireFormat.subject("PriceAdjustment." + symbol), Arrays.copyOf(encoder.buffer(), length));
+        }
+        TimeUnit.MILLISECONDS.sleep(200);
+    }
+
+    @AfterEach
+    void close() throws InterruptedException {
+        for (StockBroker broker : brokers) {
+            if (broker != null) {
+                broker.close();
+            }
+        }
+        bus.close();
+    }
+
+    @Test
+    void everyShareIsPutBackTogether() throws Exception {
+        start(2);
+        MessageCodec.OrderReceipt receipt = order();
+        assertNull(receipt.rejected);
+        assertEquals(3, receipt.filled(0));
+        assertEquals(5, receipt.filled(1));
+    }
+
+    @Test
+    void aMissingInstancesLegsAreRejected() throws Exception {
+        start(1);
+        long started = System.nanoTime();
+        MessageCodec.OrderReceipt receipt = order();
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+        assertNull(receipt.legRejected[0]);
+        assertEquals(3, receipt.filled(0));
+        assertNotNull(receipt.legRejected[1]);
+        assertTrue(receipt.legRejected[1].contains(symbols[1]), receipt.legRejected[1]);
+        assertEquals(0, receipt.filled(1));
+        assertNull(receipt.rejected); // not the whole order
+    }
+
+    // buy 3 of the first instance's symbol and 5 of the second's
+    private MessageCodec.OrderReceipt order() throws Exception {
+        MessageCodec.Order order = new MessageCodec.Order();
+        order.id = 1;
+        for (int i = 0; i < 2; i++) {
+            int leg = order.add();
+            order.buy[leg] = true;
+            order.symbol[leg] = symbols[i];
+            order.amount[leg] = i == 0 ? 3 : 5;
+        }
+        byte[] reply = bus.requestWithTimeout(WireFormat.subject("Order." + BROKER + ".client"), null, codec.encode(order),
+                                              Duration.ofSeconds(5)).get().getData();
+        return codec.decodeReceipt(reply);
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A rule fires on the tick its condition becomes true, found through the
+ * sorted bounds of its symbol's (or the wildcard) index.
+ */
+class StrategyTest {
+    @TempDir
+    Path dir;
+
+    private final List<String> placed = new ArrayList<>();
+
+    private StockBrokerClient.Strategy strategy(String... rules) throws Exception {
+        Path file = dir.resolve("strategy.xml");
+        Files.writeString(file, "<strategy>" + String.join("", rules) + "</strategy>");
+        return new StockBrokerClient.Strategy(file.toString(), null);
+    }
+
+    private List<String> tick(StockBrokerClient.Strategy strategy, String symbol, int price) {
+        placed.clear();
+        strategy.evaluate(symbol, price, transaction -> placed.add(transaction.toString()));
+        return placed;
+    }
+
+    @Test
+    void aboveFiresOnTheWayUp() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy("<when><stock>GE</stock><above>100</above><sell>5</sell></when>");
+        assertEquals(List.of(), tick(strategy, "GE", 90));
+        assertEquals(List.of(), tick(strategy, "GE", 100)); // not above yet
+        assertEquals(List.of("sell 5 shares of GE"), tick(strategy, "GE", 101));
+        assertEquals(List.of(), tick(strategy, "GE", 120)); // still true, so no new signal
+        assertEquals(List.of(), tick(strategy, "GE", 95));
+        assertEquals(List.of("sell 5 shares of GE"), tick(strategy, "GE", 150));
+        assertEquals(List.of(), tick(strategy, "F", 150));
+    }
+
+    @Test
+    void belowFiresOnTheWayDown() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy("<when><stock>GE</stock><below>100</below><buy>5</buy></when>");
+        assertEquals(List.of(), tick(strategy, "GE", 100));
+        assertEquals(List.of("buy 5 shares of GE"), tick(strategy, "GE", 99));
+        assertEquals(List.of(), tick(strategy, "GE", 50));
+        assertEquals(List.of(), tick(strategy, "GE", 100));
+        assertEquals(List.of("buy 5 shares of GE"), tick(strategy, "GE", 10));
+    }
+
+    @Test
+    void theFirstTickFiresWhatAlreadyHolds() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy(
+            "<when><stock>GE</stock><above>100</above><sell /></when>",
+            "<when><stock>GE</stock><below>200</below><buy>1</buy></when>",
+            "<when><stock>GE</stock><below>120</below><buy>2</buy></when>");
+        assertEquals(List.of("sell all shares of GE", "buy 1 shares of GE"), tick(strategy, "GE", 150));
+    }
+
+    // A ranged rule fires on entering its range from either side, but not
+    // when a tick jumps clean across it
+    @Test
+    void rangedRulesFireOnEnteringTheRange() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy(
+            "<when><stock>GE</stock><above>100</above><below>200</below><buy>5</buy></when>");
+        assertEquals(List.of(), tick(strategy, "GE", 50));
+        assertEquals(List.of("buy 5 shares of GE"), tick(strategy, "GE", 150));
+        assertEquals(List.of(), tick(strategy, "GE", 250));
+        assertEquals(List.of("buy 5 shares of GE"), tick(strategy, "GE", 199));
+        assertEquals(List.of(), tick(strategy, "GE", 50));
+        assertEquals(List.of(), tick(strategy, "GE", 300));
+    }
+
+    // A wildcard rule keeps its own last price for every symbol
+    @Test
+    void wildcardRulesTrackEverySymbol() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy(
+            "<when><stock /><above>100</above><sell /></when>",
+            "<when><stock>GE</stock><above>100</above><sell>1</sell></when>");
+        assertEquals(List.of(), tick(strategy, "GE", 90));
+        assertEquals(List.of(), tick(strategy, "F", 95));
+        assertEquals(List.of("sell 1 shares of GE", "sell all shares of GE"), tick(strategy, "GE", 110));
+        assertEquals(List.of("sell all shares of F"), tick(strategy, "F", 101));
+        assertEquals(List.of(), tick(strategy, "GE", 111));
+    }
+
+    @Test
+    void unboundedRulesFireOnEveryTick() throws Exception {
+        StockBrokerClient.Strategy strategy = strategy("<when><stock>GE</stock><buy>1</buy></when>");
+        assertEquals(List.of("buy 1 shares of GE"), tick(strategy, "GE", 100));
+        assertEquals(List.of("buy 1 shares of GE"), tick(strategy, "GE", 100));
+        assertEquals(List.of(), tick(strategy, "F", 100));
+    }
+
+    // Every bounded rule fires exactly when its condition goes from false to true
+    @Test
+    void matchesCheckingEveryRuleOnEveryTick() throws Exception {
+        Random random = new Random(42);
+        List<String> rules = new ArrayList<>();
+        for (int r = 0; r < 40; r++) {
+            int above = random.nextInt(3) == 0 ? -1 : random.nextInt(100);
+            int below = above >= 0 && random.nextInt(3) == 0 ? -1 : above + 1 + random.nextInt(50);
+            rules.add("<when><stock>" + (r % 4 == 0 ? "" : "S" + r % 3) + "</stock>"
+                + (above >= 0 ? "<above>" + above + "</above>" : "")
+                + (below >= 0 ? "<below>" + below + "</below>" : "")
+                + "<buy>" + r + "</buy></when>");
+        }
+        StockBrokerClient.Strategy strategy = strategy(rules.toArray(new String[0]));
+
+        Integer[] last = new Integer[3];
+        for (int t = 0; t < 5_000; t++) {
+            int s = random.nextInt(3);
+            String symbol = "S" + s;
+            int price = random.nextInt(160);
+            List<String> expected = new ArrayList<>();
+            for (StockBrokerClient.Rule rule : strategy.rules) {
+                boolean was = last[s] != null && rule.signalRaised(symbol, last[s]);
+                if (!was && rule.signalRaised(symbol, price)) {
+                    expected.add(rule.transaction.type + " " + rule.transaction.shares + " shares of " + symbol);
+                }
+            }
+            List<String> fired = new ArrayList<>(tick(strategy, symbol, price));
+            expected.sort(null);
+            fired.sort(null);
+            assertEquals(expected, fired, symbol + " " + (last[s] == null ? "first" : last[s]) + " -> " + price);
+            last[s] = price;
+        }
+    }
+}
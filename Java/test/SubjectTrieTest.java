@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class SubjectTrieTest {
+    private final SubjectTrie<String> trie = new SubjectTrie<>();
+
+    private List<String> match(String subject) {
+        List<String> matched = new ArrayList<>(trie.match(subject));
+        matched.sort(null);
+        return matched;
+    }
+
+    @Test
+    void starMatchesExactlyOneToken() {
+        trie.add("PriceAdjustment.*", "star");
+        trie.add("PriceAdjustment.GE", "literal");
+        trie.add("*.GE", "leading");
+        assertEquals(List.of("leading", "literal", "star"), match("PriceAdjustment.GE"));
+        assertEquals(List.of("star"), match("PriceAdjustment.F"));
+        assertEquals(List.of(), match("PriceAdjustment"));
+        assertEquals(List.of(), match("PriceAdjustment.GE.x"));
+        assertEquals(List.of("leading"), match("Bars.GE"));
+    }
+
+    @Test
+    void tailMatchesOneOrMoreTokens() {
+        trie.add("_INBOX.>", "inbox");
+        trie.add(">", "everything");
+        trie.add("Order.*.>", "orders");
+        assertEquals(List.of("everything", "inbox"), match("_INBOX.a"));
+        assertEquals(List.of("everything", "inbox"), match("_INBOX.a.b.c"));
+        assertEquals(List.of("everything"), match("_INBOX"));
+        assertEquals(List.of("everything"), match("Order.broker"));
+        assertEquals(List.of("everything", "orders"), match("Order.broker.client"));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("a.>.b", "bad"));
+        assertThrows(IllegalArgumentException.class, () -> trie.add("a..b", "bad"));
+    }
+
+    // Each subscription matches once, and removing one leaves the rest
+    @Test
+    void removeTakesOutOneSubscription() {
+        trie.add("a.*", "x");
+        trie.add("a.*", "y");
+        trie.add("a.b", "x");
+        assertEquals(3, trie.size());
+        assertEquals(List.of("x", "x", "y"), match("a.b"));
+
+        assertTrue(trie.remove("a.*", "x"));
+        assertFalse(trie.remove("a.*", "x"));
+        assertFalse(trie.remove("a.>", "y"));
+        assertEquals(List.of("x", "y"), match("a.b"));
+        assertTrue(trie.remove("a.*", "y"));
+        assertTrue(trie.remove("a.b", "x"));
+        assertEquals(0, trie.size());
+        assertEquals(List.of(), match("a.b"));
+    }
+}
@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Windowed sums forget what slides out of the window, and a client evicted
+ * from a full table comes back with nothing held against it.
+ */
+class SurveillanceTest {
+    private static final long T = 1_700_000_000_000L;
+
+    private final List<String> alerts = new ArrayList<>();
+
+    private Surveillance surveillance(int keys, Surveillance.Rule rule) {
+        Surveillance surveillance = new Surveillance(keys, (millis, client, broker, detail) -> alerts.add(client + "@" + (millis - T)));
+        surveillance.add(rule);
+        return surveillance;
+    }
+
+    // Over 3 orders in 1000ms, counted in 100ms buckets
+    @Test
+    void ordersSlideOutOfTheWindow() {
+        Surveillance surveillance = surveillance(16, new Surveillance.WindowRule("orders", Surveillance.CLIENT, 1000, 3, 16));
+        surveillance.onOrder(T, "a", "broker");
+        surveillance.onOrder(T + 100, "a", "broker");
+        surveillance.onOrder(T + 200, "a", "broker");
+        surveillance.onOrder(T + 1150, "a", "broker"); // the first two have slid out
+        surveillance.onOrder(T + 1160, "a", "broker");
+        assertEquals(List.of(), alerts);
+        surveillance.onOrder(T + 1170, "a", "broker");
+        assertEquals(List.of("a@1170"), alerts);
+        surveillance.onOrder(T + 1180, "a", "broker"); // still over, so no second alert
+        assertEquals(1, alerts.size());
+
+        // long after, the window is empty again
+        for (int i = 0; i < 4; i++) {
+            surveillance.onOrder(T + 60_000 + i, "a", "broker");
+        }
+        assertEquals(List.of("a@1170", "a@60003"), alerts);
+    }
+
+    @Test
+    void notionalSumsWhatFillsWereWorth() {
+        Surveillance surveillance = surveillance(16, new Surveillance.WindowRule("notional", Surveillance.BROKER, 1000, 1000, 16));
+        surveillance.onFill(T, "a", "broker", "GE", true, 5, 600);
+        surveillance.onFill(T + 500, "b", "broker", "GE", true, 5, 400);
+        assertEquals(List.of(), alerts);
+        surveillance.onFill(T + 900, "c", "broker", "GE", true, 1, 1);
+        assertEquals(List.of("c@900"), alerts);
+    }
+
+    // A full table gives the least recently seen client's slot to a new one
+    @Test
+    void aFullTableEvictsTheLeastRecentlySeen() {
+        Surveillance surveillance = surveillance(4, new Surveillance.WindowRule("orders", Surveillance.CLIENT, 1000, 1, 4));
+        String[] clients = { "a", "b", "c", "d" };
+        for (int i = 0; i < clients.length; i++) {
+            surveillance.onOrder(T + i, clients[i], "broker");
+        }
+        surveillance.onOrder(T + 500, "e", "broker");
+        assertEquals(4, surveillance.keys(Surveillance.CLIENT));
+
+        // a was evicted, so this is its first order as far as the rule knows
+        surveillance.onOrder(T + 600, "a", "broker");
+        assertEquals(List.of(), alerts);
+        surveillance.onOrder(T + 601, "a", "broker");
+        assertEquals(List.of("a@601"), alerts);
+        assertEquals(4, surveillance.keys(Surveillance.CLIENT));
+    }
+
+    // Keys idle for longer than any window give their slots up
+    @Test
+    void idleKeysAreReleased() {
+        Surveillance surveillance = surveillance(4, new Surveillance.WindowRule("orders", Surveillance.CLIENT, 1000, 1, 4));
+        for (String client : new String[] { "a", "b", "c", "d" }) {
+            surveillance.onOrder(T, client, "broker");
+        }
+        surveillance.onOrder(T + 5000, "e", "broker");
+        assertEquals(1, surveillance.keys(Surveillance.CLIENT));
+    }
+
+    // A client's round-trip history isn't inherited by whoever gets its slot
+    @Test
+    void anEvictedSlotStartsWithNoHistory() {
+        Surveillance surveillance = surveillance(1, new Surveillance.RoundTripRule(Surveillance.CLIENT, 10_000, 1));
+        surveillance.onFill(T, "a", "broker", "GE", true, 1, 100);
+        surveillance.onFill(T + 10, "b", "broker", "GE", false, 1, 100);
+        assertEquals(List.of(), alerts);
+        surveillance.onFill(T + 20, "b", "broker", "GE", true, 1, 100);
+        assertEquals(List.of("b@20"), alerts);
+    }
+}
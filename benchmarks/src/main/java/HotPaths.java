@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+import io.nats.client.Message;
+import io.nats.client.impl.NatsMessage;
+
+/**
+ * The hot paths the JMH benchmarks measure, each set up with its inputs
+ * and wrapped as an IntSupplier that does one operation per call.
+ *
+ * The application lives in the default package, which JMH will not
+ * generate benchmarks for and which a named package cannot import, so the
+ * benchmarks (package benchmarks) look this class up by name and only ever
+ * see the JDK interface. Each benchmark fork only ever sees one
+ * implementation, so the call is inlined like a direct one.
+ *
+ * Inputs cycle through a fixed, seeded set so every run measures the same
+ * work.
+ */
+public class HotPaths {
+    private static final int INPUTS = 1024; // power of two
+    private static final int SYMBOLS = 500;
+
+    private static String[] symbols(int count) {
+        String[] symbols = new String[count];
+        for (int i = 0; i < count; i++) {
+            symbols[i] = "S" + i;
+        }
+        return symbols;
+    }
+
+    private static byte[][] priceMessages() {
+        Random random = new Random(314);
+        String[] symbols = symbols(SYMBOLS);
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        long now = System.currentTimeMillis();
+        byte[][] messages = new byte[INPUTS][];
+        for (int i = 0; i < INPUTS; i++) {
+            int length = encoder.encode(now + i, symbols[random.nextInt(SYMBOLS)],
+                random.nextInt(1000) - 500, 1000 + random.nextInt(9000));
+            messages[i] = Arrays.copyOf(encoder.buffer(), length);
+        }
+        return messages;
+    }
+
+    private static Message[] natsMessages() {
+        byte[][] data = priceMessages();
+        Message[] messages = new Message[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            messages[i] = NatsMessage.builder().subject("PriceAdjustment.S").data(data[i]).build();
+        }
+        return messages;
+    }
+
+    private static void updatePrices(StockBroker broker, Message msg) {
+        try {
+            broker.updatePrices(msg);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * StockPublisher's message encoding (PriceMessageEncoder, which replaced
+     * buildXMLString); returns the encoded length.
+     */
+    public static IntSupplier encode() {
+        Random random = new Random(314);
+        String[] symbols = symbols(SYMBOLS);
+        String[] symbol = new String[INPUTS];
+        int[] adjustment = new int[INPUTS];
+        int[] price = new int[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            symbol[i] = symbols[random.nextInt(SYMBOLS)];
+            adjustment[i] = random.nextInt(1000) - 500;
+            price[i] = 1000 + random.nextInt(9000);
+        }
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        long now = System.currentTimeMillis();
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                int i = next++ & (INPUTS - 1);
+                return encoder.encode(now + i, symbol[i], adjustment[i], price[i]);
+            }
+        };
+    }
+
+    /**
+     * StockMonitor's parse of a price message (MessageCodec, which replaced
+     * parseXML); returns the adjusted price.
+     */
+    public static IntSupplier decodePriceMessage() {
+        byte[][] messages = priceMessages();
+        MessageCodec codec = new MessageCodec();
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                return codec.decodePriceMessage(messages[next++ & (INPUTS - 1)]).adjustedPrice[0];
+            }
+        };
+    }
+
+    /**
+     * StockBroker.updatePrices: decode a price message and update the
+     * broker's price book.
+     */
+    public static IntSupplier updatePrices() {
+        Message[] messages = natsMessages();
+        StockBroker broker = new StockBroker("bench");
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                updatePrices(broker, messages[next++ & (INPUTS - 1)]);
+                return next;
+            }
+        };
+    }
+
+    /**
+     * StockBroker.processOrder on orders of the given number of legs, every
+     * symbol priced; returns the completed amount.
+     */
+    public static IntSupplier processOrder(int legs) {
+        Random random = new Random(314);
+        String[] symbols = symbols(SYMBOLS);
+        PriceMessageEncoder encoder = new PriceMessageEncoder();
+        StockBroker broker = new StockBroker("bench");
+        for (String symbol : symbols) {
+            int length = encoder.encode(System.currentTimeMillis(), symbol, 0, 1000 + random.nextInt(9000));
+            updatePrices(broker, NatsMessage.builder().subject("PriceAdjustment." + symbol)
+                .data(Arrays.copyOf(encoder.buffer(), length)).build());
+        }
+        MessageCodec.Order[] orders = new MessageCodec.Order[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            MessageCodec.Order order = new MessageCodec.Order();
+            for (int l = 0; l < legs; l++) {
+                int leg = order.add();
+                order.buy[leg] = random.nextBoolean();
+                order.symbol[leg] = symbols[random.nextInt(SYMBOLS)];
+                order.amount[leg] = 1 + random.nextInt(100);
+            }
+            orders[i] = order;
+        }
+        MessageCodec.OrderReceipt receipt = new MessageCodec.OrderReceipt();
+        OrderBook.Fills fills = new OrderBook.Fills();
+        PriceBook.Quote quote = new PriceBook.Quote();
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                return broker.processOrder(orders[next++ & (INPUTS - 1)], "Fill.bench.client", receipt, fills, quote).complete;
+            }
+        };
+    }
+
+    /**
+     * OrderBook matching at a book of the given number of price levels a
+     * side, each starting with a few resting orders. One operation rests a
+     * limit order at a random level of one side, then sends an order for
+     * the same shares that takes them off the top of that side, so the
+     * book keeps its depth; returns the shares the second order matched.
+     */
+    public static IntSupplier matchOrders(int depth) {
+        Random random = new Random(314);
+        int mid = 10_000;
+        String[] owners = symbols(64);
+        OrderBook book = new OrderBook("S0");
+        OrderBook.Fills fills = new OrderBook.Fills();
+        for (int level = depth; level >= 1; level--) { // worst first, so each level is added at the top
+            for (int k = 0; k < 4; k++) {
+                fills.clear();
+                book.submit(true, mid - level, 10, PriceBook.NO_PRICE, owners[random.nextInt(owners.length)], Long.MAX_VALUE, fills);
+                fills.clear();
+                book.submit(false, mid + level, 10, PriceBook.NO_PRICE, owners[random.nextInt(owners.length)], Long.MAX_VALUE, fills);
+            }
+        }
+        boolean[] buy = new boolean[INPUTS];
+        int[] limit = new int[INPUTS];
+        int[] shares = new int[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            buy[i] = random.nextBoolean();
+            int level = 1 + random.nextInt(depth);
+            limit[i] = buy[i] ? mid - level : mid + level;
+            shares[i] = 1 + random.nextInt(40);
+        }
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                int i = next++ & (INPUTS - 1);
+                fills.clear();
+                book.submit(buy[i], limit[i], shares[i], PriceBook.NO_PRICE, owners[i & 63], Long.MAX_VALUE, fills);
+                fills.clear();
+                book.submit(!buy[i], OrderBook.MARKET, shares[i], PriceBook.NO_PRICE, owners[(i + 1) & 63], Long.MAX_VALUE, fills);
+                return fills.takerShares;
+            }
+        };
+    }
+
+    /**
+     * StockBrokerClient.Strategy.evaluate over a generated strategy of the
+     * given number of rules (the same shape StrategyBenchmark uses), fed a
+     * seeded random price walk; returns the number of orders fired.
+     */
+    public static IntSupplier evaluateStrategy(int rules) {
+        try {
+            Path dir = tempDirectory("strategy");
+            Path strategyFile = dir.resolve("strategy.xml");
+            String[] symbols = symbols(SYMBOLS);
+            StrategyBenchmark.writeStrategy(strategyFile, rules, symbols, new Random(314));
+            strategyFile.toFile().deleteOnExit();
+            StockBrokerClient.Portfolio portfolio = new StockBrokerClient.Portfolio(writePortfolio(dir).toString());
+            StockBrokerClient.Strategy strategy = new StockBrokerClient.Strategy(strategyFile.toString(), portfolio);
+
+            Random walk = new Random(42);
+            String[] symbol = new String[INPUTS];
+            int[] price = new int[INPUTS];
+            for (int i = 0; i < INPUTS; i++) {
+                symbol[i] = symbols[walk.nextInt(SYMBOLS)];
+                price[i] = 1000 + walk.nextInt(9000);
+            }
+            return new IntSupplier() {
+                int next = 0;
+                int fired = 0;
+                final Consumer<StockBrokerClient.StockTransaction> place = tx -> fired++;
+
+                public int getAsInt() {
+                    int i = next++ & (INPUTS - 1);
+                    strategy.evaluate(symbol[i], price[i], place);
+                    return fired;
+                }
+            };
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * StockBrokerClient.Portfolio.getShares across the portfolio's symbols.
+     */
+    public static IntSupplier getShares() {
+        StockBrokerClient.Portfolio portfolio = portfolio();
+        String[] symbols = symbols(SYMBOLS);
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                return portfolio.getShares(symbols[next++ % SYMBOLS]);
+            }
+        };
+    }
+
+    /**
+     * StockBrokerClient.Portfolio.setShares, which journals every change
+     * (and periodically compacts the journal into the XML file), so this
+     * includes the file writes.
+     */
+    public static IntSupplier setShares() {
+        StockBrokerClient.Portfolio portfolio = portfolio();
+        String[] symbols = symbols(SYMBOLS);
+        return new IntSupplier() {
+            int next = 0;
+
+            public int getAsInt() {
+                int i = next++;
+                try {
+                    portfolio.setShares(symbols[i % SYMBOLS], i & 0xffff);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return i;
+            }
+        };
+    }
+
+    private static StockBrokerClient.Portfolio portfolio() {
+        try {
+            return new StockBrokerClient.Portfolio(writePortfolio(tempDirectory("portfolio")).toString());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Path writePortfolio(Path dir) throws IOException {
+        Path file = dir.resolve("portfolio.xml");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<portfolio>");
+            for (String symbol : symbols(SYMBOLS)) {
+                out.println("  <stock symbol=\"" + symbol + "\">100</stock>");
+            }
+            out.println("</portfolio>");
+        }
+        file.toFile().deleteOnExit();
+        dir.resolve("portfolio.xml.journal").toFile().deleteOnExit();
+        return file;
+    }
+
+    private static Path tempDirectory(String name) {
+        try {
+            Path dir = Files.createTempDirectory("hotpaths-" + name);
+            dir.toFile().deleteOnExit();
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
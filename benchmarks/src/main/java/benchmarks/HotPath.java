@@ -0,0 +1,27 @@
+package benchmarks;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Looks up a fixture on HotPaths, which lives in the default package with
+ * the application and so can only be reached by name from here.
+ */
+final class HotPath {
+    private HotPath() {}
+
+    static IntSupplier of(String name) {
+        try {
+            return (IntSupplier) Class.forName("HotPaths").getMethod(name).invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No fixture HotPaths." + name, e);
+        }
+    }
+
+    static IntSupplier of(String name, int param) {
+        try {
+            return (IntSupplier) Class.forName("HotPaths").getMethod(name, int.class).invoke(null, param);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No fixture HotPaths." + name, e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * OrderBook matching orders against books of increasing depth. Each
+ * operation is two orders: one that rests and one that matches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OrderBookBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int depth;
+
+    private IntSupplier matchOrders;
+
+    @Setup
+    public void setup() {
+        matchOrders = HotPath.of("matchOrders", depth);
+    }
+
+    @Benchmark
+    public int matchOrders() {
+        return matchOrders.getAsInt();
+    }
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * StockBrokerClient.Portfolio lookups and journaled updates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PortfolioBenchmark {
+    private IntSupplier getShares;
+    private IntSupplier setShares;
+
+    @Setup
+    public void setup() {
+        getShares = HotPath.of("getShares");
+        setShares = HotPath.of("setShares");
+    }
+
+    @Benchmark
+    public int getShares() {
+        return getShares.getAsInt();
+    }
+
+    @Benchmark
+    public int setShares() {
+        return setShares.getAsInt();
+    }
+}
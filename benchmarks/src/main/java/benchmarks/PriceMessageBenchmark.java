@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The price message path: StockPublisher encoding a tick, StockMonitor
+ * parsing one, and StockBroker.updatePrices parsing one into its price book.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PriceMessageBenchmark {
+    private IntSupplier encode;
+    private IntSupplier decode;
+    private IntSupplier updatePrices;
+
+    @Setup
+    public void setup() {
+        encode = HotPath.of("encode");
+        decode = HotPath.of("decodePriceMessage");
+        updatePrices = HotPath.of("updatePrices");
+    }
+
+    @Benchmark
+    public int encode() {
+        return encode.getAsInt();
+    }
+
+    @Benchmark
+    public int decode() {
+        return decode.getAsInt();
+    }
+
+    @Benchmark
+    public int updatePrices() {
+        return updatePrices.getAsInt();
+    }
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * StockBroker.processOrder filling single- and multi-leg orders.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessOrderBenchmark {
+    @Param({"1", "8"})
+    public int legs;
+
+    private IntSupplier processOrder;
+
+    @Setup
+    public void setup() {
+        processOrder = HotPath.of("processOrder", legs);
+    }
+
+    @Benchmark
+    public int processOrder() {
+        return processOrder.getAsInt();
+    }
+}
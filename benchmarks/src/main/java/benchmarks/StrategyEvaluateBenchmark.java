@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * StockBrokerClient.Strategy.evaluate, one price tick per operation, as
+ * the rule set grows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StrategyEvaluateBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int rules;
+
+    private IntSupplier evaluate;
+
+    @Setup
+    public void setup() {
+        evaluate = HotPath.of("evaluateStrategy", rules);
+    }
+
+    @Benchmark
+    public int evaluate() {
+        return evaluate.getAsInt();
+    }
+}